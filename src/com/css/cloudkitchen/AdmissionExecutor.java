@@ -0,0 +1,265 @@
+package com.css.cloudkitchen;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An executor wrapper, admits at most the given number of running tasks,
+ * the tasks beyond the limit wait in a queue and start in turn when a running task ends, the caller never blocks.
+ * Tracks the running tasks to report the peak concurrency.
+ * The CPU time of the carrier threads is sampled on an interval to report their peak and average utilisation,
+ * the same way for both kinds of threads, so the two modes can be compared:
+ * the carriers of platform threads are the pool threads which ran the tasks,
+ * the carriers of virtual threads are the ForkJoinPool workers of the virtual thread scheduler,
+ * which are shared by every virtual thread of the JVM.
+ */
+public class AdmissionExecutor extends AbstractExecutorService {
+    private static final Logger logger = LoggerFactory.getLogger(AdmissionExecutor.class);
+    private static final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    private static final long SAMPLE_MILLIS = 100L;
+    private static final String CARRIER_CLASS = "jdk.internal.misc.CarrierThread";
+    private static final ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+        final Thread thread = new Thread(r, "Carrier-Sampler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final String name;
+    private final ExecutorService executor;
+    private final Semaphore admission;
+    private final int carriers;
+    private final boolean virtual;
+    private final Queue<Runnable> pending = new ArrayDeque<>(); // tasks waiting for admission, guarded by this
+    private final AtomicInteger active = new AtomicInteger(0);
+    private final AtomicInteger peak = new AtomicInteger(0);
+    private final AtomicInteger waited = new AtomicInteger(0); // tasks which waited for admission
+    private final Map<Long, Long> carrierCpu = new ConcurrentHashMap<>(); // thread id -> CPU time at the last sample
+    private final boolean measured = threadBean.isThreadCpuTimeSupported() && threadBean.isThreadCpuTimeEnabled();
+    private final long created = System.nanoTime();
+    private final ScheduledFuture<?> sampling;
+    private int threadCount = -1; // live threads at the last scan for the carriers of virtual threads
+    private long lastSample = created;
+    private long busyNanos = 0L; // CPU time of the carriers sampled so far
+    private long peakUtilisation = 0L; // in percent of all carriers, over a sample interval
+    private int samples = 0;
+    private boolean shutdown = false; // guarded by this
+
+    /**
+     * An executor of platform threads.
+     * @param name Name of the executor in logs
+     * @param executor The executor running the tasks
+     * @param maxTasks Max running tasks, Integer.MAX_VALUE for no limit
+     * @param carriers Number of threads which actually run the tasks
+     */
+    public AdmissionExecutor(final String name, final ExecutorService executor,
+                             final int maxTasks, final int carriers) {
+        this(name, executor, maxTasks, carriers, false);
+    }
+
+    /**
+     * @param name Name of the executor in logs
+     * @param executor The executor running the tasks
+     * @param maxTasks Max running tasks, Integer.MAX_VALUE for no limit
+     * @param carriers Number of threads which actually run the tasks
+     * @param virtual True if the tasks run on virtual threads
+     */
+    public AdmissionExecutor(final String name, final ExecutorService executor,
+                             final int maxTasks, final int carriers, final boolean virtual) {
+        this.name = name;
+        this.executor = executor;
+        this.admission = new Semaphore(maxTasks);
+        this.carriers = carriers;
+        this.virtual = virtual;
+        this.sampling = measured
+                ? sampler.scheduleAtFixedRate(this::sample, SAMPLE_MILLIS, SAMPLE_MILLIS, TimeUnit.MILLISECONDS)
+                : null;
+    }
+
+    @Override
+    public void execute(final Runnable command) {
+        final Runnable task = () -> {
+            peak.accumulateAndGet(active.incrementAndGet(), Math::max);
+            if (measured && !virtual) { // the pool thread is a carrier, counted from its first task
+                carrierCpu.computeIfAbsent(Thread.currentThread().getId(), id -> threadBean.getThreadCpuTime(id));
+            }
+            try {
+                command.run();
+            } finally {
+                active.decrementAndGet();
+                admission.release();
+                startPending();
+            }
+        };
+        synchronized (this) {
+            if (shutdown) {
+                throw new RejectedExecutionException(name + "is shut down.");
+            }
+            if (!pending.isEmpty() || !admission.tryAcquire()) {
+                pending.offer(task);
+                waited.incrementAndGet();
+                return;
+            }
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                admission.release();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Start the waiting tasks while there is room, in the order they came,
+     * and shut the executor down when it is shut down and no task is waiting anymore.
+     */
+    private synchronized void startPending() {
+        while (!pending.isEmpty() && admission.tryAcquire()) {
+            try {
+                executor.execute(pending.poll());
+            } catch (RejectedExecutionException e) {
+                admission.release();
+                logger.error("{}task rejected after waiting for admission: ", name, e);
+            }
+        }
+        if (shutdown && pending.isEmpty()) {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Add the CPU time the carriers used since the last sample, and keep the peak utilisation of an interval.
+     * A carrier is counted from the sample it is first seen in.
+     */
+    private synchronized void sample() {
+        if (virtual) {
+            findVirtualCarriers();
+        }
+        final long now = System.nanoTime();
+        long busy = 0L;
+        for (Map.Entry<Long, Long> carrier : carrierCpu.entrySet()) {
+            final long cpu = threadBean.getThreadCpuTime(carrier.getKey());
+            if (cpu < 0L) { // the thread is gone
+                carrierCpu.remove(carrier.getKey());
+                continue;
+            }
+            busy += Math.max(0L, cpu - carrier.getValue());
+            carrier.setValue(cpu);
+        }
+        final long interval = now - lastSample;
+        lastSample = now;
+        busyNanos += busy;
+        if (interval >= TimeUnit.MILLISECONDS.toNanos(SAMPLE_MILLIS) / 2) { // the last one may be short
+            samples++;
+            peakUtilisation = Math.max(peakUtilisation,
+                    Math.min(100L, busy * 100 / (interval * Math.max(1, carriers))));
+        }
+        if (isTerminated() && sampling != null) {
+            sampling.cancel(false);
+        }
+    }
+
+    /**
+     * Look up the carriers of virtual threads, only when the number of live threads changed.
+     */
+    private void findVirtualCarriers() {
+        final int count = threadBean.getThreadCount();
+        if (count == threadCount) {
+            return;
+        }
+        threadCount = count;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (CARRIER_CLASS.equals(thread.getClass().getName())) {
+                carrierCpu.computeIfAbsent(thread.getId(), id -> threadBean.getThreadCpuTime(id));
+            }
+        }
+    }
+
+    public int getActiveCount() {
+        return active.get();
+    }
+
+    public int getPeakCount() {
+        return peak.get();
+    }
+
+    /**
+     * @return The peak utilisation of the carrier threads over a sample interval, in percent
+     */
+    public synchronized long getPeakUtilisation() {
+        return peakUtilisation;
+    }
+
+    /**
+     * Print statistics
+     */
+    public void printStatistics() {
+        final String utilisation;
+        if (measured) {
+            synchronized (this) {
+                sample();
+                sampling.cancel(false);
+                final long elapsed = Math.max(1L, lastSample - created);
+                utilisation = String.format("%s carrier threads busy peak %d%%, average %d%% of %d, over %d samples",
+                        virtual ? "virtual" : "platform", peakUtilisation,
+                        Math.min(100L, busyNanos * 100 / elapsed / Math.max(1, carriers)), carriers, samples);
+            }
+        } else {
+            utilisation = "the JVM does not measure the CPU time of the carrier threads";
+        }
+        logger.info("{}: peak {} running tasks, {} waited for admission, {}.",
+                name, peak.get(), waited.get(), utilisation);
+    }
+
+    @Override
+    public void shutdown() {
+        synchronized (this) {
+            shutdown = true;
+        }
+        startPending();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        final List<Runnable> dropped;
+        synchronized (this) {
+            shutdown = true;
+            dropped = new ArrayList<>(pending);
+            pending.clear();
+        }
+        dropped.addAll(executor.shutdownNow());
+        return dropped;
+    }
+
+    @Override
+    public synchronized boolean isShutdown() {
+        return shutdown;
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return isShutdown() && executor.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException {
+        return executor.awaitTermination(timeout, unit);
+    }
+}
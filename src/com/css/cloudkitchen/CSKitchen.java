@@ -1,18 +1,30 @@
 package com.css.cloudkitchen;
 
+import com.css.cloudkitchen.bus.MessageJournal;
+import com.css.cloudkitchen.handler.ArrivalEstimator;
 import com.css.cloudkitchen.handler.CourierDispatcher;
 import com.css.cloudkitchen.handler.CourierRunner;
 import com.css.cloudkitchen.handler.FoodCooker;
 import com.css.cloudkitchen.handler.MatcherStrategy;
 import com.css.cloudkitchen.handler.OrderGenerator;
+import com.css.cloudkitchen.message.MessagePool;
+import com.css.cloudkitchen.metrics.MetricsRegistry;
+import com.css.cloudkitchen.metrics.OrderTracer;
+import com.css.cloudkitchen.output.EventOutput;
+import com.css.cloudkitchen.strategy.AbstractStrategy;
+import com.css.cloudkitchen.strategy.StrategyBatch;
 import com.css.cloudkitchen.strategy.StrategyFIFO;
 import com.css.cloudkitchen.strategy.StrategyMatch;
+import com.css.cloudkitchen.strategy.StrategyRendezvous;
+import com.css.cloudkitchen.timer.Timers;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.Future;
-import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -25,22 +37,40 @@ public class CSKitchen{
     public static final int MAX_THREADS = 10;
     public static final int KEEP_ALIVE = 10;
     public static final int THOUSAND = 1000;
-    public static final String CMD_EXIT = "_EXIT_";
     public static final int COURIER_START = 3; //arrival delay left range
     public static final int COURIER_END = 15; //arrival delay right range
     public static final int MSG_RETRY = 6; //max retries for sending a message
+    public static final int PUBLISH_WAIT = 20; //max wait in second for room in the message bus
     public static final int GRACE_TIME = 300; // grace time in second before quiting
+    public static final int REPORT_INTERVAL = 10; // interval in second of the wait time percentiles in log
+    public static final int JOURNAL_SEGMENT = 65536; // records per segment file of the journal
 
     private static final Logger logger = LoggerFactory.getLogger(CSKitchen.class);
 
     public static int maxQueue = 1000; // max queue length
-    private final int runType; //  1 is Matched method, 2 is First-in-first-out method, 3 is both
+    public static int batchSize = 1; // max messages dispatched per wake-up of the Message Dispatcher
+    public static int busType = 1; // message queue, 1 is ArrayBlockingQueue, 2 is lock-free ring buffer
+    public static int backoffType = 2; // retry backoff of the Message Dispatcher, 1 fixed, 2 linear, 3 exponential
+    public static int executorType = 1; // 1 is platform threads, 2 is virtual threads
+    public static int dispatchLanes = 1; // partitions of the Message Bus, each dispatched by its own thread
+    public static int matcherShards = 1; // shards of the MATCH strategy, each matched by its own thread
+    public static boolean rendezvous = false; // MATCH at a rendezvous on food ready / courier arrival
+    public static int batchWindow = 100; // time window in ms of the BATCH strategy
+    public static boolean predictiveDispatch = false; // dispatch couriers to arrive when the food is ready
+    public static boolean orderTrace = false; // trace every order through the pipeline stages
+    public static int outputType = 3; // sink of the order events, 1 console, 2 log file, 3 both, 4 none
+    public static int messagePool = 0; // pooled orders and couriers of each kind, 0 is no pooling
+    public static int arrivalType = 1; // send times of the orders, 1 is a burst every second, 2 even, 3 Poisson
+    public static int waitType = 1; // ring buffer consumer waiting, 1 is blocking, 2 is yielding, 3 is busy spin
+    private final int runType; //  1 is Matched method, 2 is First-in-first-out method, 3 is both, 4 is Batch
     private final int totalOrders; //total orders to be run
     private final int orderPerSecond;
     private final boolean randomFood; //generate orders with random food
 
-    private final ThreadPoolExecutor tPool = Helpers.createConstraintPool("CSKitchen ", MAX_THREADS, KEEP_ALIVE);
+    private final AdmissionExecutor tPool = Helpers.createExecutor("CSKitchen ", MAX_THREADS, KEEP_ALIVE);
     private final ExecutorCompletionService<Integer> compServ = new ExecutorCompletionService<>(tPool);
+    private int taskCount = 0; // tasks submitted to the thread pool
+    private StrategyRendezvous rvStrategy = null;
 
     public CSKitchen(final int orders, final int orderPerSecond, final int type, final boolean randomFood) {
         this.runType = type;
@@ -58,52 +88,91 @@ public class CSKitchen{
         // prepare food
         FoodCooker fc = new FoodCooker();
         mBus.register(fc);
-        compServ.submit(fc);
+        submit(fc);
 
         // dispatch courier for delivery
         CourierDispatcher cd = new CourierDispatcher();
         mBus.register(cd);
-        compServ.submit(cd);
+        submit(cd);
 
         // courier arriving
         CourierRunner cr = new CourierRunner();
         mBus.register(cr);
-        compServ.submit(cr);
+        submit(cr);
+
+        if (predictiveDispatch) {
+            ArrivalEstimator estimator = Helpers.createArrivalEstimator();
+            cd.setEstimator(estimator);
+            cr.setEstimator(estimator);
+        }
 
         // apply different strategy
-        if (runType == 1 || runType == 3) {
-            MatcherStrategy ms1 = new MatcherStrategy(new StrategyMatch());
+        if ((runType == 1 || runType == 3) && rendezvous) {
+            rvStrategy = new StrategyRendezvous();
+            AbstractStrategy.registerMetrics(rvStrategy.getName(), () -> rvStrategy);
+            fc.setRendezvous(rvStrategy);
+            cr.setRendezvous(rvStrategy);
+        } else if (runType == 1 || runType == 3) {
+            MatcherStrategy ms1 = new MatcherStrategy(StrategyMatch::new, matcherShards);
             mBus.register(ms1);
-            compServ.submit(ms1);
+            submit(ms1);
         }
         if (runType == 2 || runType == 3) {
             MatcherStrategy ms2 = new MatcherStrategy(new StrategyFIFO());
             mBus.register(ms2);
-            compServ.submit(ms2);
+            submit(ms2);
+        }
+        if (runType == 4) {
+            MatcherStrategy ms3 = new MatcherStrategy(new StrategyBatch(batchWindow));
+            mBus.register(ms3);
+            submit(ms3);
         }
 
-        compServ.submit(mBus);
+        submit(mBus);
 
         // start generating orders, workflow is running now
-        compServ.submit(og);
+        submit(og);
+    }
+
+    private void submit(final Callable<Integer> task) {
+        compServ.submit(task);
+        taskCount++;
     }
 
     public void run() {
         Future<Integer> ret;
         final int interval = 1;
+        int completed = 0;
+        if (orderTrace) {
+            OrderTracer.install(new OrderTracer());
+        }
+        final MetricsRegistry metrics = MetricsRegistry.getInstance();
+        metrics.gauge("Timer.pending", () -> Timers.timer().getPending());
+        metrics.gauge("Output.pending", () -> EventOutput.output().getPending());
+        final MessagePool pool = MessagePool.pool();
+        if (pool != null) {
+            metrics.gauge("MessagePool.freeOrders", pool::getFreeOrders);
+            metrics.gauge("MessagePool.freeCouriers", pool::getFreeCouriers);
+            metrics.gauge("MessagePool.misses", pool::getMisses);
+        }
+        EventOutput.start(EventOutput.Sink.values()[outputType - 1]);
+        metrics.registerMBean();
+        final ControlPlane controlPlane = ControlPlane.getInstance();
+        controlPlane.registerMBean();
         try {
 
             assembleChain();
 
             // monitoring thread state, check for completion
-            while (tPool.getCompletedTaskCount() < tPool.getTaskCount()) {
-                if (tPool.getCompletedTaskCount() + 1 == tPool.getTaskCount()) {
+            while (completed < taskCount) {
+                if (completed + 1 == taskCount) {
                     //stop dispatcher explicitly
                     MessageDispatcher.stopDispatcher();
                 }
                 try {
                     ret = compServ.poll(interval, TimeUnit.SECONDS);
                     if (ret != null) {
+                        completed++;
                         logger.info("Thread completed with {} .", ret.get());
                     }
                 } catch (InterruptedException ie) {
@@ -116,16 +185,62 @@ public class CSKitchen{
         } catch (Throwable e) {
             logger.error("Caught: ", e);
         }
+        tPool.shutdown();
+        tPool.printStatistics();
+        EventOutput.stop();
+        if (rvStrategy != null) {
+            rvStrategy.printStatistics();
+        }
+        metrics.printStatistics();
+        metrics.unregisterMBean();
+        controlPlane.unregisterMBean();
+        controlPlane.clear();
+        if (OrderTracer.tracer() != null) {
+            OrderTracer.tracer().printReport();
+            OrderTracer.install(null);
+        }
     }
 
     public static void usage() {
-        System.out.println("usage: -o <number> -ops <number> -q <number> -r <y|n> -t <1|2|3>");
-        System.out.println("-o <number>   --> Total number of orders, default is 100, range from 1 to 100,000.");
-        System.out.println("-ops <number> --> Order per second, default is 2, range from 1 to 100.");
+        System.out.println("usage: -o <number> -ops <number> -q <number> -r <y|n> -s <y|n> -t <1|2|3|4> -b <number>"
+                + " -m <1|2> -w <1|2|3> -d <number> -rp <1|2|3> -x <1|2>"
+                + " -ms <number> -rv <y|n> -bw <number> -pd <y|n> -tr <y|n> -out <1|2|3|4> -j <dir> -jr <dir>"
+                + " -mp <number> -ad <1|2|3>");
+        System.out.println("-o <number>   --> Total number of orders, default is 100, range from 1 to 10,000,000.");
+        System.out.println("-ops <number> --> Order per second, default is 2, range from 1 to 100,000.");
         System.out.println("-q <number>   --> Max queue length, default is 1000, range from 1 to 100,000.");
         System.out.println("-r <y|n>      --> Randomly choosing food for orders, "
                 + "otherwise CheesePizza wil be chosen, default is [y]es.");
-        System.out.println("-t <1|2|3>    --> Match type, 1: MATCH, 2: FIFO, 3: both 1 & 2 , default is 3.");
+        System.out.println("-s <y|n>      --> Run as a discrete-event simulation on virtual time, default is [n]o.");
+        System.out.println("-t <1|2|3|4>  --> Match type, 1: MATCH, 2: FIFO, 3: both 1 & 2 , 4: BATCH, default is 3.");
+        System.out.println("-b <number>   --> Max messages dispatched in a batch, default is 1, range from 1 to 1,000.");
+        System.out.println("-m <1|2>      --> Message queue type, 1: ArrayBlockingQueue, 2: lock-free ring buffer, "
+                + "default is 1.");
+        System.out.println("-w <1|2|3>    --> Ring buffer wait strategy, 1: blocking, 2: yielding, 3: busy spin, "
+                + "default is 1.");
+        System.out.println("-d <number>   --> Dispatch lanes of the message bus, default is 1, range from 1 to 64.");
+        System.out.println("-rp <1|2|3>   --> Retry backoff policy, 1: fixed, 2: linear, 3: exponential, default is 2.");
+        System.out.println("-ms <number>  --> Shards of the MATCH strategy, default is 1, range from 1 to 64.");
+        System.out.println("-rv <y|n>     --> MATCH orders and couriers at a rendezvous without a matcher thread, "
+                + "default is [n]o.");
+        System.out.println("-bw <number>  --> Time window in ms of the BATCH strategy, default is 100, "
+                + "range from 1 to 10,000.");
+        System.out.println("-pd <y|n>     --> Predictive courier dispatch, to arrive when the food is ready, "
+                + "default is [n]o.");
+        System.out.println("-tr <y|n>     --> Trace every order, report the latency by pipeline stage and by food, "
+                + "not in simulation, default is [n]o.");
+        System.out.println("-out <1|2|3|4> --> Output of the order events, 1: console, 2: log file, 3: both, "
+                + "4: none, default is 3.");
+        System.out.println("-j <dir>      --> Record every bus event to a binary journal in the directory, "
+                + "default is no journal.");
+        System.out.println("-jr <dir>     --> Replay the journal in the directory through the strategies of -t, "
+                + "instead of a run.");
+        System.out.println("-x <1|2>      --> Executor type, 1: platform threads, 2: virtual threads"
+                + " ( Java 21+, otherwise platform threads ), default is 1.");
+        System.out.println("-mp <number>  --> Pooled orders and couriers of each kind, recycled after the pickup, "
+                + "default is 0 ( no pooling ), range from 0 to 1,000,000.");
+        System.out.println("-ad <1|2|3>   --> Arrival of the orders, 1: a burst every second, 2: evenly spaced, "
+                + "3: Poisson, default is 1.");
         System.exit(1);
     }
 
@@ -135,6 +250,9 @@ public class CSKitchen{
         int ops = 2;
         int type = 3;
         boolean randomFood = true;
+        boolean simulation = false;
+        String journalDir = null;
+        String replayDir = null;
 
         int idx = 0;
         while (idx < args.length) {
@@ -148,7 +266,7 @@ public class CSKitchen{
                 case "-o":
                     try {
                         orders = Integer.parseInt(args[idx]);
-                        if (orders < 1 || orders > 100000) {
+                        if (orders < 1 || orders > 10000000) {
                             throw new Exception();
                         }
                         logger.info("Will generate {} orders.", orders);
@@ -160,7 +278,7 @@ public class CSKitchen{
                 case "-ops":
                     try {
                         ops = Integer.parseInt(args[idx]);
-                        if (ops < 1 || ops > 100) {
+                        if (ops < 1 || ops > 100000) {
                             throw new Exception();
                         }
                         logger.info("Will generate {} orders.", orders);
@@ -196,10 +314,25 @@ public class CSKitchen{
                         System.exit(1);
                     }
                     break;
+                case "-s":
+                    try {
+                        if ("y".equalsIgnoreCase(args[idx])) {
+                            simulation = true;
+                        } else if ("n".equalsIgnoreCase(args[idx])) {
+                            simulation = false;
+                        } else {
+                            throw new Exception();
+                        }
+                        logger.info("Will run as a simulation on virtual time : {} .", simulation);
+                    } catch (Exception e) {
+                        System.out.println("Invalid value for simulation : " + args[idx]);
+                        System.exit(1);
+                    }
+                    break;
                 case "-t":
                     try {
                         type = Integer.parseInt(args[idx]);
-                        if (type < 1 || type > 3) {
+                        if (type < 1 || type > 4) {
                             throw new Exception();
                         }
                         logger.info("The match method will be {}.", type);
@@ -208,6 +341,191 @@ public class CSKitchen{
                         System.exit(1);
                     }
                     break;
+                case "-b":
+                    try {
+                        batchSize = Integer.parseInt(args[idx]);
+                        if (batchSize < 1 || batchSize > 1000) {
+                            throw new Exception();
+                        }
+                        logger.info("Will dispatch messages in batch of {}.", batchSize);
+                    } catch (Exception e) {
+                        System.out.println("Invalid number for batch size : " + args[idx]);
+                        System.exit(1);
+                    }
+                    break;
+                case "-m":
+                    try {
+                        busType = Integer.parseInt(args[idx]);
+                        if (busType < 1 || busType > 2) {
+                            throw new Exception();
+                        }
+                        logger.info("The message queue type will be {}.", busType);
+                    } catch (Exception e) {
+                        System.out.println("Invalid number for message queue type : " + args[idx]);
+                        System.exit(1);
+                    }
+                    break;
+                case "-w":
+                    try {
+                        waitType = Integer.parseInt(args[idx]);
+                        if (waitType < 1 || waitType > 3) {
+                            throw new Exception();
+                        }
+                        logger.info("The ring buffer wait strategy will be {}.", waitType);
+                    } catch (Exception e) {
+                        System.out.println("Invalid number for wait strategy : " + args[idx]);
+                        System.exit(1);
+                    }
+                    break;
+                case "-d":
+                    try {
+                        dispatchLanes = Integer.parseInt(args[idx]);
+                        if (dispatchLanes < 1 || dispatchLanes > 64) {
+                            throw new Exception();
+                        }
+                        logger.info("Will dispatch messages in {} lanes.", dispatchLanes);
+                    } catch (Exception e) {
+                        System.out.println("Invalid number for dispatch lanes : " + args[idx]);
+                        System.exit(1);
+                    }
+                    break;
+                case "-rp":
+                    try {
+                        backoffType = Integer.parseInt(args[idx]);
+                        if (backoffType < 1 || backoffType > 3) {
+                            throw new Exception();
+                        }
+                        logger.info("The retry backoff policy will be {}.", backoffType);
+                    } catch (Exception e) {
+                        System.out.println("Invalid number for retry backoff policy : " + args[idx]);
+                        System.exit(1);
+                    }
+                    break;
+                case "-x":
+                    try {
+                        executorType = Integer.parseInt(args[idx]);
+                        if (executorType < 1 || executorType > 2) {
+                            throw new Exception();
+                        }
+                        logger.info("The executor type will be {}.", executorType);
+                    } catch (Exception e) {
+                        System.out.println("Invalid number for executor type : " + args[idx]);
+                        System.exit(1);
+                    }
+                    break;
+                case "-ms":
+                    try {
+                        matcherShards = Integer.parseInt(args[idx]);
+                        if (matcherShards < 1 || matcherShards > 64) {
+                            throw new Exception();
+                        }
+                        logger.info("Will match orders in {} shards.", matcherShards);
+                    } catch (Exception e) {
+                        System.out.println("Invalid number for matcher shards : " + args[idx]);
+                        System.exit(1);
+                    }
+                    break;
+                case "-rv":
+                    try {
+                        if ("y".equalsIgnoreCase(args[idx])) {
+                            rendezvous = true;
+                        } else if ("n".equalsIgnoreCase(args[idx])) {
+                            rendezvous = false;
+                        } else {
+                            throw new Exception();
+                        }
+                        logger.info("Will match at a rendezvous : {} .", rendezvous);
+                    } catch (Exception e) {
+                        System.out.println("Invalid value for rendezvous : " + args[idx]);
+                        System.exit(1);
+                    }
+                    break;
+                case "-bw":
+                    try {
+                        batchWindow = Integer.parseInt(args[idx]);
+                        if (batchWindow < 1 || batchWindow > 10000) {
+                            throw new Exception();
+                        }
+                        logger.info("Will match in batch windows of {} ms.", batchWindow);
+                    } catch (Exception e) {
+                        System.out.println("Invalid number for batch window : " + args[idx]);
+                        System.exit(1);
+                    }
+                    break;
+                case "-pd":
+                    try {
+                        if ("y".equalsIgnoreCase(args[idx])) {
+                            predictiveDispatch = true;
+                        } else if ("n".equalsIgnoreCase(args[idx])) {
+                            predictiveDispatch = false;
+                        } else {
+                            throw new Exception();
+                        }
+                        logger.info("Will dispatch couriers predictively : {} .", predictiveDispatch);
+                    } catch (Exception e) {
+                        System.out.println("Invalid value for predictive dispatch : " + args[idx]);
+                        System.exit(1);
+                    }
+                    break;
+                case "-tr":
+                    try {
+                        if ("y".equalsIgnoreCase(args[idx])) {
+                            orderTrace = true;
+                        } else if ("n".equalsIgnoreCase(args[idx])) {
+                            orderTrace = false;
+                        } else {
+                            throw new Exception();
+                        }
+                        logger.info("Will trace every order : {} .", orderTrace);
+                    } catch (Exception e) {
+                        System.out.println("Invalid value for order trace : " + args[idx]);
+                        System.exit(1);
+                    }
+                    break;
+                case "-out":
+                    try {
+                        outputType = Integer.parseInt(args[idx]);
+                        if (outputType < 1 || outputType > 4) {
+                            throw new Exception();
+                        }
+                        logger.info("The event output will be {}.", outputType);
+                    } catch (Exception e) {
+                        System.out.println("Invalid number for event output : " + args[idx]);
+                        System.exit(1);
+                    }
+                    break;
+                case "-mp":
+                    try {
+                        messagePool = Integer.parseInt(args[idx]);
+                        if (messagePool < 0 || messagePool > 1000000) {
+                            throw new Exception();
+                        }
+                        logger.info("The message pool will be {}.", messagePool);
+                    } catch (Exception e) {
+                        System.out.println("Invalid number for message pool : " + args[idx]);
+                        System.exit(1);
+                    }
+                    break;
+                case "-ad":
+                    try {
+                        arrivalType = Integer.parseInt(args[idx]);
+                        if (arrivalType < 1 || arrivalType > 3) {
+                            throw new Exception();
+                        }
+                        logger.info("The arrival of the orders will be {}.", arrivalType);
+                    } catch (Exception e) {
+                        System.out.println("Invalid number for arrival : " + args[idx]);
+                        System.exit(1);
+                    }
+                    break;
+                case "-j":
+                    journalDir = args[idx];
+                    logger.info("Will record the journal in {}.", journalDir);
+                    break;
+                case "-jr":
+                    replayDir = args[idx];
+                    logger.info("Will replay the journal in {}.", replayDir);
+                    break;
                 default:
                     usage();
             }
@@ -215,8 +533,39 @@ public class CSKitchen{
         }
 
         long start = System.currentTimeMillis();
-        CSKitchen csk = new CSKitchen(orders, ops, type, randomFood);
-        csk.run();
+        try {
+            if (replayDir != null) {
+                new CSReplay(new File(replayDir), type).run();
+            } else {
+                if (journalDir != null) {
+                    MessageJournal.install(new MessageJournal(new File(journalDir), JOURNAL_SEGMENT));
+                }
+                if (messagePool > 0) {
+                    MessagePool.install(new MessagePool(messagePool));
+                }
+                if (simulation) {
+                    new CSSimulation(orders, ops, type, randomFood).run();
+                } else {
+                    CSKitchen csk = new CSKitchen(orders, ops, type, randomFood);
+                    csk.run();
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Journal failed : " + e.getMessage());
+            logger.error("Journal failed: ", e);
+        } finally {
+            final MessageJournal journal = MessageJournal.journal();
+            if (journal != null) {
+                MessageJournal.install(null);
+                journal.close();
+            }
+            final MessagePool pool = MessagePool.pool();
+            if (pool != null) {
+                logger.info("Message pool: {} orders and {} couriers free, {} made when the pool was empty.",
+                        pool.getFreeOrders(), pool.getFreeCouriers(), pool.getMisses());
+                MessagePool.install(null);
+            }
+        }
         long runtime = System.currentTimeMillis() - start;
         System.out.println("CSKitchen end, total time (in ms) spend " + runtime);
         logger.info("CSKitchen end, total time (in ms) spend " + runtime);
@@ -0,0 +1,121 @@
+package com.css.cloudkitchen;
+
+import com.css.cloudkitchen.bus.MessageJournal;
+import com.css.cloudkitchen.handler.MatcherStrategy;
+import com.css.cloudkitchen.message.CSCourier;
+import com.css.cloudkitchen.message.CSMessage;
+import com.css.cloudkitchen.message.CSOrder;
+import com.css.cloudkitchen.output.EventOutput;
+import com.css.cloudkitchen.strategy.AbstractStrategy;
+import com.css.cloudkitchen.strategy.StrategyBatch;
+import com.css.cloudkitchen.strategy.StrategyFIFO;
+import com.css.cloudkitchen.strategy.StrategyMatch;
+import com.css.cloudkitchen.timer.EventSimulator;
+import com.css.cloudkitchen.timer.Timers;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replay a recorded journal through the strategies.
+ * The ready orders and the arrived couriers of the journal are the events of an EventSimulator,
+ * each at the virtual time it happened in the recorded run, so the strategies see the same arrivals,
+ * without the delays of the recorded run's queues and threads.
+ */
+public class CSReplay {
+    private static final Logger logger = LoggerFactory.getLogger(CSReplay.class);
+
+    private final File dir;
+    private final int runType; //  1 is Matched method, 2 is First-in-first-out method, 3 is both, 4 is Batch
+    private final List<AbstractStrategy> strategies = new ArrayList<>();
+    private final List<MatcherStrategy> matchers = new ArrayList<>();
+
+    public CSReplay(final File dir, final int type) {
+        this.dir = dir;
+        this.runType = type;
+    }
+
+    private void assembleStrategies() {
+        if (runType == 1 || runType == 3) {
+            strategies.add(new StrategyMatch());
+        }
+        if (runType == 2 || runType == 3) {
+            strategies.add(new StrategyFIFO());
+        }
+        if (runType == 4) {
+            strategies.add(new StrategyBatch(CSKitchen.batchWindow));
+        }
+        for (AbstractStrategy strategy : strategies) {
+            matchers.add(new MatcherStrategy(strategy));
+        }
+    }
+
+    /**
+     * Run the replay, then print the statistics of the strategies.
+     * The simulator is installed as the shared timer and clock during the run.
+     * @return The strategies with their statistics
+     * @throws IOException If the journal can not be read
+     */
+    public List<AbstractStrategy> run() throws IOException {
+        final List<CSMessage> messages = MessageJournal.read(dir);
+        long start = Long.MAX_VALUE;
+        for (CSMessage msg : messages) {
+            start = Math.min(start, eventTime(msg));
+        }
+
+        final EventSimulator engine = new EventSimulator(start);
+        Timers.install(engine, engine);
+        EventOutput.start(EventOutput.Sink.values()[CSKitchen.outputType - 1]);
+        try {
+            assembleStrategies();
+            int replayed = 0;
+            for (CSMessage msg : messages) {
+                if (isEvent(msg)) {
+                    engine.schedule(() -> apply(msg), eventTime(msg) - start, TimeUnit.MILLISECONDS);
+                    replayed++;
+                }
+            }
+            engine.run(() -> { });
+            logger.info("Replay completed, {} of {} journaled messages replayed, virtual time {} ms.",
+                    replayed, messages.size(), engine.getElapsed());
+        } finally {
+            EventOutput.stop();
+            Timers.install(null, null);
+        }
+
+        for (AbstractStrategy strategy : strategies) {
+            strategy.printStatistics();
+        }
+        return strategies;
+    }
+
+    private void apply(final CSMessage msg) {
+        for (MatcherStrategy matcher : matchers) {
+            matcher.onMessage(msg);
+        }
+    }
+
+    private static boolean isEvent(final CSMessage msg) {
+        return (msg instanceof CSOrder && ((CSOrder) msg).isReady())
+                || (msg instanceof CSCourier && ((CSCourier) msg).isArrived());
+    }
+
+    /**
+     * The time of the event of a message: food ready, courier arrived, or when it was created.
+     * @param msg The message
+     * @return The time in milliseconds
+     */
+    private static long eventTime(final CSMessage msg) {
+        if (msg instanceof CSOrder) {
+            final CSOrder order = (CSOrder) msg;
+            return order.isReady() ? order.getReadyTime() : order.getCreateTime();
+        }
+        final CSCourier courier = (CSCourier) msg;
+        return courier.isArrived() ? courier.getArriveTime() : courier.getDispatchTime();
+    }
+}
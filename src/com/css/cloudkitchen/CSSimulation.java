@@ -0,0 +1,168 @@
+package com.css.cloudkitchen;
+
+import com.css.cloudkitchen.bus.MessageJournal;
+import com.css.cloudkitchen.handler.ArrivalEstimator;
+import com.css.cloudkitchen.handler.CourierDispatcher;
+import com.css.cloudkitchen.handler.CourierRunner;
+import com.css.cloudkitchen.handler.FoodCooker;
+import com.css.cloudkitchen.handler.IMessageHandler;
+import com.css.cloudkitchen.handler.MatcherStrategy;
+import com.css.cloudkitchen.handler.OrderGenerator;
+import com.css.cloudkitchen.message.CSMessage;
+import com.css.cloudkitchen.message.MessageRoute;
+import com.css.cloudkitchen.output.EventOutput;
+import com.css.cloudkitchen.strategy.AbstractStrategy;
+import com.css.cloudkitchen.strategy.StrategyBatch;
+import com.css.cloudkitchen.strategy.StrategyFIFO;
+import com.css.cloudkitchen.strategy.StrategyMatch;
+import com.css.cloudkitchen.strategy.StrategyRendezvous;
+import com.css.cloudkitchen.timer.EventSimulator;
+import com.css.cloudkitchen.timer.Timers;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Run the workflow as a discrete-event simulation on a virtual clock.
+ * The same components and strategies are assembled as in CSKitchen, but without their threads.
+ * Generating orders, preparing food and courier arrival are the events of an EventSimulator,
+ * after every event the messages it produced are routed to the subscribers and handled at once.
+ * Nothing waits on the wall clock, a run takes only the time to handle its events.
+ */
+public class CSSimulation {
+    private static final Logger logger = LoggerFactory.getLogger(CSSimulation.class);
+
+    private final int runType; //  1 is Matched method, 2 is First-in-first-out method, 3 is both, 4 is Batch
+    private final int totalOrders;
+    private final int orderPerSecond;
+    private final boolean randomFood;
+
+    private final BlockingQueue<CSMessage> bus = new LinkedBlockingQueue<>();
+    private final Map<MessageRoute, List<IMessageHandler>> routeTable = new EnumMap<>(MessageRoute.class);
+    private final List<AbstractStrategy> strategies = new ArrayList<>();
+    private long delivered = 0L;
+
+    public CSSimulation(final int orders, final int orderPerSecond, final int type, final boolean randomFood) {
+        this.runType = type;
+        this.totalOrders = orders;
+        this.orderPerSecond = orderPerSecond;
+        this.randomFood = randomFood;
+        for (MessageRoute route : MessageRoute.values()) {
+            routeTable.put(route, new ArrayList<>());
+        }
+    }
+
+    private void register(final IMessageHandler subscriber) {
+        for (MessageRoute route : subscriber.getRoutes()) {
+            routeTable.get(route).add(subscriber);
+        }
+        subscriber.setOutQueue(bus);
+    }
+
+    private OrderGenerator assembleChain() {
+        final OrderGenerator og = new OrderGenerator(this.orderPerSecond, this.totalOrders, this.randomFood);
+        register(og);
+        final FoodCooker fc = new FoodCooker();
+        register(fc);
+        final CourierDispatcher cd = new CourierDispatcher();
+        register(cd);
+        final CourierRunner cr = new CourierRunner();
+        register(cr);
+        if (CSKitchen.predictiveDispatch) {
+            final ArrivalEstimator estimator = Helpers.createArrivalEstimator();
+            cd.setEstimator(estimator);
+            cr.setEstimator(estimator);
+        }
+        if ((runType == 1 || runType == 3) && CSKitchen.rendezvous) {
+            final StrategyRendezvous rv = new StrategyRendezvous();
+            fc.setRendezvous(rv);
+            cr.setRendezvous(rv);
+            strategies.add(rv);
+        } else if (runType == 1 || runType == 3) {
+            final StrategyMatch match = new StrategyMatch();
+            register(new MatcherStrategy(match));
+            strategies.add(match);
+        }
+        if (runType == 2 || runType == 3) {
+            final StrategyFIFO fifo = new StrategyFIFO();
+            register(new MatcherStrategy(fifo));
+            strategies.add(fifo);
+        }
+        if (runType == 4) {
+            final StrategyBatch batch = new StrategyBatch(CSKitchen.batchWindow);
+            register(new MatcherStrategy(batch));
+            strategies.add(batch);
+        }
+        return og;
+    }
+
+    /**
+     * Run the simulation until all events are handled, then print the statistics of the strategies.
+     * The simulator is installed as the shared timer and clock during the run.
+     * @return The strategies with their statistics
+     */
+    public List<AbstractStrategy> run() {
+        final EventSimulator engine = new EventSimulator(System.currentTimeMillis());
+        Timers.install(engine, engine);
+        EventOutput.start(EventOutput.Sink.values()[CSKitchen.outputType - 1]);
+        try {
+            final OrderGenerator og = assembleChain();
+            // the orders of every second are generated at the beginning of the second
+            for (int i = 0, second = 0; i < totalOrders; i += orderPerSecond, second++) {
+                final int count = Math.min(orderPerSecond, totalOrders - i);
+                engine.schedule(() -> generate(og, count), second, TimeUnit.SECONDS);
+            }
+            engine.run(this::deliver);
+            logger.info("Simulation completed, {} events, {} messages delivered, virtual time {} ms.",
+                    engine.getProcessed(), delivered, engine.getElapsed());
+        } finally {
+            EventOutput.stop();
+            Timers.install(null, null);
+        }
+
+        for (AbstractStrategy strategy : strategies) {
+            strategy.printStatistics();
+        }
+        return strategies;
+    }
+
+    private void generate(final OrderGenerator og, final int count) {
+        try {
+            og.generate(count);
+        } catch (InterruptedException e) {
+            logger.info("Interrupted, {} orders not generated.", count);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Route the messages in the bus to their subscribers, until the bus is empty.
+     * Every subscriber gets its own reference, the one from the bus is released.
+     */
+    private void deliver() {
+        CSMessage msg;
+        while ((msg = bus.poll()) != null) {
+            MessageJournal.record(msg);
+            for (IMessageHandler mh : routeTable.get(msg.getRoute())) {
+                if (!mh.filter(msg)) {
+                    continue;
+                }
+                try {
+                    mh.onMessage(msg.retain());
+                    delivered++;
+                } catch (InterruptedException e) {
+                    logger.info("Interrupted, {} not handled.", msg);
+                    Thread.currentThread().interrupt();
+                }
+            }
+            msg.release();
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.css.cloudkitchen;
+
+import com.css.cloudkitchen.handler.IMessageHandler;
+import com.css.cloudkitchen.message.CSControl;
+import com.css.cloudkitchen.metrics.MetricsRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The control channel of the running components, out-of-band from the Message Bus.
+ * A control is broadcast to every registered handler, the handler queues it and acts on it on its own thread,
+ * between two messages of its In-Queue.
+ * The data messages carry no command, so they are routed and filtered without checking for one.
+ * The controls can also be sent from JConsole / VisualVM through the MBean of the control plane.
+ * Adopt Singleton and Observer design pattern.
+ */
+public class ControlPlane implements ControlPlaneMBean {
+    private static final Logger logger = LoggerFactory.getLogger(ControlPlane.class);
+    private static final String OBJECT_NAME = "com.css.cloudkitchen:type=Control";
+
+    private static final ControlPlane self = new ControlPlane();
+
+    private final List<IMessageHandler> handlers = new CopyOnWriteArrayList<>();
+    private final AtomicLong broadcasts = new AtomicLong(0L);
+    private ObjectName registered = null;
+
+    public static ControlPlane getInstance() {
+        return self;
+    }
+
+    public void register(final IMessageHandler handler) {
+        handlers.add(handler);
+    }
+
+    /**
+     * Remove all handlers, e.g. of a previous run.
+     */
+    public void clear() {
+        handlers.clear();
+    }
+
+    /**
+     * Send a control to every registered handler.
+     * @param control The control
+     */
+    public void broadcast(final CSControl control) {
+        broadcasts.incrementAndGet();
+        logger.info("Broadcast control {} to {} handlers.", control, handlers.size());
+        for (IMessageHandler handler : handlers) {
+            handler.control(control);
+        }
+    }
+
+    @Override
+    public void drain() {
+        broadcast(CSControl.drain());
+    }
+
+    @Override
+    public void flush() {
+        broadcast(CSControl.flush());
+    }
+
+    @Override
+    public void pause() {
+        broadcast(CSControl.pause());
+    }
+
+    @Override
+    public void resume() {
+        broadcast(CSControl.resume());
+    }
+
+    @Override
+    public void resize(final int orderPerSecond) {
+        if (orderPerSecond < 1) {
+            throw new IllegalArgumentException("Invalid number for orders per second : " + orderPerSecond);
+        }
+        broadcast(CSControl.resize(orderPerSecond));
+    }
+
+    @Override
+    public void snapshot() {
+        broadcast(CSControl.snapshot());
+        MetricsRegistry.getInstance().printStatistics();
+    }
+
+    @Override
+    public long getBroadcasts() {
+        return broadcasts.get();
+    }
+
+    /**
+     * Expose the controls on the platform MBean server.
+     */
+    public synchronized void registerMBean() {
+        if (registered != null) {
+            return;
+        }
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(this, name);
+            }
+            registered = name;
+            logger.info("Controls registered as MBean {}.", OBJECT_NAME);
+        } catch (JMException e) {
+            logger.error("Failed to register the control MBean: ", e);
+        }
+    }
+
+    /**
+     * Remove the MBean of the controls.
+     */
+    public synchronized void unregisterMBean() {
+        if (registered == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(registered);
+        } catch (JMException e) {
+            logger.error("Failed to unregister the control MBean: ", e);
+        }
+        registered = null;
+    }
+}
@@ -0,0 +1,43 @@
+package com.css.cloudkitchen;
+
+/**
+ * The operations of the control plane in JConsole / VisualVM, to steer a long run without restarting it.
+ */
+public interface ControlPlaneMBean {
+
+    /**
+     * Stop generating orders, complete the orders generated so far, then quit.
+     */
+    void drain();
+
+    /**
+     * Match the messages buffered by the strategies matching in batches.
+     */
+    void flush();
+
+    /**
+     * Hold the generating of orders.
+     */
+    void pause();
+
+    /**
+     * Go on generating orders.
+     */
+    void resume();
+
+    /**
+     * Change the rate of the order generating.
+     * @param orderPerSecond Orders per second
+     */
+    void resize(int orderPerSecond);
+
+    /**
+     * Log the counters of the components and the metrics.
+     */
+    void snapshot();
+
+    /**
+     * @return Number of the controls broadcast
+     */
+    long getBroadcasts();
+}
@@ -1,5 +1,24 @@
 package com.css.cloudkitchen;
 
+import com.css.cloudkitchen.bus.BackoffPolicy;
+import com.css.cloudkitchen.bus.BlockingWaitStrategy;
+import com.css.cloudkitchen.bus.BusySpinWaitStrategy;
+import com.css.cloudkitchen.bus.IWaitStrategy;
+import com.css.cloudkitchen.bus.RetryScheduler;
+import com.css.cloudkitchen.bus.RingMessageQueue;
+import com.css.cloudkitchen.bus.YieldingWaitStrategy;
+import com.css.cloudkitchen.handler.ArrivalEstimator;
+import com.css.cloudkitchen.message.CSMessage;
+import com.css.cloudkitchen.metrics.MetricsRegistry;
+import com.css.cloudkitchen.timer.Timers;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -9,6 +28,7 @@ import java.util.concurrent.TimeUnit;
  * Helper class, provides helper APIs.
  */
 public class Helpers {
+    private static final Logger logger = LoggerFactory.getLogger(Helpers.class);
 
     private Helpers() {
     }
@@ -42,4 +62,132 @@ public class Helpers {
         return tPool;
     }
 
+    /**
+     * Create an executor of the type chosen by CSKitchen.executorType.
+     * Platform threads: a constraint pool of numThreads threads.
+     * Virtual threads: a new virtual thread per task, at most numThreads tasks admitted at a time,
+     * the others wait in turn like in the queue of the pool,
+     * falls back to platform threads when the JVM doesn't support virtual threads.
+     * The running tasks are exposed as metrics, the carrier utilisation is sampled to compare both types.
+     * @param name Thread name prefix
+     * @param numThreads Max thread count, or max running tasks for virtual threads
+     * @param keepAlive Keep alive time of platform threads
+     * @return A new instance of AdmissionExecutor
+     */
+    public static AdmissionExecutor createExecutor(final String name, final int numThreads, final int keepAlive) {
+        AdmissionExecutor executor = null;
+        if (CSKitchen.executorType == 2) {
+            final ExecutorService virtualExecutor = createVirtualExecutor(name);
+            if (virtualExecutor != null) {
+                final int carriers = Integer.getInteger("jdk.virtualThreadScheduler.parallelism",
+                        Runtime.getRuntime().availableProcessors());
+                executor = new AdmissionExecutor(name, virtualExecutor, numThreads, carriers, true);
+            } else {
+                logger.warn("Virtual threads are not supported by this JVM, {}will use platform threads.", name);
+            }
+        }
+        if (executor == null) {
+            executor = new AdmissionExecutor(name, createConstraintPool(name, numThreads, keepAlive),
+                    Integer.MAX_VALUE, numThreads);
+        }
+        final MetricsRegistry metrics = MetricsRegistry.getInstance();
+        metrics.gauge(name.trim() + ".activeThreads", executor::getActiveCount);
+        metrics.gauge(name.trim() + ".peakThreads", executor::getPeakCount);
+        metrics.gauge(name.trim() + ".peakCarrierUtilisation", executor::getPeakUtilisation);
+        return executor;
+    }
+
+    /**
+     * Create a virtual thread per task executor, looked up by reflection to keep running on older JVMs.
+     * @param name Thread name prefix
+     * @return A new executor, or null if virtual threads are not supported
+     */
+    private static ExecutorService createVirtualExecutor(final String name) {
+        try {
+            final Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name, 1L);
+            final ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                    .invoke(null, factory);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Create the estimator of the courier arrival delay for the predictive dispatch,
+     * the prior estimate is the middle of the arrival delay range.
+     * @return A new instance of ArrivalEstimator
+     */
+    public static ArrivalEstimator createArrivalEstimator() {
+        return new ArrivalEstimator((CSKitchen.COURIER_START + CSKitchen.COURIER_END) * (long) CSKitchen.THOUSAND / 2,
+                CSKitchen.COURIER_END * (long) CSKitchen.THOUSAND);
+    }
+
+    /**
+     * Create a message queue of the transport chosen by CSKitchen.busType,
+     * either an ArrayBlockingQueue or a lock-free ring buffer with the wait strategy of CSKitchen.waitType.
+     * @param capacity Max queue length
+     * @return A new instance of the message queue
+     */
+    public static BlockingQueue<CSMessage> createMessageQueue(final int capacity) {
+        if (CSKitchen.busType == 2) {
+            return new RingMessageQueue(capacity, createWaitStrategy());
+        }
+        return new ArrayBlockingQueue<>(capacity);
+    }
+
+    private static IWaitStrategy createWaitStrategy() {
+        switch (CSKitchen.waitType) {
+            case 2:
+                return new YieldingWaitStrategy();
+            case 3:
+                return new BusySpinWaitStrategy();
+            default:
+                return new BlockingWaitStrategy();
+        }
+    }
+
+    /**
+     * Create a retry scheduler on the shared timer, with the backoff policy of CSKitchen.backoffType,
+     * its retries are exposed as metrics.
+     * @param name Name of the scheduler in logs
+     * @return A new instance of RetryScheduler
+     */
+    public static RetryScheduler createRetryScheduler(final String name) {
+        final RetryScheduler scheduler = new RetryScheduler(name, Timers.timer(),
+                BackoffPolicy.values()[CSKitchen.backoffType - 1], CSKitchen.MSG_RETRY, CSKitchen.maxQueue);
+        final MetricsRegistry metrics = MetricsRegistry.getInstance();
+        metrics.gauge(name + ".retried", scheduler::getRetried);
+        metrics.gauge(name + ".discarded", scheduler::getDiscarded);
+        metrics.gauge(name + ".pending", scheduler::getPending);
+        return scheduler;
+    }
+
+    /**
+     * Put a batch of messages to a queue, stop at the first message which can not be put.
+     * @param queue The destination queue
+     * @param messages The batch of messages
+     * @return The number of messages been put, the leading part of the batch
+     */
+    public static int offerAll(final BlockingQueue<CSMessage> queue, final List<CSMessage> messages) {
+        if (queue instanceof RingMessageQueue) {
+            int sent = 0;
+            int count;
+            while (sent < messages.size() && (count = ((RingMessageQueue) queue).offerBatch(messages, sent)) > 0) {
+                sent += count;
+            }
+            return sent;
+        }
+        int sent = 0;
+        for (CSMessage msg : messages) {
+            if (!queue.offer(msg)) {
+                break;
+            }
+            sent++;
+        }
+        return sent;
+    }
+
 }
@@ -1,35 +1,63 @@
 package com.css.cloudkitchen;
 
+import com.css.cloudkitchen.bus.MessageJournal;
+import com.css.cloudkitchen.bus.PartitionedMessageQueue;
+import com.css.cloudkitchen.bus.RetryScheduler;
 import com.css.cloudkitchen.handler.IMessageHandler;
 import com.css.cloudkitchen.message.CSMessage;
+import com.css.cloudkitchen.message.MessageRoute;
+import com.css.cloudkitchen.metrics.MetricsRegistry;
+import com.css.cloudkitchen.metrics.OrderTracer;
+import com.css.cloudkitchen.metrics.OrderTracer.Stage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * The core of the Message Bus system.
  * It registers message producers and consumers ( also called publisher and subscribers ).
  * It gets messages from the Message Bus, and dispatches them to the subscribers.
+ * The subscribers of each message route are looked up from a routing table built at registering time.
+ * Messages are drained from the Message Bus in batches, grouped by subscriber and handed over batch by batch.
+ * The Message Bus can be partitioned into lanes by the order of a message, each lane is dispatched by its own thread,
+ * so the messages about the same order keep their order while the lanes scale across cores.
+ * The depth of the Message Bus and of every subscriber queue, and the routed messages are exposed as metrics.
+ * A registered handler is also registered to the control plane, which sends the controls out-of-band of the bus.
  * Adopt Observer and Singleton and Mediator design pattern.
  */
 public class MessageDispatcher implements Callable<Integer> {
     private static final Logger logger = LoggerFactory.getLogger(MessageDispatcher.class);
 
     private static final AtomicBoolean stopSign = new AtomicBoolean(false);
-    // main message bus
-    private final ArrayBlockingQueue<CSMessage> mainQueue = new ArrayBlockingQueue<>(CSKitchen.maxQueue);
+    // main message bus, a single lane or partitioned over the lanes
+    private final BlockingQueue<CSMessage> mainQueue;
+    private final DispatchLane[] lanes;
     private final List<IMessageHandler> consumer = new ArrayList<>();
-    private final ThreadPoolExecutor retryTPool =
-            Helpers.createConstraintPool("Dispatch-Retry ", CSKitchen.maxQueue, CSKitchen.KEEP_ALIVE);
-    private final ExecutorCompletionService<Integer> compServ = new ExecutorCompletionService<>(retryTPool);
+    // routing table, indexes of the subscribers in consumer list by the ordinal of MessageRoute
+    private final int[][] routeTable = new int[MessageRoute.values().length][0];
+    private final RetryScheduler retryScheduler = Helpers.createRetryScheduler("Dispatch-Retry");
+    private final MetricsRegistry metrics = MetricsRegistry.getInstance();
+    private final LongAdder routed = metrics.counter("Dispatcher.routed"); // striped, updated by every lane
 
     private static final MessageDispatcher self = new MessageDispatcher();
 
-    private MessageDispatcher() {}
+    private MessageDispatcher() {
+        final List<BlockingQueue<CSMessage>> laneQueues = new ArrayList<>();
+        this.lanes = new DispatchLane[CSKitchen.dispatchLanes];
+        for (int i = 0; i < lanes.length; i++) {
+            laneQueues.add(Helpers.createMessageQueue(CSKitchen.maxQueue));
+            this.lanes[i] = new DispatchLane(i, laneQueues.get(i));
+        }
+        this.mainQueue = lanes.length == 1 ? laneQueues.get(0) : new PartitionedMessageQueue(laneQueues);
+        metrics.gauge("Dispatcher.busDepth", mainQueue::size);
+        metrics.rate("Dispatcher.routedPerSecond", routed);
+    }
 
     public static MessageDispatcher getInstance() {
         return self;
@@ -37,84 +65,157 @@ public class MessageDispatcher implements Callable<Integer> {
 
     public void register(final IMessageHandler subscriber) {
         if (subscriber.getInQueue() != null) {
+            metrics.gauge(subscriber.getName() + ".queueDepth", subscriber.getInQueue()::size);
             this.consumer.add(subscriber);
+            for (MessageRoute route : subscriber.getRoutes()) {
+                final int[] subscribers = routeTable[route.ordinal()];
+                final int[] extended = Arrays.copyOf(subscribers, subscribers.length + 1);
+                extended[subscribers.length] = this.consumer.size() - 1;
+                routeTable[route.ordinal()] = extended;
+            }
         }
         subscriber.setOutQueue(this.mainQueue);
+        subscriber.setDemand(this::getDemand);
+        ControlPlane.getInstance().register(subscriber);
+    }
+
+    /**
+     * The demand of the downstream, limited by the room in the Message Bus,
+     * the credit of every active consumer, and the messages waiting for retry.
+     * @return Number of messages the downstream can accept now
+     */
+    public int getDemand() {
+        int demand = mainQueue.remainingCapacity();
+        for (IMessageHandler mh : this.consumer) {
+            if (mh.isAlive()) {
+                demand = Math.min(demand, mh.getCredit());
+            }
+        }
+        return Math.max(0, demand - retryScheduler.getPending());
     }
 
     @Override
     public Integer call() {
-        logger.info("Message Dispatcher start.");
-        Integer total = 0;
-        do {
-            try {
-                final CSMessage message = mainQueue.poll(1, TimeUnit.SECONDS);
-                if (message == null) {
-                    continue;
-                }
-                total++;
-                for (IMessageHandler mh : this.consumer) {
-                    try {
-                        if (mh.isAlive() && mh.filter(message)) {
-                            mh.getInQueue().add(message);
-                        }
-                    } catch (Exception e) {
-                        logger.error("Failed to handle {} , put to retry thread.", message);
-                        addRetryThread(mh, message);
-                    }
+        logger.info("Message Dispatcher start with {} lanes.", lanes.length);
+        int total = 0;
+        if (lanes.length == 1) {
+            total = lanes[0].call();
+        } else {
+            final AdmissionExecutor laneTPool = Helpers.createExecutor("Dispatch-Lane ",
+                    lanes.length - 1, CSKitchen.KEEP_ALIVE);
+            final List<Future<Integer>> laneRets = new ArrayList<>();
+            for (int i = 1; i < lanes.length; i++) {
+                laneRets.add(laneTPool.submit(lanes[i]));
+            }
+            total = lanes[0].call();
+            for (Future<Integer> laneRet : laneRets) {
+                try {
+                    total += laneRet.get();
+                } catch (Exception e) {
+                    logger.error("Dispatch lane caught: ", e);
                 }
-            } catch (Throwable e) {
-                logger.error("Message Dispatcher caught: ", e);
             }
-        } while (!stopSign.get());
+            laneTPool.shutdown();
+            laneTPool.printStatistics();
+        }
 
         logger.info("Message Dispatcher total dispatched {}, quiting...", total);
-
-        Future<Integer> ret;
-        final int interval = 1;
-        while (retryTPool.getCompletedTaskCount() < retryTPool.getTaskCount()) {
-            try {
-                ret = compServ.poll(interval, TimeUnit.SECONDS);
-                if (ret != null && ret.get() != 1) {
-                    logger.info("Message re-send failed, completed with {} .", ret.get());
-                }
-            } catch (Exception e) {
-                logger.info("Caught: ", e);
-            }
+        for (DispatchLane lane : lanes) {
+            logger.info("Dispatch lane {} dispatched {} ({}%), max queue depth {}.", lane.index, lane.dispatched,
+                    total == 0 ? 0 : lane.dispatched * 100 / total, lane.maxDepth);
         }
 
-        logger.info("Message Dispatcher re-send threads completed.");
+        try {
+            retryScheduler.awaitCompletion();
+        } catch (InterruptedException e) {
+            logger.info("Interrupted, {} message re-sending abandoned.", retryScheduler.getPending());
+        }
+        retryScheduler.printStatistics();
+        logger.info("Message Dispatcher re-sending completed.");
 
         return total;
     }
 
-    private void addRetryThread(final IMessageHandler mh, final CSMessage msgRetry) {
-        final ArrayBlockingQueue<CSMessage> outQueue = mh.getInQueue();
-
-        compServ.submit(() -> {
-            try {
-                for (int i = 0; i < CSKitchen.MSG_RETRY; i++)  {
-                    try {
-                        if (!mh.isAlive()) {
-                            throw new Exception("The message receiver is inactive, failed to re-send " + msgRetry);
-                        }
-                        outQueue.add(msgRetry);
-                        logger.info("Re-send message {} successfully.", msgRetry);
-                        break;
-                    } catch (Exception e) {
-                        logger.error("Failed to put message {} to queue {} times.", msgRetry, i);
-                        Thread.sleep((i + 1) * CSKitchen.THOUSAND);
-                    }
-                }
-                return 1;
-            } catch (Exception e) {
-                logger.info("Message dispatcher re-send message caught:", e);
-            }
-            return 0;
-        });
+    /**
+     * Hand a batch of messages over to a subscriber,
+     * the messages that can not be put to its queue are handed to the retry scheduler.
+     * @param mh The subscriber
+     * @param messages The batch of messages
+     */
+    private void deliver(final IMessageHandler mh, final List<CSMessage> messages) {
+        final int sent = Helpers.offerAll(mh.getInQueue(), messages);
+        for (int i = sent; i < messages.size(); i++) {
+            logger.error("Failed to handle {} , put to retry scheduler.", messages.get(i));
+            retryScheduler.retry(mh.getInQueue(), messages.get(i), mh::isAlive);
+        }
     }
 
     public static void stopDispatcher() {
         stopSign.set(true);
     }
+
+    /**
+     * A partition of the Message Bus with its own queue and dispatching thread.
+     * The counters are only updated by the lane thread.
+     */
+    private class DispatchLane implements Callable<Integer> {
+        private final int index;
+        private final BlockingQueue<CSMessage> queue;
+        private volatile long dispatched = 0L;
+        private volatile int maxDepth = 0;
+
+        DispatchLane(final int index, final BlockingQueue<CSMessage> queue) {
+            this.index = index;
+            this.queue = queue;
+        }
+
+        @Override
+        public Integer call() {
+            int total = 0;
+            final List<CSMessage> batch = new ArrayList<>(CSKitchen.batchSize);
+            final List<List<CSMessage>> outBatches = new ArrayList<>();
+            for (int i = 0; i < consumer.size(); i++) {
+                outBatches.add(new ArrayList<>(CSKitchen.batchSize));
+            }
+            do {
+                try {
+                    final CSMessage message = queue.poll(1, TimeUnit.SECONDS);
+                    if (message == null) {
+                        continue;
+                    }
+                    maxDepth = Math.max(maxDepth, queue.size() + 1);
+                    batch.add(message);
+                    queue.drainTo(batch, CSKitchen.batchSize - 1);
+                    total += batch.size();
+                    dispatched = total;
+                    routed.add(batch.size());
+
+                    // group the messages by subscriber, keep the order of the messages,
+                    // every subscriber gets its own reference, the one from the bus is released
+                    for (CSMessage msg : batch) {
+                        OrderTracer.trace(msg, Stage.ROUTE);
+                        MessageJournal.record(msg);
+                        for (int idx : routeTable[msg.getRoute().ordinal()]) {
+                            if (consumer.get(idx).isAlive()) {
+                                outBatches.get(idx).add(msg.retain());
+                            }
+                        }
+                        msg.release();
+                    }
+                    batch.clear();
+
+                    for (int idx = 0; idx < outBatches.size(); idx++) {
+                        final List<CSMessage> outBatch = outBatches.get(idx);
+                        if (!outBatch.isEmpty()) {
+                            deliver(consumer.get(idx), outBatch);
+                            outBatch.clear();
+                        }
+                    }
+                } catch (Throwable e) {
+                    logger.error("Message Dispatcher lane {} caught: ", index, e);
+                }
+            } while (!stopSign.get());
+            return total;
+        }
+    }
 }
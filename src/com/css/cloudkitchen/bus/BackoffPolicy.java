@@ -0,0 +1,35 @@
+package com.css.cloudkitchen.bus;
+
+/**
+ * Define how long to wait before the next retry of sending a message.
+ */
+public enum BackoffPolicy {
+    FIXED {
+        @Override
+        public long delayMillis(final int attempt) {
+            return BASE_MILLIS;
+        }
+    },
+    LINEAR {
+        @Override
+        public long delayMillis(final int attempt) {
+            return (attempt + 1) * BASE_MILLIS;
+        }
+    },
+    EXPONENTIAL {
+        @Override
+        public long delayMillis(final int attempt) {
+            return Math.min(MAX_MILLIS, BASE_MILLIS << Math.min(attempt, 16));
+        }
+    };
+
+    private static final long BASE_MILLIS = 1000L;
+    private static final long MAX_MILLIS = 30000L;
+
+    /**
+     * The delay before a retry.
+     * @param attempt Number of retries already failed, starts from 0
+     * @return The delay in milliseconds
+     */
+    public abstract long delayMillis(int attempt);
+}
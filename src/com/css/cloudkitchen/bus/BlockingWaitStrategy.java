@@ -0,0 +1,50 @@
+package com.css.cloudkitchen.bus;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Park the consumer on a lock condition, wake it up when a message is published.
+ * Producers only take the lock when the consumer is waiting, lowest CPU usage.
+ */
+public class BlockingWaitStrategy implements IWaitStrategy {
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private volatile boolean waiting = false;
+
+    @Override
+    public boolean await(final BooleanSupplier ready, final long timeoutNanos) throws InterruptedException {
+        if (ready.getAsBoolean()) {
+            return true;
+        }
+        long nanos = timeoutNanos;
+        lock.lockInterruptibly();
+        try {
+            waiting = true;
+            while (!ready.getAsBoolean()) {
+                if (nanos <= 0L) {
+                    return false;
+                }
+                nanos = notEmpty.awaitNanos(Math.min(nanos, TimeUnit.SECONDS.toNanos(1)));
+            }
+            return true;
+        } finally {
+            waiting = false;
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void signal() {
+        if (waiting) {
+            lock.lock();
+            try {
+                notEmpty.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package com.css.cloudkitchen.bus;
+
+import java.util.function.BooleanSupplier;
+
+/**
+ * Keep checking without giving up the CPU.
+ * Lowest wake-up latency, only suitable when every consumer has a core of its own.
+ */
+public class BusySpinWaitStrategy implements IWaitStrategy {
+
+    @Override
+    public boolean await(final BooleanSupplier ready, final long timeoutNanos) throws InterruptedException {
+        final long deadline = System.nanoTime() + timeoutNanos;
+        while (!ready.getAsBoolean()) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            if (System.nanoTime() - deadline >= 0L) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void signal() {
+    }
+}
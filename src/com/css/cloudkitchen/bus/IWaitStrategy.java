@@ -0,0 +1,26 @@
+package com.css.cloudkitchen.bus;
+
+import java.util.function.BooleanSupplier;
+
+/**
+ * Define how the consumer of a ring buffer waits for new messages.
+ * Different strategies trade CPU usage for wake-up latency.
+ */
+public interface IWaitStrategy {
+
+    /**
+     * For message consumer.
+     * Wait until the condition is met or the timeout elapses.
+     * @param ready The condition to wait for, e.g. a new message is published
+     * @param timeoutNanos Max time to wait in nanoseconds
+     * @return True if the condition is met
+     * @throws InterruptedException If interrupted while waiting
+     */
+    boolean await(BooleanSupplier ready, long timeoutNanos) throws InterruptedException;
+
+    /**
+     * For message producer.
+     * Wake up the waiting consumer after a message has been published.
+     */
+    void signal();
+}
@@ -0,0 +1,290 @@
+package com.css.cloudkitchen.bus;
+
+import com.css.cloudkitchen.message.CSCourier;
+import com.css.cloudkitchen.message.CSMessage;
+import com.css.cloudkitchen.message.CSOrder;
+import com.css.cloudkitchen.message.CSOrder.FoodOffering;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An append-only binary journal of the bus events, the persistent store of the Message Bus.
+ * Every event is a fixed-size record, written straight into a memory-mapped segment file, no copy and no lock:
+ * a writer claims the next record by an atomic increment, and writes the type byte last to commit the record.
+ * A full segment rolls over to the next file, the records of a segment are flushed by the OS,
+ * or forced to disk when the journal is closed, a closed journal rejects appending.
+ * The reader restores the orders and couriers of a recorded journal, e.g. to replay them through the strategies.
+ * Record layout, 40 bytes:
+ * 0 type, 1 food, 4 courier id, 8 create / dispatch / pickup time, 16 ready / arrive time or food wait,
+ * 24 order id, 32 arrive period or courier wait.
+ */
+public class MessageJournal {
+    private static final Logger logger = LoggerFactory.getLogger(MessageJournal.class);
+
+    public static final int RECORD_SIZE = 40;
+    public static final byte ORDER_NEW = 1;
+    public static final byte ORDER_READY = 2;
+    public static final byte COURIER_DISPATCHED = 3;
+    public static final byte COURIER_ARRIVED = 4;
+    public static final byte PICKED_UP = 5;
+    private static final String PREFIX = "journal-";
+    private static final String SUFFIX = ".dat";
+
+    private static volatile MessageJournal installed = null;
+
+    private final File dir;
+    private final int segmentRecords;
+    private final AtomicLong next = new AtomicLong(0L); // next record to be claimed
+    private final Map<Long, MappedByteBuffer> segments = new ConcurrentHashMap<>();
+    private volatile Segment current = new Segment(-1L, null);
+    private volatile boolean closed = false;
+
+    /**
+     * @param dir The directory of the segment files, the existing segments are overwritten
+     * @param segmentRecords Number of records per segment file
+     * @throws IOException If the directory can not be created
+     */
+    public MessageJournal(final File dir, final int segmentRecords) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create journal directory " + dir);
+        }
+        for (File old : listSegments(dir)) {
+            if (!old.delete()) {
+                throw new IOException("Unable to remove old journal segment " + old);
+            }
+        }
+        this.dir = dir;
+        this.segmentRecords = segmentRecords;
+    }
+
+    /**
+     * The installed journal.
+     * @return The journal, null if journaling is off
+     */
+    public static MessageJournal journal() {
+        return installed;
+    }
+
+    /**
+     * Turn the journaling on or off.
+     * @param journal The journal, null to turn it off
+     */
+    public static void install(final MessageJournal journal) {
+        installed = journal;
+    }
+
+    /**
+     * Append a message to the installed journal, if any.
+     * @param msg An order or a courier
+     */
+    public static void record(final CSMessage msg) {
+        final MessageJournal journal = installed;
+        if (journal != null) {
+            journal.append(msg);
+        }
+    }
+
+    /**
+     * Append a pickup to the installed journal, if any.
+     * @param order The order
+     * @param courier The courier
+     * @param timestamp The time of the pickup
+     * @param foodWait Time the food waited
+     * @param courierWait Time the courier waited
+     */
+    public static void recordPickup(final CSOrder order, final CSCourier courier, final long timestamp,
+                                    final long foodWait, final long courierWait) {
+        final MessageJournal journal = installed;
+        if (journal != null) {
+            journal.appendPickup(order, courier, timestamp, foodWait, courierWait);
+        }
+    }
+
+    /**
+     * Write a pickup as the next record.
+     * @param order The order
+     * @param courier The courier
+     * @param timestamp The time of the pickup
+     * @param foodWait Time the food waited
+     * @param courierWait Time the courier waited
+     */
+    public void appendPickup(final CSOrder order, final CSCourier courier, final long timestamp,
+                             final long foodWait, final long courierWait) {
+        checkOpen();
+        final long record = next.getAndIncrement();
+        final ByteBuffer buffer = segment(record);
+        final int pos = position(record);
+        buffer.putInt(pos + 4, courier.getCourierId());
+        buffer.putLong(pos + 8, timestamp);
+        buffer.putLong(pos + 16, foodWait);
+        buffer.putLong(pos + 24, order.getOrderId());
+        buffer.putLong(pos + 32, courierWait);
+        buffer.put(pos, PICKED_UP);
+    }
+
+    /**
+     * Write a message as the next record.
+     * @param msg An order or a courier
+     */
+    public void append(final CSMessage msg) {
+        checkOpen();
+        final long record = next.getAndIncrement();
+        final ByteBuffer buffer = segment(record);
+        final int pos = position(record);
+        final byte type;
+        if (msg instanceof CSOrder) {
+            final CSOrder order = (CSOrder) msg;
+            buffer.put(pos + 1, (byte) order.getFood().ordinal());
+            buffer.putLong(pos + 8, order.getCreateTime());
+            buffer.putLong(pos + 16, order.getReadyTime());
+            buffer.putLong(pos + 24, order.getOrderId());
+            type = order.isReady() ? ORDER_READY : ORDER_NEW;
+        } else {
+            final CSCourier courier = (CSCourier) msg;
+            buffer.putInt(pos + 4, courier.getCourierId());
+            buffer.putLong(pos + 8, courier.getDispatchTime());
+            buffer.putLong(pos + 16, courier.getArriveTime());
+            buffer.putLong(pos + 24, courier.getOrderPickedUp());
+            buffer.putInt(pos + 32, courier.getArrivePeriod());
+            type = courier.isArrived() ? COURIER_ARRIVED : COURIER_DISPATCHED;
+        }
+        buffer.put(pos, type); // commit
+    }
+
+    public long getRecords() {
+        return next.get();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Force the written records to disk, the journal can not be appended any more.
+     */
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (MappedByteBuffer buffer : segments.values()) {
+            buffer.force();
+        }
+        segments.clear();
+        current = new Segment(-1L, null);
+        logger.info("Journal {} closed, {} records written.", dir, next.get());
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("Journal " + dir + " is closed.");
+        }
+    }
+
+    private int position(final long record) {
+        return (int) (record % segmentRecords) * RECORD_SIZE;
+    }
+
+    private ByteBuffer segment(final long record) {
+        final long index = record / segmentRecords;
+        final Segment segment = current;
+        if (index == segment.index) {
+            return segment.buffer;
+        }
+        return roll(index);
+    }
+
+    /**
+     * Map the segment of a record, the first writer into a new segment maps its file.
+     * The segment two before the new one is forced, a slow writer may still be behind it,
+     * so its buffer is kept until the journal is closed instead of being mapped again.
+     * @param index The segment index
+     * @return The mapped segment
+     */
+    private synchronized MappedByteBuffer roll(final long index) {
+        checkOpen();
+        MappedByteBuffer buffer = segments.get(index);
+        if (buffer != null) {
+            return buffer;
+        }
+        final File file = new File(dir, String.format("%s%08d%s", PREFIX, index, SUFFIX));
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength((long) segmentRecords * RECORD_SIZE);
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, (long) segmentRecords * RECORD_SIZE);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to map journal segment " + file, e);
+        }
+        segments.put(index, buffer);
+        if (index > current.index) {
+            current = new Segment(index, buffer);
+            final MappedByteBuffer old = segments.get(index - 2);
+            if (old != null) {
+                old.force();
+            }
+        }
+        return buffer;
+    }
+
+    private static File[] listSegments(final File dir) {
+        final File[] files = dir.listFiles((d, name) -> name.startsWith(PREFIX) && name.endsWith(SUFFIX));
+        if (files == null) {
+            return new File[0];
+        }
+        Arrays.sort(files);
+        return files;
+    }
+
+    /**
+     * Read the orders and couriers of a recorded journal in the order they were written.
+     * The pickups and the records never committed are skipped.
+     * @param dir The directory of the segment files
+     * @return The restored messages
+     * @throws IOException If a segment can not be read
+     */
+    public static List<CSMessage> read(final File dir) throws IOException {
+        final List<CSMessage> messages = new ArrayList<>();
+        for (File file : listSegments(dir)) {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                final MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+                for (int pos = 0; pos + RECORD_SIZE <= buffer.limit(); pos += RECORD_SIZE) {
+                    final byte type = buffer.get(pos);
+                    if (type == ORDER_NEW || type == ORDER_READY) {
+                        messages.add(new CSOrder(buffer.getLong(pos + 24), FoodOffering.values()[buffer.get(pos + 1)],
+                                buffer.getLong(pos + 8), buffer.getLong(pos + 16)));
+                    } else if (type == COURIER_DISPATCHED || type == COURIER_ARRIVED) {
+                        messages.add(new CSCourier(buffer.getInt(pos + 4), buffer.getLong(pos + 24),
+                                buffer.getLong(pos + 8), buffer.getInt(pos + 32), buffer.getLong(pos + 16)));
+                    }
+                }
+            }
+        }
+        logger.info("Journal {} read, {} messages restored.", dir, messages.size());
+        return messages;
+    }
+
+    /**
+     * The segment being written, the index and the buffer are read together.
+     */
+    private static final class Segment {
+        private final long index;
+        private final MappedByteBuffer buffer;
+
+        Segment(final long index, final MappedByteBuffer buffer) {
+            this.index = index;
+            this.buffer = buffer;
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package com.css.cloudkitchen.bus;
+
+import com.css.cloudkitchen.message.CSMessage;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The producer side of a group of partitions ( lanes ).
+ * A message is put to the lane chosen by its partition key,
+ * so all messages about the same order go to the same lane and keep their order.
+ * Each lane is usually consumed by its own thread,
+ * a consumer of this queue takes from the lanes in turn, which keeps the order within a lane but not across lanes.
+ * The lanes have no common signal, so a blocking take polls them with a growing park in between.
+ */
+public class PartitionedMessageQueue extends AbstractQueue<CSMessage> implements BlockingQueue<CSMessage> {
+    private static final long MIN_PARK = TimeUnit.MICROSECONDS.toNanos(10);
+    private static final long MAX_PARK = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final List<BlockingQueue<CSMessage>> lanes;
+    private final AtomicInteger next = new AtomicInteger(0); // the lane to take from first
+
+    /**
+     * @param lanes The queues of the lanes
+     */
+    public PartitionedMessageQueue(final List<BlockingQueue<CSMessage>> lanes) {
+        if (lanes.isEmpty()) {
+            throw new IllegalArgumentException("No lane for partitioning");
+        }
+        this.lanes = Collections.unmodifiableList(new ArrayList<>(lanes));
+    }
+
+    /**
+     * Choose a partition for a message.
+     * @param msg The message
+     * @param count Number of partitions
+     * @return The index of the partition, in the range [0, count)
+     */
+    public static int partition(final CSMessage msg, final int count) {
+        final int h = msg.getPartitionKey() * 0x9E3779B9; // spread the key bits
+        return (int) (((h ^ (h >>> 16)) & 0xFFFFFFFFL) % count);
+    }
+
+    public BlockingQueue<CSMessage> getLane(final int idx) {
+        return lanes.get(idx);
+    }
+
+    public int getLaneCount() {
+        return lanes.size();
+    }
+
+    @Override
+    public boolean offer(final CSMessage msg) {
+        return lanes.get(partition(msg, lanes.size())).offer(msg);
+    }
+
+    @Override
+    public boolean offer(final CSMessage msg, final long timeout, final TimeUnit unit) throws InterruptedException {
+        return lanes.get(partition(msg, lanes.size())).offer(msg, timeout, unit);
+    }
+
+    @Override
+    public void put(final CSMessage msg) throws InterruptedException {
+        lanes.get(partition(msg, lanes.size())).put(msg);
+    }
+
+    /**
+     * The free space of the fullest lane, as a message may go to any of them.
+     * @return The remaining capacity
+     */
+    @Override
+    public int remainingCapacity() {
+        int remaining = Integer.MAX_VALUE;
+        for (BlockingQueue<CSMessage> lane : lanes) {
+            remaining = Math.min(remaining, lane.remainingCapacity());
+        }
+        return remaining;
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (BlockingQueue<CSMessage> lane : lanes) {
+            size += lane.size();
+        }
+        return size;
+    }
+
+    @Override
+    public CSMessage peek() {
+        for (BlockingQueue<CSMessage> lane : lanes) {
+            final CSMessage msg = lane.peek();
+            if (msg != null) {
+                return msg;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Iterator<CSMessage> iterator() {
+        final List<CSMessage> snapshot = new ArrayList<>();
+        for (BlockingQueue<CSMessage> lane : lanes) {
+            snapshot.addAll(lane);
+        }
+        return snapshot.iterator();
+    }
+
+    /**
+     * Take a message from the first lane not empty, starting from the lane after the last one taken from.
+     * @return The message, or null if every lane is empty
+     */
+    @Override
+    public CSMessage poll() {
+        final int start = next.get();
+        for (int i = 0; i < lanes.size(); i++) {
+            final int idx = (start + i) % lanes.size();
+            final CSMessage msg = lanes.get(idx).poll();
+            if (msg != null) {
+                next.set((idx + 1) % lanes.size());
+                return msg;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public CSMessage poll(final long timeout, final TimeUnit unit) throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        long park = MIN_PARK;
+        while (true) {
+            final CSMessage msg = poll();
+            if (msg != null) {
+                return msg;
+            }
+            final long remaining = deadline - System.nanoTime();
+            if (remaining <= 0L) {
+                return null;
+            }
+            LockSupport.parkNanos(Math.min(park, remaining));
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            park = Math.min(park * 2, MAX_PARK);
+        }
+    }
+
+    @Override
+    public CSMessage take() throws InterruptedException {
+        long park = MIN_PARK;
+        while (true) {
+            final CSMessage msg = poll();
+            if (msg != null) {
+                return msg;
+            }
+            LockSupport.parkNanos(park);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            park = Math.min(park * 2, MAX_PARK);
+        }
+    }
+
+    @Override
+    public int drainTo(final Collection<? super CSMessage> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Drain the lanes in turn, each lane in its own order.
+     */
+    @Override
+    public int drainTo(final Collection<? super CSMessage> c, final int maxElements) {
+        if (c == this) {
+            throw new IllegalArgumentException("Drain to itself");
+        }
+        final int start = next.get();
+        int drained = 0;
+        for (int i = 0; i < lanes.size() && drained < maxElements; i++) {
+            drained += lanes.get((start + i) % lanes.size()).drainTo(c, maxElements - drained);
+        }
+        next.set((start + 1) % lanes.size());
+        return drained;
+    }
+}
@@ -0,0 +1,150 @@
+package com.css.cloudkitchen.bus;
+
+import com.css.cloudkitchen.message.CSMessage;
+import com.css.cloudkitchen.timer.ITimer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Re-send the messages which could not be put to a full queue.
+ * Every retry is a timer task on the shared timing wheel, no thread waits for it.
+ * The number of pending retries is bounded, messages beyond the bound or out of retries are discarded.
+ */
+public class RetryScheduler {
+    private static final Logger logger = LoggerFactory.getLogger(RetryScheduler.class);
+
+    private final String name;
+    private final ITimer timer;
+    private final BackoffPolicy backoff;
+    private final int maxRetries;
+    private final int maxPending;
+
+    private final AtomicInteger pending = new AtomicInteger(0);
+    private final AtomicInteger peakPending = new AtomicInteger(0);
+    private final AtomicLong retried = new AtomicLong(0L);
+    private final AtomicLong resent = new AtomicLong(0L);
+    private final AtomicLong discarded = new AtomicLong(0L);
+
+    public RetryScheduler(final String name, final ITimer timer, final BackoffPolicy backoff,
+                          final int maxRetries, final int maxPending) {
+        this.name = name;
+        this.timer = timer;
+        this.backoff = backoff;
+        this.maxRetries = maxRetries;
+        this.maxPending = maxPending;
+    }
+
+    /**
+     * Schedule re-sending a message to a queue.
+     * @param queue The destination queue
+     * @param msg The message, its reference goes with it, released if discarded
+     * @param alive The state of the receiver, the message is discarded when it becomes inactive,
+     *              null if always active
+     * @return False if discarded because too many retries are pending
+     */
+    public boolean retry(final BlockingQueue<CSMessage> queue, final CSMessage msg, final BooleanSupplier alive) {
+        final int depth = pending.incrementAndGet();
+        if (depth > maxPending) {
+            pending.decrementAndGet();
+            discarded.incrementAndGet();
+            logger.error("{}: too many pending retries, message {} discarded.", name, msg);
+            msg.release();
+            return false;
+        }
+        peakPending.accumulateAndGet(depth, Math::max);
+        new RetryTask(queue, msg, alive).schedule();
+        return true;
+    }
+
+    public int getPending() {
+        return pending.get();
+    }
+
+    public int getPeakPending() {
+        return peakPending.get();
+    }
+
+    public long getRetried() {
+        return retried.get();
+    }
+
+    public long getDiscarded() {
+        return discarded.get();
+    }
+
+    /**
+     * Wait until all pending retries are done, either re-sent or discarded.
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public void awaitCompletion() throws InterruptedException {
+        while (pending.get() > 0) {
+            Thread.sleep(100);
+        }
+    }
+
+    /**
+     * Print statistics
+     */
+    public void printStatistics() {
+        logger.info("{}: retried {} times, re-sent {}, discarded {}, peak pending {}.",
+                name, retried.get(), resent.get(), discarded.get(), peakPending.get());
+    }
+
+    /**
+     * A message waiting on the timer for its next retry.
+     */
+    private class RetryTask implements Runnable {
+        private final BlockingQueue<CSMessage> queue;
+        private final CSMessage msg;
+        private final BooleanSupplier alive;
+        private int attempt = 0;
+
+        RetryTask(final BlockingQueue<CSMessage> queue, final CSMessage msg, final BooleanSupplier alive) {
+            this.queue = queue;
+            this.msg = msg;
+            this.alive = alive;
+        }
+
+        void schedule() {
+            timer.schedule(this, backoff.delayMillis(attempt), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void run() {
+            retried.incrementAndGet();
+            if (alive != null && !alive.getAsBoolean()) {
+                done(false, "The message receiver is inactive");
+                return;
+            }
+            if (queue.offer(msg)) {
+                done(true, null);
+                return;
+            }
+            attempt++;
+            if (attempt >= maxRetries) {
+                done(false, "All retries failed");
+                return;
+            }
+            logger.error("{}: failed to put message {} to queue {} times.", name, msg, attempt);
+            schedule();
+        }
+
+        private void done(final boolean success, final String reason) {
+            pending.decrementAndGet();
+            if (success) {
+                resent.incrementAndGet();
+                logger.info("{}: re-send message {} successfully.", name, msg);
+            } else {
+                discarded.incrementAndGet();
+                logger.error("{}: {}, message {} discarded.", name, reason, msg);
+                msg.release();
+            }
+        }
+    }
+}
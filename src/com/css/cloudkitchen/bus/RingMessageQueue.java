@@ -0,0 +1,230 @@
+package com.css.cloudkitchen.bus;
+
+import com.css.cloudkitchen.message.CSMessage;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+/**
+ * A lock-free, bounded, multi-producer / single-consumer message queue on a preallocated ring buffer.
+ * Producers claim a slot by a CAS on the tail sequence, and publish it by setting the slot sequence.
+ * The consumer reads the slots in sequence order, and releases them by moving the slot sequence one lap ahead.
+ * The capacity is rounded up to a power of 2.
+ * Only one thread may consume ( poll / take / drain ) the queue at a time.
+ */
+public class RingMessageQueue extends AbstractQueue<CSMessage> implements BlockingQueue<CSMessage> {
+    private static final long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private final int capacity;
+    private final int mask;
+    private final AtomicReferenceArray<CSMessage> slots;
+    // sequence of each slot, equals to the claiming sequence when free, claiming sequence + 1 when published
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong(0L); // next sequence to be claimed by producers
+    private volatile long head = 0L; // next sequence to be consumed, only moved by the consumer
+    private final IWaitStrategy waitStrategy;
+    private final BooleanSupplier readable = this::isReadable;
+
+    public RingMessageQueue(final int capacity, final IWaitStrategy waitStrategy) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Invalid capacity " + capacity);
+        }
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        this.capacity = size;
+        this.mask = size - 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        this.waitStrategy = waitStrategy;
+    }
+
+    @Override
+    public boolean offer(final CSMessage msg) {
+        if (msg == null) {
+            throw new NullPointerException();
+        }
+        long seq;
+        int idx;
+        while (true) {
+            seq = tail.get();
+            idx = (int) (seq & mask);
+            final long dif = sequences.get(idx) - seq;
+            if (dif == 0L) {
+                if (tail.compareAndSet(seq, seq + 1)) {
+                    break;
+                }
+            } else if (dif < 0L) {
+                return false; // full, the slot is not released by the consumer yet
+            }
+            // claimed by another producer, retry
+        }
+        slots.lazySet(idx, msg);
+        sequences.set(idx, seq + 1);
+        waitStrategy.signal();
+        return true;
+    }
+
+    /**
+     * Put a part of a batch of messages to the queue, claiming all their slots with a single CAS.
+     * @param messages The batch of messages
+     * @param from The index of the first message to put
+     * @return The number of messages been put, 0 if the queue is full
+     */
+    public int offerBatch(final List<CSMessage> messages, final int from) {
+        final int remaining = messages.size() - from;
+        if (remaining <= 0) {
+            return 0;
+        }
+        long seq;
+        int count;
+        while (true) {
+            seq = tail.get();
+            count = (int) Math.min(remaining, capacity - (seq - head));
+            if (count <= 0) {
+                return 0;
+            }
+            final long last = seq + count - 1;
+            if (sequences.get((int) (last & mask)) == last && tail.compareAndSet(seq, seq + count)) {
+                break;
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            final int idx = (int) ((seq + i) & mask);
+            slots.lazySet(idx, messages.get(from + i));
+            sequences.set(idx, seq + i + 1);
+        }
+        waitStrategy.signal();
+        return count;
+    }
+
+    @Override
+    public CSMessage poll() {
+        final long seq = head;
+        final int idx = (int) (seq & mask);
+        if (sequences.get(idx) != seq + 1) {
+            return null;
+        }
+        final CSMessage msg = slots.get(idx);
+        slots.lazySet(idx, null);
+        sequences.set(idx, seq + capacity);
+        head = seq + 1;
+        return msg;
+    }
+
+    @Override
+    public CSMessage poll(final long timeout, final TimeUnit unit) throws InterruptedException {
+        final CSMessage msg = poll();
+        if (msg != null || !waitStrategy.await(readable, unit.toNanos(timeout))) {
+            return msg;
+        }
+        return poll();
+    }
+
+    @Override
+    public CSMessage take() throws InterruptedException {
+        CSMessage msg;
+        while ((msg = poll()) == null) {
+            waitStrategy.await(readable, Long.MAX_VALUE);
+        }
+        return msg;
+    }
+
+    @Override
+    public void put(final CSMessage msg) throws InterruptedException {
+        while (!offer(msg)) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            LockSupport.parkNanos(PARK_NANOS);
+        }
+    }
+
+    @Override
+    public boolean offer(final CSMessage msg, final long timeout, final TimeUnit unit) throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!offer(msg)) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            if (System.nanoTime() - deadline >= 0L) {
+                return false;
+            }
+            LockSupport.parkNanos(PARK_NANOS);
+        }
+        return true;
+    }
+
+    @Override
+    public CSMessage peek() {
+        final long seq = head;
+        final int idx = (int) (seq & mask);
+        return sequences.get(idx) == seq + 1 ? slots.get(idx) : null;
+    }
+
+    @Override
+    public int size() {
+        final long size = tail.get() - head;
+        return (int) Math.max(0L, Math.min(capacity, size));
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return capacity - size();
+    }
+
+    @Override
+    public int drainTo(final Collection<? super CSMessage> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(final Collection<? super CSMessage> c, final int maxElements) {
+        int count = 0;
+        CSMessage msg;
+        while (count < maxElements && (msg = poll()) != null) {
+            c.add(msg);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * A weakly consistent snapshot of the published messages, removing is not supported.
+     * @return An iterator of the snapshot
+     */
+    @Override
+    public Iterator<CSMessage> iterator() {
+        final List<CSMessage> snapshot = new ArrayList<>();
+        final long end = tail.get();
+        for (long seq = head; seq < end; seq++) {
+            final int idx = (int) (seq & mask);
+            final CSMessage msg = slots.get(idx);
+            if (sequences.get(idx) != seq + 1 || msg == null) {
+                break;
+            }
+            snapshot.add(msg);
+        }
+        return Collections.unmodifiableList(snapshot).iterator();
+    }
+
+    private boolean isReadable() {
+        final long seq = head;
+        return sequences.get((int) (seq & mask)) == seq + 1;
+    }
+}
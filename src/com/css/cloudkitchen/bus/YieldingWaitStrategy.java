@@ -0,0 +1,35 @@
+package com.css.cloudkitchen.bus;
+
+import java.util.function.BooleanSupplier;
+
+/**
+ * Spin for a while, then yield the CPU between checks.
+ * Low wake-up latency, leaves the core to other threads when they need it.
+ */
+public class YieldingWaitStrategy implements IWaitStrategy {
+    private static final int SPIN_TRIES = 100;
+
+    @Override
+    public boolean await(final BooleanSupplier ready, final long timeoutNanos) throws InterruptedException {
+        final long deadline = System.nanoTime() + timeoutNanos;
+        int counter = SPIN_TRIES;
+        while (!ready.getAsBoolean()) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            if (counter > 0) {
+                counter--;
+                continue;
+            }
+            if (System.nanoTime() - deadline >= 0L) {
+                return false;
+            }
+            Thread.yield();
+        }
+        return true;
+    }
+
+    @Override
+    public void signal() {
+    }
+}
@@ -0,0 +1,90 @@
+package com.css.cloudkitchen.handler;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Learn the distribution of the courier arrival delay online, from the observed arrivals.
+ * The delays are counted in a histogram of fixed-width buckets, any thread can read it without a lock.
+ * While couriers are on the way, the short delays are observed first, so counting every arrival at once
+ * biases the estimate low ( right-censoring ).
+ * An arrival is only counted when every courier dispatched up to its dispatch time has surely arrived,
+ * i.e. the latest observed arrival is at least the max delay after its dispatch,
+ * so the histogram always holds complete dispatch cohorts.
+ * Until enough arrivals have been counted, the prior delay is the estimate.
+ */
+public class ArrivalEstimator {
+    private static final int BUCKET_MILLIS = 100;
+    private static final int BUCKETS = 600; // up to 60 seconds, longer delays are counted in the last bucket
+    private static final int MIN_SAMPLES = 10;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong samples = new AtomicLong(0L);
+    private final long priorMillis;
+    private final long maxDelayMillis;
+    // arrivals not counted yet, { dispatch time, delay } by dispatch time
+    private final PriorityQueue<long[]> pending = new PriorityQueue<>((a, b) -> Long.compare(a[0], b[0]));
+    private long latestArrival = Long.MIN_VALUE;
+
+    /**
+     * @param priorMillis The delay to estimate before enough arrivals have been counted
+     * @param maxDelayMillis The longest arrival delay, the arrivals are counted this long after their dispatch
+     */
+    public ArrivalEstimator(final long priorMillis, final long maxDelayMillis) {
+        this.priorMillis = priorMillis;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    /**
+     * Observe an arrival, it is counted when its dispatch cohort is complete.
+     * @param dispatchTime When the courier was dispatched
+     * @param arriveTime When the courier arrived
+     */
+    public synchronized void observe(final long dispatchTime, final long arriveTime) {
+        pending.add(new long[] {dispatchTime, arriveTime - dispatchTime});
+        latestArrival = Math.max(latestArrival, arriveTime);
+        final long resolved = latestArrival - maxDelayMillis;
+        while (!pending.isEmpty() && pending.peek()[0] <= resolved) {
+            final long delay = pending.poll()[1];
+            counts.incrementAndGet((int) Math.min(BUCKETS - 1, Math.max(0L, delay) / BUCKET_MILLIS));
+            samples.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return Number of the arrivals counted
+     */
+    public long getSamples() {
+        return samples.get();
+    }
+
+    /**
+     * Estimate a quantile of the arrival delay.
+     * @param quantile The quantile, in the range [0, 1]
+     * @return The middle of the bucket holding the quantile, in milliseconds
+     */
+    public long estimate(final double quantile) {
+        final long total = samples.get();
+        if (total < MIN_SAMPLES) {
+            return priorMillis;
+        }
+        final long rank = Math.max(1L, (long) Math.ceil(quantile * total));
+        long seen = 0L;
+        for (int idx = 0; idx < BUCKETS; idx++) {
+            seen += counts.get(idx);
+            if (seen >= rank) {
+                return (long) idx * BUCKET_MILLIS + BUCKET_MILLIS / 2;
+            }
+        }
+        return (long) BUCKETS * BUCKET_MILLIS;
+    }
+
+    /**
+     * The median arrival delay, it minimizes the expected time between the food ready and the courier arrival.
+     * @return The estimated median in milliseconds
+     */
+    public long getMedian() {
+        return estimate(0.5);
+    }
+}
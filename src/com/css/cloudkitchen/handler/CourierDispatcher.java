@@ -1,19 +1,36 @@
 package com.css.cloudkitchen.handler;
 
 import com.css.cloudkitchen.CSKitchen;
+import com.css.cloudkitchen.Helpers;
+import com.css.cloudkitchen.bus.RetryScheduler;
+import com.css.cloudkitchen.message.CSControl;
 import com.css.cloudkitchen.message.CSCourier;
 import com.css.cloudkitchen.message.CSMessage;
 import com.css.cloudkitchen.message.CSOrder;
+import com.css.cloudkitchen.message.MessageRoute;
+import com.css.cloudkitchen.metrics.MetricsRegistry;
+import com.css.cloudkitchen.metrics.OrderTracer;
+import com.css.cloudkitchen.metrics.OrderTracer.Stage;
+import com.css.cloudkitchen.output.EventOutput;
+import com.css.cloudkitchen.timer.Timers;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.EnumSet;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.IntSupplier;
 
 /**
  * Both message consumer and producer.
  * Get Order message from message bus, dispatch the order to a courier,
+ * In predictive mode, the dispatch is delayed on the shared timer,
+ * so the courier is expected to arrive when the food is ready, the expected arrival delay is learned online.
  * Exit when all orders have been handled.
  * Return the total number of courier been dispatched.
  */
@@ -21,25 +38,92 @@ public class CourierDispatcher implements IMessageHandler, Callable<Integer> {
     private static final Logger logger = LoggerFactory.getLogger(CourierDispatcher.class);
 
     private boolean alive = false;
-    private ArrayBlockingQueue<CSMessage> mainQueue = null;
-    private final ArrayBlockingQueue<CSMessage> courierQueue = new ArrayBlockingQueue<>(CSKitchen.maxQueue);
+    private BlockingQueue<CSMessage> mainQueue = null;
+    private final BlockingQueue<CSMessage> courierQueue = Helpers.createMessageQueue(CSKitchen.maxQueue);
+    private final AtomicInteger scheduled = new AtomicInteger(0); // dispatches waiting on the timer
+    private final RetryScheduler retryScheduler = Helpers.createRetryScheduler("Dispatch-Courier-Retry");
+    private final Queue<CSControl> controls = new ConcurrentLinkedQueue<>(); // taken by the handler thread
+    private ArrivalEstimator estimator = null;
+    private final Consumer<CSOrder> dispatchTask = this::dispatchLater; // shared by all timer tasks
 
     public CourierDispatcher() {
+        MetricsRegistry.getInstance().gauge(getName() + ".scheduled", scheduled::get);
+    }
+
+    /**
+     * Dispatch the couriers in predictive mode.
+     * @param estimator The estimator of the arrival delay, shared with the CourierRunner
+     */
+    public void setEstimator(final ArrivalEstimator estimator) {
+        this.estimator = estimator;
     }
 
     @Override
-    public ArrayBlockingQueue<CSMessage> getInQueue() {
+    public BlockingQueue<CSMessage> getInQueue() {
         return courierQueue;
     }
 
     @Override
-    public void setOutQueue(final ArrayBlockingQueue<CSMessage> outQueue) {
+    public void setOutQueue(final BlockingQueue<CSMessage> outQueue) {
         mainQueue = outQueue;
     }
 
     @Override
     public boolean filter(final CSMessage csMessage) {
-        return csMessage.hasCommand() || (csMessage instanceof CSOrder && !((CSOrder) csMessage).isReady());
+        return csMessage instanceof CSOrder && !((CSOrder) csMessage).isReady();
+    }
+
+    @Override
+    public boolean onMessage(final CSMessage csMessage) throws InterruptedException {
+        final CSOrder order = (CSOrder) csMessage;
+        if (estimator != null) {
+            final long delay = Math.max(0L, order.getPrepTime() * (long) CSKitchen.THOUSAND - estimator.getMedian());
+            scheduled.incrementAndGet();
+            Timers.timer().schedule(dispatchTask, order, delay, TimeUnit.MILLISECONDS);
+            return true;
+        }
+        final CSCourier courier = CSCourier.dispatch(CSKitchen.COURIER_START, CSKitchen.COURIER_END,
+                order.getOrderId());
+        order.release();
+        OrderTracer.trace(courier, Stage.COURIER_DISPATCH);
+        if (!mainQueue.offer(courier.retain(), CSKitchen.PUBLISH_WAIT, TimeUnit.SECONDS)) {
+            logger.error("No room in queue, {} discarded.", courier);
+            courier.release();
+        }
+        EventOutput.output().courierDispatched(courier);
+        courier.release();
+        return true;
+    }
+
+    /**
+     * Runs on the timer thread when a predictive dispatch is due, send the courier to message bus.
+     * @param order The order
+     */
+    private void dispatchLater(final CSOrder order) {
+        final CSCourier courier = CSCourier.dispatch(CSKitchen.COURIER_START, CSKitchen.COURIER_END,
+                order.getOrderId());
+        order.release();
+        OrderTracer.trace(courier, Stage.COURIER_DISPATCH);
+        if (!mainQueue.offer(courier.retain())) {
+            retryScheduler.retry(mainQueue, courier, null);
+        }
+        scheduled.decrementAndGet();
+        EventOutput.output().courierDispatched(courier);
+        courier.release();
+    }
+
+    @Override
+    public EnumSet<MessageRoute> getRoutes() {
+        return EnumSet.of(MessageRoute.ORDER_NEW);
+    }
+
+    @Override
+    public int getCredit() {
+        return courierQueue.remainingCapacity();
+    }
+
+    @Override
+    public void setDemand(final IntSupplier demand) {
     }
 
     @Override
@@ -47,6 +131,11 @@ public class CourierDispatcher implements IMessageHandler, Callable<Integer> {
         return alive;
     }
 
+    @Override
+    public void control(final CSControl control) {
+        controls.offer(control);
+    }
+
     @Override
     public Integer call() {
 
@@ -57,50 +146,56 @@ public class CourierDispatcher implements IMessageHandler, Callable<Integer> {
         boolean runState = true;
         int grace = CSKitchen.GRACE_TIME;
 
-        while (runState || counter < total) {
-
-            if (!runState) {
-                grace--;
-                if (grace < 0) {
+        while (true) {
+            try {
+                for (CSControl control = controls.poll(); control != null; control = controls.poll()) {
+                    if (control.getType() == CSControl.Type.EXIT) {
+                        runState = false;
+                        total = control.getValue();
+                        logger.info("Get exit control, total {} orders, CourierDispatcher is quiting...", total);
+                    } else if (control.getType() == CSControl.Type.SNAPSHOT) {
+                        logger.info("CourierDispatcher handled {} orders, {} dispatches scheduled.",
+                                counter, scheduled.get());
+                    }
+                }
+                if (!runState && (counter >= total || grace < 0)) {
                     break;
                 }
-            }
 
-            try {
                 final CSMessage msg = courierQueue.poll(1, TimeUnit.SECONDS);
-                if (msg == null || !filter(msg)) {
+                if (msg == null) {
+                    if (!runState) {
+                        grace--;
+                    }
                     continue;
                 }
-                if (msg.hasCommand()) {
-                    if (msg.getCommand().startsWith(CSKitchen.CMD_EXIT)) {
-                        runState = false;
-                        total = Integer.parseInt(msg.getCommandOption());
-                        logger.info("Get exit command, total {} orders, CourierDispatcher is quiting...", total);
-                        continue;
-                    }
+                if (!filter(msg)) {
+                    msg.release();
+                    continue;
                 }
-                final CSCourier courier = new CSCourier(CSKitchen.COURIER_START, CSKitchen.COURIER_END);
-                courier.setOrderPickedUp(((CSOrder) msg).getOrderId());
-                for (int i = 0; i < CSKitchen.MSG_RETRY; i++) {
-                    try {
-                        mainQueue.add(courier);
-                        break;
-                    } catch (Exception e) {
-                        logger.error("Failed to put to queue {} times, caught:", i, e);
-                        Thread.sleep((i + 1) * CSKitchen.THOUSAND);
-                    }
+                if (onMessage(msg)) {
+                    counter++;
                 }
-                String logMsg2 = courier.getName() + " dispatched at " + courier.getDispatchTime()
-                        + ", will arrive in " + courier.getArrivePeriod() + "s.";
-                System.out.println(logMsg2);
-                logger.info(logMsg2 + "\n" + courier);
-                counter++;
             } catch (Exception e) {
                 logger.error("Courier catch: ", e);
             }
         }
         this.alive = false;
 
+        if (estimator != null) {
+            try {
+                while (scheduled.get() > 0) {
+                    Thread.sleep(100);
+                }
+                retryScheduler.awaitCompletion();
+            } catch (InterruptedException e) {
+                logger.info("Interrupted, {} couriers not dispatched yet.", scheduled.get());
+            }
+            retryScheduler.printStatistics();
+            logger.info("Predictive dispatch, median arrival delay {} ms from {} arrivals.",
+                    estimator.getMedian(), estimator.getSamples());
+        }
+
         return counter;
     }
 }
\ No newline at end of file
@@ -2,22 +2,34 @@ package com.css.cloudkitchen.handler;
 
 import com.css.cloudkitchen.CSKitchen;
 import com.css.cloudkitchen.Helpers;
+import com.css.cloudkitchen.bus.RetryScheduler;
+import com.css.cloudkitchen.message.CSControl;
 import com.css.cloudkitchen.message.CSCourier;
 import com.css.cloudkitchen.message.CSMessage;
+import com.css.cloudkitchen.message.MessageRoute;
+import com.css.cloudkitchen.metrics.MetricsRegistry;
+import com.css.cloudkitchen.metrics.OrderTracer;
+import com.css.cloudkitchen.metrics.OrderTracer.Stage;
+import com.css.cloudkitchen.output.EventOutput;
+import com.css.cloudkitchen.strategy.StrategyRendezvous;
+import com.css.cloudkitchen.timer.Timers;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.EnumSet;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Callable;
-import java.util.concurrent.Future;
-import java.util.concurrent.ExecutorCompletionService;
-import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.IntSupplier;
 
 /**
  * Both message consumer and producer.
  * Get Courier message from message bus,
- * create a thread to simulate courier arrival.
+ * start a timer on the shared timing wheel to simulate courier arrival.
  * After courier arrival, send Courier message to message bus.
  * Exit when all orders have been handled.
  * Return the total number of couriers been handled.
@@ -26,29 +38,70 @@ public class CourierRunner implements IMessageHandler, Callable<Integer> {
     private static final Logger logger = LoggerFactory.getLogger(CourierRunner.class);
 
     private boolean alive = false;
-    private ArrayBlockingQueue<CSMessage> mainQueue = null;
-    private final ArrayBlockingQueue<CSMessage> courierQueue = new ArrayBlockingQueue<>(CSKitchen.maxQueue);
-    private final ThreadPoolExecutor courierTPool;
-    private final ExecutorCompletionService<Integer> compServ;
+    private BlockingQueue<CSMessage> mainQueue = null;
+    private final BlockingQueue<CSMessage> courierQueue = Helpers.createMessageQueue(CSKitchen.maxQueue);
+    private final AtomicInteger running = new AtomicInteger(0); // couriers on the way
+    private final RetryScheduler retryScheduler = Helpers.createRetryScheduler("Courier-Retry");
+    private final Queue<CSControl> controls = new ConcurrentLinkedQueue<>(); // taken by the handler thread
+    private StrategyRendezvous rendezvous = null;
+    private ArrivalEstimator estimator = null;
+    private final Consumer<CSCourier> arriveTask = this::arrive; // shared by all timer tasks, nothing captured
 
     public CourierRunner() {
-        courierTPool = Helpers.createConstraintPool("Courier ", CSKitchen.maxQueue, CSKitchen.KEEP_ALIVE);
-        compServ = new ExecutorCompletionService<>(courierTPool);
+        MetricsRegistry.getInstance().gauge(getName() + ".running", running::get);
+    }
+
+    /**
+     * Report the observed arrival delays for the predictive dispatch.
+     * @param estimator The estimator of the arrival delay, shared with the CourierDispatcher
+     */
+    public void setEstimator(final ArrivalEstimator estimator) {
+        this.estimator = estimator;
+    }
+
+    /**
+     * Meet the orders at a rendezvous directly when the courier arrives, skipping the matcher stage.
+     * @param rendezvous The rendezvous shared with the FoodCooker
+     */
+    public void setRendezvous(final StrategyRendezvous rendezvous) {
+        this.rendezvous = rendezvous;
     }
 
     @Override
-    public ArrayBlockingQueue<CSMessage> getInQueue() {
+    public BlockingQueue<CSMessage> getInQueue() {
         return courierQueue;
     }
 
     @Override
-    public void setOutQueue(final ArrayBlockingQueue<CSMessage> outQueue) {
+    public void setOutQueue(final BlockingQueue<CSMessage> outQueue) {
         mainQueue = outQueue;
     }
 
     @Override
     public boolean filter(final CSMessage csMessage) {
-        return csMessage.hasCommand() || (csMessage instanceof CSCourier && !((CSCourier) csMessage).isArrived());
+        return csMessage instanceof CSCourier && !((CSCourier) csMessage).isArrived();
+    }
+
+    @Override
+    public boolean onMessage(final CSMessage csMessage) {
+        final CSCourier courier = (CSCourier) csMessage;
+        running.incrementAndGet();
+        Timers.timer().schedule(arriveTask, courier, courier.getArrivePeriod(), TimeUnit.SECONDS);
+        return true;
+    }
+
+    @Override
+    public EnumSet<MessageRoute> getRoutes() {
+        return EnumSet.of(MessageRoute.COURIER_DISPATCHED);
+    }
+
+    @Override
+    public int getCredit() {
+        return courierQueue.remainingCapacity();
+    }
+
+    @Override
+    public void setDemand(final IntSupplier demand) {
     }
 
     @Override
@@ -56,6 +109,11 @@ public class CourierRunner implements IMessageHandler, Callable<Integer> {
         return alive;
     }
 
+    @Override
+    public void control(final CSControl control) {
+        controls.offer(control);
+    }
+
     @Override
     public Integer call() {
 
@@ -66,71 +124,77 @@ public class CourierRunner implements IMessageHandler, Callable<Integer> {
         boolean runState = true;
         int grace = CSKitchen.GRACE_TIME;
 
-        while (runState || counter < total) {
-
-            if (!runState) {
-                grace--;
-                if (grace < 0) {
+        while (true) {
+            try {
+                for (CSControl control = controls.poll(); control != null; control = controls.poll()) {
+                    if (control.getType() == CSControl.Type.EXIT) {
+                        runState = false;
+                        total = control.getValue();
+                        logger.info("Get exit control, total {} orders, CourierRunner is quiting...", total);
+                    } else if (control.getType() == CSControl.Type.SNAPSHOT) {
+                        logger.info("CourierRunner handled {} couriers, {} on the way.", counter, running.get());
+                    }
+                }
+                if (!runState && (counter >= total || grace < 0)) {
                     break;
                 }
-            }
 
-            try {
                 final CSMessage msg = courierQueue.poll(1, TimeUnit.SECONDS);
-                if (msg == null || !filter(msg)) {
+                if (msg == null) {
+                    if (!runState) {
+                        grace--;
+                    }
                     continue;
                 }
-                if (msg.hasCommand()) {
-                    if (msg.getCommand().startsWith(CSKitchen.CMD_EXIT)) {
-                        runState = false;
-                        total = Integer.parseInt(msg.getCommandOption());
-                        logger.info("Get exit command, total {} orders, CourierRunner is quiting...", total);
-                        continue;
-                    }
+                if (!filter(msg)) {
+                    msg.release();
+                    continue;
+                }
+                if (onMessage(msg)) {
+                    counter++;
                 }
-                compServ.submit(() -> {
-                    try {
-                        Thread.sleep((long) ((CSCourier)msg).getArrivePeriod() * CSKitchen.THOUSAND);
-                        ((CSCourier) msg).setArriveTime(System.currentTimeMillis());
-                        for (int i = 0; i < CSKitchen.MSG_RETRY; i++) {
-                            try {
-                                mainQueue.add(msg);
-                                break;
-                            } catch (Exception e) {
-                                logger.error("Failed to put to queue {} times, caught:", i, e);
-                                Thread.sleep((i + 1) * CSKitchen.THOUSAND);
-                            }
-                        }
-                        String logMsg1 = ((CSCourier) msg).getName() + " arrived at "
-                                + ((CSCourier) msg).getArriveTime();
-                        System.out.println(logMsg1);
-                        logger.info(logMsg1);
-                        return 1;
-                    } catch (Exception e) {
-                        logger.info("Courier arriving caught:", e);
-                    }
-                    return 0;
-                });
-                counter++;
             } catch (Exception e) {
                 logger.error("CourierRunner catch: ", e);
             }
         }
         this.alive = false;
 
-        Future<Integer> ret;
-        final int interval = 1;
-        while (courierTPool.getCompletedTaskCount() < courierTPool.getTaskCount()) {
-            try {
-                ret = compServ.poll(interval, TimeUnit.SECONDS);
-                if (ret != null && ret.get() != 1) {
-                    logger.info("Courier arriving failed, completed with {} .", ret.get());
-                }
-            } catch (Exception e) {
-                logger.info("Caught: ", e);
+        try {
+            while (running.get() > 0) {
+                Thread.sleep(100);
             }
+            retryScheduler.awaitCompletion();
+        } catch (InterruptedException e) {
+            logger.info("Interrupted, {} couriers still on the way.", running.get());
         }
+        retryScheduler.printStatistics();
 
         return counter;
     }
-}
\ No newline at end of file
+
+    /**
+     * Runs on the timer thread when the courier arrives, send the arrived courier to message bus,
+     * and meet its order at the rendezvous if there is one.
+     * The reference of the dispatched courier is released, the one of the arrived courier goes to the rendezvous.
+     * @param courier The courier
+     */
+    private void arrive(final CSCourier courier) {
+        final CSCourier arrived = courier.arrived(Timers.clock().currentTimeMillis());
+        courier.release();
+        OrderTracer.trace(arrived, Stage.ARRIVE);
+        if (!mainQueue.offer(arrived.retain())) {
+            retryScheduler.retry(mainQueue, arrived, null);
+        }
+        running.decrementAndGet();
+        if (estimator != null) {
+            estimator.observe(arrived.getDispatchTime(), arrived.getArriveTime());
+        }
+
+        EventOutput.output().courierArrived(arrived);
+        if (rendezvous != null) {
+            rendezvous.apply(arrived);
+        } else {
+            arrived.release();
+        }
+    }
+}
@@ -2,22 +2,34 @@ package com.css.cloudkitchen.handler;
 
 import com.css.cloudkitchen.CSKitchen;
 import com.css.cloudkitchen.Helpers;
+import com.css.cloudkitchen.bus.RetryScheduler;
+import com.css.cloudkitchen.message.CSControl;
 import com.css.cloudkitchen.message.CSMessage;
 import com.css.cloudkitchen.message.CSOrder;
+import com.css.cloudkitchen.message.MessageRoute;
+import com.css.cloudkitchen.metrics.MetricsRegistry;
+import com.css.cloudkitchen.metrics.OrderTracer;
+import com.css.cloudkitchen.metrics.OrderTracer.Stage;
+import com.css.cloudkitchen.output.EventOutput;
+import com.css.cloudkitchen.strategy.StrategyRendezvous;
+import com.css.cloudkitchen.timer.Timers;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.EnumSet;
+import java.util.Queue;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.Future;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.IntSupplier;
 
 /**
  * Both message consumer and producer.
  * Get Order message from message bus,
- * create a thread to simulate preparing the food.
+ * start a timer on the shared timing wheel to simulate preparing the food.
  * After food is ready, send Order message to message bus.
  * Exit when all orders have been handled.
  * Return the total number of orders been handled.
@@ -26,29 +38,62 @@ public class FoodCooker implements IMessageHandler, Callable<Integer> {
     private static final Logger logger = LoggerFactory.getLogger(FoodCooker.class);
 
     private boolean alive = false;
-    private ArrayBlockingQueue<CSMessage> mainQueue = null;
-    private final ArrayBlockingQueue<CSMessage> foodQueue = new ArrayBlockingQueue<>(CSKitchen.maxQueue);
-    private final ThreadPoolExecutor cookTPool;
-    private final ExecutorCompletionService<Integer> compServ;
+    private BlockingQueue<CSMessage> mainQueue = null;
+    private final BlockingQueue<CSMessage> foodQueue = Helpers.createMessageQueue(CSKitchen.maxQueue);
+    private final AtomicInteger cooking = new AtomicInteger(0); // orders waiting for the food to be ready
+    private final RetryScheduler retryScheduler = Helpers.createRetryScheduler("Cooker-Retry");
+    private final Queue<CSControl> controls = new ConcurrentLinkedQueue<>(); // taken by the handler thread
+    private StrategyRendezvous rendezvous = null;
+    private final Consumer<CSOrder> readyTask = this::ready; // shared by all timer tasks, nothing captured
 
     public FoodCooker() {
-        cookTPool = Helpers.createConstraintPool("Cooker ", CSKitchen.maxQueue, CSKitchen.KEEP_ALIVE);
-        compServ = new ExecutorCompletionService<>(cookTPool);
+        MetricsRegistry.getInstance().gauge(getName() + ".cooking", cooking::get);
+    }
+
+    /**
+     * Meet the couriers at a rendezvous directly when the food is ready, skipping the matcher stage.
+     * @param rendezvous The rendezvous shared with the CourierRunner
+     */
+    public void setRendezvous(final StrategyRendezvous rendezvous) {
+        this.rendezvous = rendezvous;
     }
 
     @Override
-    public ArrayBlockingQueue<CSMessage> getInQueue() {
+    public BlockingQueue<CSMessage> getInQueue() {
         return foodQueue;
     }
 
     @Override
-    public void setOutQueue(final ArrayBlockingQueue<CSMessage> outQueue) {
+    public void setOutQueue(final BlockingQueue<CSMessage> outQueue) {
         mainQueue = outQueue;
     }
 
     @Override
     public boolean filter(final CSMessage csMessage) {
-        return  (csMessage.hasCommand() || (csMessage instanceof CSOrder && !((CSOrder) csMessage).isReady()));
+        return csMessage instanceof CSOrder && !((CSOrder) csMessage).isReady();
+    }
+
+    @Override
+    public boolean onMessage(final CSMessage csMessage) {
+        final CSOrder order = (CSOrder) csMessage;
+        OrderTracer.trace(order, Stage.COOK_START);
+        cooking.incrementAndGet();
+        Timers.timer().schedule(readyTask, order, order.getPrepTime(), TimeUnit.SECONDS);
+        return true;
+    }
+
+    @Override
+    public EnumSet<MessageRoute> getRoutes() {
+        return EnumSet.of(MessageRoute.ORDER_NEW);
+    }
+
+    @Override
+    public int getCredit() {
+        return foodQueue.remainingCapacity();
+    }
+
+    @Override
+    public void setDemand(final IntSupplier demand) {
     }
 
     @Override
@@ -56,6 +101,11 @@ public class FoodCooker implements IMessageHandler, Callable<Integer> {
         return alive;
     }
 
+    @Override
+    public void control(final CSControl control) {
+        controls.offer(control);
+    }
+
     @Override
     public Integer call() {
 
@@ -67,72 +117,74 @@ public class FoodCooker implements IMessageHandler, Callable<Integer> {
         int grace = CSKitchen.GRACE_TIME;
         boolean runState = true;
 
-        while (runState || counter < total) {
-
-            if (!runState) {
-                grace--;
-                if (grace < 0) {
+        while (true) {
+            try {
+                for (CSControl control = controls.poll(); control != null; control = controls.poll()) {
+                    if (control.getType() == CSControl.Type.EXIT) {
+                        runState = false;
+                        total = control.getValue();
+                        logger.info("Get exit control, total {} orders, Cooker is quiting...", total);
+                    } else if (control.getType() == CSControl.Type.SNAPSHOT) {
+                        logger.info("Cooker handled {} orders, {} cooking.", counter, cooking.get());
+                    }
+                }
+                if (!runState && (counter >= total || grace < 0)) {
                     break;
                 }
-            }
 
-            try {
                 final CSMessage msg = foodQueue.poll(1, TimeUnit.SECONDS);
-                if (msg == null || !filter(msg)) {
+                if (msg == null) {
+                    if (!runState) {
+                        grace--;
+                    }
                     continue;
                 }
-                if (msg.hasCommand()) {
-                    if (msg.getCommand().startsWith(CSKitchen.CMD_EXIT)) {
-                        runState = false;
-                        total = Integer.parseInt(msg.getCommandOption());
-                        logger.info("Get exit command, total {} orders, Cooker is quiting...", total);
-                        continue;
-                    }
+                if (!filter(msg)) {
+                    msg.release();
+                    continue;
+                }
+                if (onMessage(msg)) {
+                    counter++;
                 }
-                final CSOrder order = (CSOrder) msg;
-                compServ.submit(() -> {
-                    try {
-                        Thread.sleep((long) order.getPrepTime() * CSKitchen.THOUSAND);
-                        order.setReadyTime(System.currentTimeMillis());
-                        for (int i = 0; i < CSKitchen.MSG_RETRY; i++)  {
-                            try {
-                                mainQueue.add(order);
-                                break;
-                            } catch (Exception e) {
-                                logger.error("Failed to put to queue {} times, caught:", i, e);
-                                Thread.sleep((i + 1) * CSKitchen.THOUSAND);
-                            }
-                        }
-
-                        String log = "Order " + order.getOrderId() + " prepared at " + order.getReadyTime();
-                        System.out.println(log);
-                        logger.info(log);
-                        return 1;
-                    } catch (Exception e) {
-                        logger.info("Cooker cooking caught:", e);
-                    }
-                    return 0;
-                });
-                counter++;
             } catch (Exception e) {
                 logger.error("Cooker catch: ", e);
             }
         }
         this.alive = false;
 
-        Future<Integer> ret;
-        final int interval = 1;
-        while (this.cookTPool.getCompletedTaskCount() < this.cookTPool.getTaskCount()) {
-            try {
-                ret = this.compServ.poll(interval, TimeUnit.SECONDS);
-                if (ret != null && ret.get() != 1) {
-                    logger.info("Food cooker failed, completed with {} .", ret.get());
-                }
-            } catch (Exception e) {
-                logger.info("Caught: ", e);
+        try {
+            while (cooking.get() > 0) {
+                Thread.sleep(100);
             }
+            retryScheduler.awaitCompletion();
+        } catch (InterruptedException e) {
+            logger.info("Interrupted, {} orders still cooking.", cooking.get());
         }
+        retryScheduler.printStatistics();
 
         return counter;
     }
+
+    /**
+     * Runs on the timer thread when the food is ready, send the ready order to message bus,
+     * and meet its courier at the rendezvous if there is one.
+     * The reference of the new order is released, the one of the ready order goes to the rendezvous.
+     * @param order The order
+     */
+    private void ready(final CSOrder order) {
+        final CSOrder readyOrder = order.ready(Timers.clock().currentTimeMillis());
+        order.release();
+        OrderTracer.trace(readyOrder, Stage.COOK_FINISH);
+        if (!mainQueue.offer(readyOrder.retain())) {
+            retryScheduler.retry(mainQueue, readyOrder, null);
+        }
+        cooking.decrementAndGet();
+
+        EventOutput.output().foodReady(readyOrder);
+        if (rendezvous != null) {
+            rendezvous.apply(readyOrder);
+        } else {
+            readyOrder.release();
+        }
+    }
 }
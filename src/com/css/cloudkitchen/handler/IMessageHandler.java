@@ -1,8 +1,12 @@
 package com.css.cloudkitchen.handler;
 
+import com.css.cloudkitchen.message.CSControl;
 import com.css.cloudkitchen.message.CSMessage;
+import com.css.cloudkitchen.message.MessageRoute;
 
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.EnumSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.IntSupplier;
 
 /**
  * Define interface for message handler.
@@ -14,10 +18,10 @@ public interface IMessageHandler {
     /**
      * For message consumer.
      * The In-Queue is the message source to be consumed.
-     * The message handler gets messages from this queue.
+     * The message handler gets messages from this queue, it is the only consumer of the queue.
      * @return a reference to a Message Queue
      */
-    ArrayBlockingQueue<CSMessage> getInQueue();
+    BlockingQueue<CSMessage> getInQueue();
 
     /**
      * For message producer.
@@ -25,7 +29,7 @@ public interface IMessageHandler {
      * The message handler puts messages to this queue.
      * @param outQueue An instance of a Message Queue
      */
-    void setOutQueue(ArrayBlockingQueue<CSMessage> outQueue);
+    void setOutQueue(BlockingQueue<CSMessage> outQueue);
 
     /**
      * For message consumer.
@@ -36,9 +40,63 @@ public interface IMessageHandler {
      */
     boolean filter(CSMessage csMessage);
 
+    /**
+     * For message consumer.
+     * Handle a data message accepted by the filter, the controls come from the control plane instead.
+     * The handler calls it for every message from its In-Queue,
+     * a simulation calls it directly to run the handler without its thread.
+     * The handler owns a reference of the message, and releases it when done with it.
+     * @param csMessage An accepted message
+     * @return True if the message has been handled and counted
+     * @throws InterruptedException If interrupted while publishing
+     */
+    boolean onMessage(CSMessage csMessage) throws InterruptedException;
+
+    /**
+     * For message consumer.
+     * The routes of the messages the handler subscribes to, should agree with the filter.
+     * The dispatcher builds its routing table from them when the handler registers,
+     * so a message only goes to its subscribers.
+     * @return The subscribed routes, empty for a pure message producer
+     */
+    EnumSet<MessageRoute> getRoutes();
+
+    /**
+     * For message consumer.
+     * The credit advertises how many more messages the handler can accept now.
+     * @return Number of messages can be accepted
+     */
+    int getCredit();
+
+    /**
+     * For message producer.
+     * The demand is how many more messages the downstream can accept now, passed upstream by the dispatcher.
+     * A message source slows down its emission rate to match the demand.
+     * @param demand The demand of the downstream
+     */
+    void setDemand(IntSupplier demand);
+
+    /**
+     * For every handler.
+     * Take a control from the control plane, out-of-band from the In-Queue.
+     * It is called on the thread sending the control,
+     * a handler with its own thread queues the control and acts on it before taking the next message.
+     * @param control The control
+     */
+    default void control(CSControl control) {
+    }
+
     /**
      * Get the current state of the message handler.
      * @return Ture if alive
      */
     boolean isAlive();
+
+    /**
+     * The name of the message handler in the metrics.
+     * @return The name
+     */
+    default String getName() {
+        return getClass().getSimpleName();
+    }
 }
@@ -1,49 +1,124 @@
 package com.css.cloudkitchen.handler;
 
+import com.css.cloudkitchen.AdmissionExecutor;
 import com.css.cloudkitchen.CSKitchen;
+import com.css.cloudkitchen.Helpers;
+import com.css.cloudkitchen.bus.PartitionedMessageQueue;
+import com.css.cloudkitchen.message.CSControl;
 import com.css.cloudkitchen.message.CSCourier;
 import com.css.cloudkitchen.message.CSMessage;
 import com.css.cloudkitchen.message.CSOrder;
+import com.css.cloudkitchen.message.MessageRoute;
+import com.css.cloudkitchen.metrics.OrderTracer;
+import com.css.cloudkitchen.metrics.OrderTracer.Stage;
 import com.css.cloudkitchen.strategy.AbstractStrategy;
+import com.css.cloudkitchen.timer.Timers;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntSupplier;
+import java.util.function.Supplier;
 
 /**
  * A message consumer.
  * Get both orders and couriers from message bus.
  * Apply different strategies to match the food orders and the couriers.
+ * The strategy can be split into shards by order, each shard has its own strategy instance, queue and thread,
+ * the messages about the same order always go to the same shard.
+ * A strategy matching in batches is flushed by its shard thread at the end of every window,
+ * the window starts when a message is buffered.
+ * The controls are queued to every shard, e.g. an EXIT or a FLUSH, each shard takes them on its own thread.
+ * Every shard logs the wait time percentiles of its latest interval while running.
  * Adopt Strategy design pattern.
  */
 public class MatcherStrategy implements IMessageHandler, Callable<Integer> {
     private static final Logger logger = LoggerFactory.getLogger(MatcherStrategy.class);
 
     private boolean alive = false;
-    private final ArrayBlockingQueue<CSMessage> inQueue = new ArrayBlockingQueue<>(CSKitchen.maxQueue);
-    private boolean stopSign = false;
-    private final AbstractStrategy strategy;
+    private final BlockingQueue<CSMessage> inQueue;
+    private final Supplier<AbstractStrategy> factory;
+    private final Shard[] shards;
+    private final AtomicInteger matched = new AtomicInteger(0); // total orders matched by all shards
+    private volatile int total = 0;
 
     public MatcherStrategy(final AbstractStrategy strategy) {
-        this.strategy = strategy;
+        this(() -> strategy, 1);
+    }
+
+    /**
+     * @param factory Create a strategy instance for each shard
+     * @param shardCount Number of shards
+     */
+    public MatcherStrategy(final Supplier<AbstractStrategy> factory, final int shardCount) {
+        this.factory = factory;
+        this.shards = new Shard[shardCount];
+        final List<BlockingQueue<CSMessage>> shardQueues = new ArrayList<>();
+        for (int i = 0; i < shardCount; i++) {
+            shardQueues.add(Helpers.createMessageQueue(CSKitchen.maxQueue));
+            shards[i] = new Shard(i, factory.get(), shardQueues.get(i));
+        }
+        this.inQueue = shardCount == 1 ? shardQueues.get(0) : new PartitionedMessageQueue(shardQueues);
+        AbstractStrategy.registerMetrics(shards[0].strategy.getName(), this::statistics);
+    }
+
+    @Override
+    public String getName() {
+        return "Matcher-" + shards[0].strategy.getName();
+    }
+
+    /**
+     * @return The strategy, or when sharded, an instance with the counters of all shards merged
+     */
+    public AbstractStrategy getStrategy() {
+        return statistics();
     }
 
     @Override
-    public ArrayBlockingQueue<CSMessage> getInQueue() {
+    public BlockingQueue<CSMessage> getInQueue() {
         return inQueue;
     }
 
     @Override
-    public void setOutQueue(final ArrayBlockingQueue<CSMessage> outQueue) {
+    public void setOutQueue(final BlockingQueue<CSMessage> outQueue) {
     }
 
     @Override
     public boolean filter(final CSMessage csMessage) {
-        return (csMessage.hasCommand()
-                || (csMessage instanceof CSOrder && ((CSOrder) csMessage).isReady())
-                || (csMessage instanceof CSCourier && ((CSCourier) csMessage).isArrived()));
+        return (csMessage instanceof CSOrder && ((CSOrder) csMessage).isReady())
+                || (csMessage instanceof CSCourier && ((CSCourier) csMessage).isArrived());
+    }
+
+    @Override
+    public boolean onMessage(final CSMessage csMessage) {
+        final Shard shard = shards[PartitionedMessageQueue.partition(csMessage, shards.length)];
+        final boolean handled = shard.strategy.apply(csMessage) != null;
+        shard.startWindow();
+        return handled;
+    }
+
+    @Override
+    public EnumSet<MessageRoute> getRoutes() {
+        return EnumSet.of(MessageRoute.ORDER_READY, MessageRoute.COURIER_ARRIVED);
+    }
+
+    @Override
+    public int getCredit() {
+        return inQueue.remainingCapacity();
+    }
+
+    @Override
+    public void setDemand(final IntSupplier demand) {
     }
 
     @Override
@@ -51,52 +126,184 @@ public class MatcherStrategy implements IMessageHandler, Callable<Integer> {
         return alive;
     }
 
+    @Override
+    public void control(final CSControl control) {
+        for (Shard shard : shards) {
+            shard.controls.offer(control);
+        }
+    }
+
     @Override
     public Integer call() {
-        logger.info("Start Matcher strategy : {}", strategy.getName());
+        final String name = shards[0].strategy.getName();
+        logger.info("Start Matcher strategy : {} with {} shards", name, shards.length);
         this.alive = true;
 
-        int counter = 0; // total orders matched
-        CSMessage msg;
-        int grace = CSKitchen.GRACE_TIME;
-        int total = 0;
-        while (true) {
-            try {
-                if (stopSign && (grace <= 0 || counter >= total)) {
-                    logger.info("Total {} out of {} orders handled, {} quiting...", counter, total, strategy.getName());
-                    break;
-                }
-                if (stopSign) {
-                    grace--;
+        if (shards.length == 1) {
+            shards[0].call();
+        } else {
+            final AdmissionExecutor shardTPool = Helpers.createExecutor("Matcher-Shard ",
+                    shards.length - 1, CSKitchen.KEEP_ALIVE);
+            final List<Future<Integer>> shardRets = new ArrayList<>();
+            for (int i = 1; i < shards.length; i++) {
+                shardRets.add(shardTPool.submit(shards[i]));
+            }
+            shards[0].call();
+            for (Future<Integer> shardRet : shardRets) {
+                try {
+                    shardRet.get();
+                } catch (Exception e) {
+                    logger.error("Matcher shard caught: ", e);
                 }
+            }
+            shardTPool.shutdown();
+            shardTPool.printStatistics();
+        }
 
-                msg = inQueue.poll(1, TimeUnit.SECONDS);
-                if (msg == null || !filter(msg)) {
-                    continue;
-                }
+        this.alive = false;
+        printStatistics();
+        return matched.get();
+    }
+
+    /**
+     * Print statistics, the counters of all shards are merged.
+     */
+    public void printStatistics() {
+        if (shards.length > 1) {
+            for (Shard shard : shards) {
+                logger.info("Matcher {} shard {} matched {} orders.", shard.strategy.getName(), shard.index,
+                        shard.strategy.getOrderCount());
+            }
+        }
+        statistics().printStatistics();
+    }
+
+    /**
+     * The statistics of the strategy, the counters of all shards are merged into a new instance.
+     * @return The strategy, or the merged instance
+     */
+    private AbstractStrategy statistics() {
+        if (shards.length == 1) {
+            return shards[0].strategy;
+        }
+        final AbstractStrategy merged = factory.get();
+        for (Shard shard : shards) {
+            merged.merge(shard.strategy);
+        }
+        return merged;
+    }
+
+    /**
+     * A partition of the matcher with its own strategy instance, queue and thread.
+     * Each shard takes its own copy of the controls.
+     */
+    private class Shard implements Callable<Integer> {
+        private final int index;
+        private final AbstractStrategy strategy;
+        private final BlockingQueue<CSMessage> queue;
+        private final Queue<CSControl> controls = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean windowOpen = new AtomicBoolean(false); // a batch window is open
+        private long windowEnd = 0L; // the end of the open batch window, only used by the shard thread
+
+        Shard(final int index, final AbstractStrategy strategy, final BlockingQueue<CSMessage> queue) {
+            this.index = index;
+            this.strategy = strategy;
+            this.queue = queue;
+        }
+
+        @Override
+        public Integer call() {
+            int counter = 0; // orders matched by this shard
+            CSMessage msg;
+            int grace = CSKitchen.GRACE_TIME;
+            boolean stopSign = false;
+            long nextReport = Timers.clock().currentTimeMillis() + CSKitchen.REPORT_INTERVAL * CSKitchen.THOUSAND;
+            while (true) {
+                try {
+                    for (CSControl control = controls.poll(); control != null; control = controls.poll()) {
+                        if (control.getType() == CSControl.Type.EXIT) {
+                            total = control.getValue();
+                            logger.info("Get exit control, total {} orders, Matcher {} shard {} is quiting...",
+                                    total, strategy.getName(), index);
+                            stopSign = true;
+                        } else if (control.getType() == CSControl.Type.FLUSH) {
+                            counter += flush();
+                        } else if (control.getType() == CSControl.Type.SNAPSHOT) {
+                            strategy.printInterval("shard " + index + " snapshot");
+                        }
+                    }
+                    if (stopSign && (grace < 0 || matched.get() >= total)) {
+                        logger.info("Total {} out of {} orders handled, {} shard {} quiting...",
+                                matched.get(), total, strategy.getName(), index);
+                        break;
+                    }
 
-                if (msg.hasCommand()) {
-                    if (msg.getCommand().startsWith(CSKitchen.CMD_EXIT)) {
-                        total = Integer.parseInt(msg.getCommandOption());
-                        logger.info("Get exit command, total {} orders, Matcher {} is quiting...",
-                                total, strategy.getName());
-                        stopSign = true;
+                    long now = Timers.clock().currentTimeMillis();
+                    if (now >= nextReport) {
+                        strategy.printInterval("shard " + index);
+                        nextReport += CSKitchen.REPORT_INTERVAL * CSKitchen.THOUSAND;
+                    }
+
+                    // wait no longer than the end of the open batch window
+                    final long timeout = windowOpen.get() ? Math.max(0L, windowEnd - now) : CSKitchen.THOUSAND;
+                    msg = queue.poll(timeout, TimeUnit.MILLISECONDS);
+                    if (windowOpen.get()) {
+                        now = Timers.clock().currentTimeMillis();
+                        if (now >= windowEnd) {
+                            counter += flush();
+                        }
+                    }
+                    if (msg == null) {
+                        if (stopSign && timeout == CSKitchen.THOUSAND) {
+                            grace--;
+                        }
+                        continue;
+                    }
+                    if (!filter(msg)) {
+                        msg.release();
                         continue;
                     }
-                }
 
-                CSMessage matched = strategy.apply(msg);
-                if (matched != null) {
-                    counter++;
-                }
+                    OrderTracer.trace(msg, Stage.MATCH_DEQUEUE);
+                    if (strategy.apply(msg) != null) {
+                        counter++;
+                        matched.incrementAndGet();
+                    }
+                    startWindow();
 
-            } catch (Exception e) {
-                logger.error("Matcher {} catch: ", strategy.getName(), e);
+                } catch (Exception e) {
+                    logger.error("Matcher {} shard {} catch: ", strategy.getName(), index, e);
+                }
             }
+            return counter;
         }
 
-        this.alive = false;
-        strategy.printStatistics();
-        return counter;
+        /**
+         * Match the messages buffered by the strategy, and close the open batch window.
+         * @return Number of orders matched
+         */
+        private int flush() {
+            windowOpen.set(false);
+            final int flushed = strategy.flush();
+            matched.addAndGet(flushed);
+            return flushed;
+        }
+
+        /**
+         * Start a batch window if the strategy matches in batches and no window is open.
+         * The shard thread flushes the strategy when the window ends,
+         * or without a thread consuming the queue, e.g. in a simulation, a timer flushes it.
+         */
+        private void startWindow() {
+            final long window = strategy.getWindowMillis();
+            if (window <= 0L || !windowOpen.compareAndSet(false, true)) {
+                return;
+            }
+            if (alive) {
+                windowEnd = Timers.clock().currentTimeMillis() + window;
+                return;
+            }
+            Timers.timer().schedule(this::flush, window, TimeUnit.MILLISECONDS);
+        }
     }
 }
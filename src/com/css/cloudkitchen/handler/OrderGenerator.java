@@ -1,19 +1,41 @@
 package com.css.cloudkitchen.handler;
 
 import com.css.cloudkitchen.CSKitchen;
+import com.css.cloudkitchen.ControlPlane;
+import com.css.cloudkitchen.message.CSControl;
 import com.css.cloudkitchen.message.CSMessage;
 import com.css.cloudkitchen.message.CSOrder;
+import com.css.cloudkitchen.message.MessageRoute;
+import com.css.cloudkitchen.metrics.LatencyHistogram;
+import com.css.cloudkitchen.metrics.MetricsRegistry;
+import com.css.cloudkitchen.metrics.OrderTracer;
+import com.css.cloudkitchen.metrics.OrderTracer.Stage;
+import com.css.cloudkitchen.output.EventOutput;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.EnumSet;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntSupplier;
 
 /**
  * A Message producer.
  * Generate new orders at the specified rate,
  * put order message to the message bus.
- * When all orders have been sent out, send an EXIT message to notify other components the completion.
+ * The generating is open-loop: every order has an intended send time on a System.nanoTime() schedule,
+ * a burst at the start of every second, evenly spaced, or Poisson arrivals.
+ * The generator parks until the intended time and spins the last stretch, a late order is sent at once,
+ * the schedule is never shifted by it, and the lag of the actual send time is recorded,
+ * so the latency of a slow pipeline is not hidden by sending less ( coordinated omission ).
+ * The emission is throttled by the demand of the downstream, an order is only sent with a credit,
+ * credits are taken from the demand when used up.
+ * The generating can be paused, resumed, resized to another rate, or drained by the controls.
+ * When all orders have been sent out, or when drained, broadcast an EXIT control with the number of orders sent,
+ * to notify other components the completion.
  * Return the total number of orders been generated.
  */
 public class OrderGenerator implements IMessageHandler, Callable<Integer> {
@@ -21,23 +43,61 @@ public class OrderGenerator implements IMessageHandler, Callable<Integer> {
 
     private boolean alive = false;
     private final int totalOrders;
-    private final int orderPerSecond;
+    private volatile int orderPerSecond;
     private final boolean randomFood;
-    private ArrayBlockingQueue<CSMessage> mainQueue = null;
+    private volatile boolean paused = false;
+    private volatile boolean draining = false;
+    private static final long MIN_THROTTLE = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long MAX_THROTTLE = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long SPIN = TimeUnit.MICROSECONDS.toNanos(100); // a park may oversleep by tens of us
+    private static final long MAX_PARK = TimeUnit.MILLISECONDS.toNanos(10); // to notice the controls
+
+    /**
+     * The spacing of the intended send times.
+     */
+    public enum Arrival {
+        BURST,   // all orders of a second at the start of the second
+        EVEN,    // evenly spaced
+        POISSON  // exponentially distributed gaps, at the same mean rate
+    }
+
+    private final Arrival arrival;
+    private int inBurst = 0; // orders sent in the current burst
+    private volatile int sent = 0;
+    private final LatencyHistogram sendLag = new LatencyHistogram(); // actual - intended send time, in us
+
+    private BlockingQueue<CSMessage> mainQueue = null;
+    private IntSupplier demand = null;
+    private int credit = 0; // orders can be sent before asking the demand again
+    private int throttled = 0;
+    private long throttledTime = 0L;
 
     public OrderGenerator(final int orderPerSecond, final int totalOrders, final boolean randomFood) {
+        this(orderPerSecond, totalOrders, randomFood, Arrival.values()[CSKitchen.arrivalType - 1]);
+    }
+
+    public OrderGenerator(final int orderPerSecond, final int totalOrders, final boolean randomFood,
+                          final Arrival arrival) {
         this.totalOrders = totalOrders;
         this.orderPerSecond = orderPerSecond;
         this.randomFood = randomFood;
+        this.arrival = arrival;
+        final MetricsRegistry metrics = MetricsRegistry.getInstance();
+        metrics.gauge(getName() + ".sent", () -> sent);
+        metrics.gauge(getName() + ".sendLagP99Micros", () -> sendLag.getValueAtPercentile(99.0));
+    }
+
+    public LatencyHistogram getSendLag() {
+        return sendLag;
     }
 
     @Override
-    public ArrayBlockingQueue<CSMessage> getInQueue() {
+    public BlockingQueue<CSMessage> getInQueue() {
         return null;
     }
 
     @Override
-    public void setOutQueue(final ArrayBlockingQueue<CSMessage> outQueue) {
+    public void setOutQueue(final BlockingQueue<CSMessage> outQueue) {
         mainQueue = outQueue;
     }
 
@@ -46,42 +106,75 @@ public class OrderGenerator implements IMessageHandler, Callable<Integer> {
         return false;
     }
 
+    @Override
+    public boolean onMessage(final CSMessage csMessage) {
+        return false;
+    }
+
+    @Override
+    public EnumSet<MessageRoute> getRoutes() {
+        return EnumSet.noneOf(MessageRoute.class);
+    }
+
+    @Override
+    public int getCredit() {
+        return 0;
+    }
+
+    @Override
+    public void setDemand(final IntSupplier demand) {
+        this.demand = demand;
+    }
+
     @Override
     public boolean isAlive() {
         return alive;
     }
 
+    /**
+     * The controls only set the state read by the generating loop, so they are taken at once.
+     * @param control The control
+     */
+    @Override
+    public void control(final CSControl control) {
+        switch (control.getType()) {
+            case PAUSE:
+                paused = true;
+                break;
+            case RESUME:
+                paused = false;
+                break;
+            case RESIZE:
+                orderPerSecond = control.getValue();
+                logger.info("Resized to generate {} orders per second.", orderPerSecond);
+                break;
+            case DRAIN:
+                draining = true;
+                break;
+            default:
+                break;
+        }
+    }
+
     @Override
     public Integer call() {
-        logger.info("Start to generate {} orders per second, total orders will be {}.",
-                this.orderPerSecond, this.totalOrders);
+        logger.info("Start to generate {} orders per second, total orders will be {}, {} arrivals.",
+                this.orderPerSecond, this.totalOrders, this.arrival);
         this.alive = true;
-        CSOrder order;
-        long ts;
-        int errors = 0;
-        for (int i = 0; i < totalOrders; ) {
+        int generated = 0;
+        long intended = System.nanoTime();
+        while (generated < totalOrders && !draining) {
             try {
-                ts = System.currentTimeMillis();
-                for (int j = 0; j < orderPerSecond && j + i < totalOrders; j++) {
-                    order = new CSOrder(randomFood);
-                    try {
-                        mainQueue.add(order);
-                        errors = errors > 0 ? errors - 1 : 0;
-                    } catch (Exception e) { // retry when queue is full or other errors
-                        logger.error("Failed to put to queue, caught:", e);
-                        j--;
-                        errors++;
-                        Thread.sleep((long) errors * CSKitchen.THOUSAND);
-                        continue;
-                    }
-                    String msg = "Order " + order.getOrderId() + " received at " + order.getCreateTime()
-                            + ", will be ready in " + order.getPrepTime() + "s.";
-                    System.out.println(msg);
-                    logger.info(msg + "\n" + order);
+                if (paused) {
+                    LockSupport.parkNanos(MAX_PARK);
+                    intended = System.nanoTime(); // the schedule restarts when resumed
+                    inBurst = 0;
+                    continue;
                 }
-                i += orderPerSecond;
-                if (System.currentTimeMillis() - ts < CSKitchen.THOUSAND) {
-                    Thread.sleep(CSKitchen.THOUSAND - (System.currentTimeMillis() - ts));
+                if (awaitSchedule(intended) && emit(intended)) {
+                    generated++;
+                    sent = generated;
+                    intended += nextGap();
                 }
             } catch (InterruptedException ie) {
                 logger.info("Interrupted, Order Generator stopped.");
@@ -90,34 +183,136 @@ public class OrderGenerator implements IMessageHandler, Callable<Integer> {
                 logger.error("Order Generator catch: ", e);
             }
         }
+        logger.info("Order Generator throttled {} times by the demand, {} ms in total.",
+                throttled, TimeUnit.NANOSECONDS.toMillis(throttledTime));
+        logger.info("Order Generator send lag behind schedule (us) : mean {}, {}",
+                sendLag.getMean(), sendLag.summary());
+
+        // notify other components out-of-band, they quit when they handled the orders sent
+        ControlPlane.getInstance().broadcast(CSControl.exit(generated));
+        logger.info("Exit control sent, total orders {}{}.", generated, draining ? ", drained" : "");
 
-        // send exit command to notify other components
-        order = new CSOrder(false);
-        order.setCommand(CSKitchen.CMD_EXIT, Integer.toString(totalOrders));
-        try {
-            Thread.sleep((long) order.getPrepTime() * CSKitchen.THOUSAND);
-        } catch (InterruptedException e) {
-            //ignore
+        this.alive = false;
+        return generated;
+    }
+
+    /**
+     * Generate orders and put them to message bus at once, one credit for each order.
+     * @param count Number of orders
+     * @throws InterruptedException If interrupted while waiting for credits
+     */
+    public void generate(final int count) throws InterruptedException {
+        for (int j = 0; j < count; ) {
+            if (emit(System.nanoTime())) {
+                j++;
+            }
         }
-        while (true) {
-            try {
-                mainQueue.add(order);
-                logger.info("Exit command send, total orders {}.", totalOrders);
-                break;
-            } catch (Exception e) { // retry when queue is full or other errors
-                logger.error("Failed to send Exit command, caught:", e);
-                if (errors < CSKitchen.GRACE_TIME) {
-                    errors++;
+    }
+
+    /**
+     * Create an order and put it to message bus, with a credit.
+     * The trace of the order starts at its intended send time.
+     * @param intended The intended send time in System.nanoTime()
+     * @return False if there was no room in the bus, the credits are dropped then,
+     *         or if paused or drained while waiting for a credit
+     * @throws InterruptedException If interrupted while waiting for credits
+     */
+    private boolean emit(final long intended) throws InterruptedException {
+        if (!awaitCredit()) {
+            return false;
+        }
+        final CSOrder order = CSOrder.create(randomFood);
+        OrderTracer.schedule(order, intended);
+        OrderTracer.trace(order, Stage.EMIT);
+        if (!mainQueue.offer(order.retain())) { // the demand was out of date, ask for it again
+            logger.error("Failed to put order {} to queue, will wait for demand.", order.getOrderId());
+            order.release(); // the reference not taken by the bus
+            order.release();
+            credit = 0;
+            return false;
+        }
+        sendLag.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - intended));
+        EventOutput.output().orderReceived(order);
+        order.release();
+        return true;
+    }
+
+    /**
+     * Wait until an intended send time, parking while it is far, and yielding for the last stretch.
+     * @param intended The intended send time in System.nanoTime()
+     * @return True when the time is reached, false if paused or drained meanwhile
+     * @throws InterruptedException If interrupted while waiting
+     */
+    private boolean awaitSchedule(final long intended) throws InterruptedException {
+        while (!paused && !draining) {
+            final long left = intended - System.nanoTime();
+            if (left <= 0L) {
+                return true;
+            }
+            if (left > SPIN) {
+                LockSupport.parkNanos(Math.min(left - SPIN, MAX_PARK));
+            } else {
+                Thread.yield();
+            }
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The time from the intended send time of an order to the next one, at the current rate.
+     * @return The gap in nanoseconds
+     */
+    private long nextGap() {
+        final int rate = orderPerSecond;
+        final long second = TimeUnit.SECONDS.toNanos(1);
+        switch (arrival) {
+            case EVEN:
+                return second / rate;
+            case POISSON:
+                return (long) (-Math.log(1.0 - ThreadLocalRandom.current().nextDouble()) * second / rate);
+            default:
+                if (++inBurst < rate) {
+                    return 0L;
                 }
-                try {
-                    Thread.sleep((long) errors * CSKitchen.THOUSAND);
-                } catch (InterruptedException ignore) {
-                    //ignore
+                inBurst = 0;
+                return second;
+        }
+    }
+
+    /**
+     * Take a credit for sending an order, wait until the downstream has demand when credits are used up.
+     * Only half of the demand is taken as credits,
+     * the other half is left for the messages that the orders in flight will produce,
+     * but at least one credit is taken when there is any demand, e.g. with a queue length of 1.
+     * Without a demand from the dispatcher, the room in the out-queue is the demand.
+     * @return True with a credit, false if paused or drained while waiting
+     * @throws InterruptedException If interrupted while waiting
+     */
+    private boolean awaitCredit() throws InterruptedException {
+        long park = MIN_THROTTLE;
+        final long start = System.nanoTime();
+        while (credit <= 0) {
+            final int now = demand != null ? demand.getAsInt() : mainQueue.remainingCapacity();
+            credit = now > 0 ? Math.max(1, now / 2) : 0;
+            if (credit <= 0) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                if (paused || draining) {
+                    return false;
                 }
+                LockSupport.parkNanos(park);
+                park = Math.min(park * 2, MAX_THROTTLE);
             }
         }
-
-        this.alive = false;
-        return this.totalOrders;
+        if (park > MIN_THROTTLE) {
+            throttled++;
+            throttledTime += System.nanoTime() - start;
+        }
+        credit--;
+        return true;
     }
 }
@@ -0,0 +1,70 @@
+package com.css.cloudkitchen.message;
+
+/**
+ * A control of the running components, sent on the control plane instead of the Message Bus.
+ * Controls are immutable and rare, so they are neither pooled nor reference counted like the data messages.
+ */
+public final class CSControl {
+
+    /**
+     * The kinds of control, the value of a control is only used by EXIT and RESIZE.
+     */
+    public enum Type {
+        EXIT,     // no more orders, value: the total number of orders, every handler quits when it handled them
+        DRAIN,    // stop generating orders, the orders generated so far are completed, then every handler quits
+        FLUSH,    // a strategy matching in batches matches the messages it buffered at once
+        PAUSE,    // hold the generating of orders, the orders in flight go on
+        RESUME,   // go on generating orders after a PAUSE
+        RESIZE,   // value: the new number of orders generated per second
+        SNAPSHOT  // every component logs its counters, and the metrics are logged
+    }
+
+    private final Type type;
+    private final int value;
+
+    private CSControl(final Type type, final int value) {
+        this.type = type;
+        this.value = value;
+    }
+
+    public static CSControl exit(final int totalOrders) {
+        return new CSControl(Type.EXIT, totalOrders);
+    }
+
+    public static CSControl drain() {
+        return new CSControl(Type.DRAIN, 0);
+    }
+
+    public static CSControl flush() {
+        return new CSControl(Type.FLUSH, 0);
+    }
+
+    public static CSControl pause() {
+        return new CSControl(Type.PAUSE, 0);
+    }
+
+    public static CSControl resume() {
+        return new CSControl(Type.RESUME, 0);
+    }
+
+    public static CSControl resize(final int orderPerSecond) {
+        return new CSControl(Type.RESIZE, orderPerSecond);
+    }
+
+    public static CSControl snapshot() {
+        return new CSControl(Type.SNAPSHOT, 0);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public int getValue() {
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return type == Type.EXIT || type == Type.RESIZE ? type + "(" + value + ")" : type.toString();
+    }
+}
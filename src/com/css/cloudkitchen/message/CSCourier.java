@@ -1,77 +1,142 @@
 package com.css.cloudkitchen.message;
 
-import java.util.Random;
+import com.css.cloudkitchen.timer.Timers;
+
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Define Courier
+ * A courier is never changed while it is referenced, a lifecycle transition makes a new copy of it,
+ * so it can be shared by any number of consumers.
+ * With a MessagePool installed, the couriers are taken from the pool, and recycled after their last reference.
  */
 public class CSCourier extends CSMessage {
     private static final AtomicInteger seq = new AtomicInteger(0);
 
-    private final int arrivePeriod;
-    private String orderPickedUp;
-    private final String name;
-    private final long dispatchTime;
-    private long arriveTime = 0L;
-    private long pickupTime = 0L;
+    private int courierId;
+    private int arrivePeriod;
+    private long orderPickedUp;
+    private long dispatchTime;
+    private long arriveTime;
 
+    CSCourier() {
+    }
 
     public CSCourier(final int start, final int end) {
-        int seqId = seq.incrementAndGet();
-        this.name = "Courier-#" + seqId;
-        this.dispatchTime = System.currentTimeMillis();
-        this.arrivePeriod = uniformDistribution(start, end);
+        this(start, end, CSOrder.NO_ORDER);
     }
 
-    public String getName() {
-        return name;
+    /**
+     * Dispatch a courier for an order.
+     * @param start Arrival delay left range
+     * @param end Arrival delay right range
+     * @param orderPickedUp The order id to pick up
+     */
+    public CSCourier(final int start, final int end, final long orderPickedUp) {
+        init(start, end, orderPickedUp);
     }
 
-    public long getDispatchTime() {
-        return dispatchTime;
+    /**
+     * Restore a recorded courier, e.g. replayed from the journal.
+     * @param courierId The courier number
+     * @param orderPickedUp The order id to pick up, CSOrder.NO_ORDER if none
+     * @param dispatchTime The time of dispatch
+     * @param arrivePeriod The arrival delay in seconds
+     * @param arriveTime The time of arrival, 0 if not arrived
+     */
+    public CSCourier(final int courierId, final long orderPickedUp, final long dispatchTime,
+                     final int arrivePeriod, final long arriveTime) {
+        set(courierId, orderPickedUp, dispatchTime, arrivePeriod, arriveTime);
     }
 
-    public long getArriveTime() {
-        return arriveTime;
+    /**
+     * Dispatch a courier for an order, from the installed pool if any.
+     * @param start Arrival delay left range
+     * @param end Arrival delay right range
+     * @param orderPickedUp The order id to pick up
+     * @return The courier, with a single reference
+     */
+    public static CSCourier dispatch(final int start, final int end, final long orderPickedUp) {
+        final MessagePool pool = MessagePool.pool();
+        return pool == null ? new CSCourier(start, end, orderPickedUp) : pool.courier().init(start, end, orderPickedUp);
+    }
+
+    private CSCourier init(final int start, final int end, final long orderPickedUp) {
+        return set(seq.incrementAndGet(), orderPickedUp, Timers.clock().currentTimeMillis(),
+                uniformDistribution(start, end), 0L);
     }
 
-    public void setArriveTime(final long arriveTime) {
+    private CSCourier set(final int courierId, final long orderPickedUp, final long dispatchTime,
+                          final int arrivePeriod, final long arriveTime) {
+        this.courierId = courierId;
+        this.orderPickedUp = orderPickedUp;
+        this.dispatchTime = dispatchTime;
+        this.arrivePeriod = arrivePeriod;
         this.arriveTime = arriveTime;
+        return this;
+    }
+
+    /**
+     * The courier arrives.
+     * @param timestamp The time of arrival
+     * @return A copy of the courier in arrived state, from the installed pool if any
+     */
+    public CSCourier arrived(final long timestamp) {
+        final MessagePool pool = MessagePool.pool();
+        return (pool == null ? new CSCourier() : pool.courier())
+                .set(courierId, orderPickedUp, dispatchTime, arrivePeriod, timestamp);
     }
 
-    public long getPickupTime() {
-        return pickupTime;
+    /**
+     * The courier name, built on every call, the hot path uses the courier id.
+     * @return The name
+     */
+    public String getName() {
+        return "Courier-#" + courierId;
+    }
+
+    public int getCourierId() {
+        return courierId;
     }
 
-    public void setPickupTime(final long pickupTime) {
-        this.pickupTime = pickupTime;
+    public long getDispatchTime() {
+        return dispatchTime;
+    }
+
+    public long getArriveTime() {
+        return arriveTime;
     }
 
     public boolean isArrived() {
         return this.arriveTime > 0L;
     }
 
+    @Override
+    public MessageRoute getRoute() {
+        return isArrived() ? MessageRoute.COURIER_ARRIVED : MessageRoute.COURIER_DISPATCHED;
+    }
+
+    @Override
+    public int getPartitionKey() {
+        return orderPickedUp != CSOrder.NO_ORDER ? Long.hashCode(orderPickedUp) : courierId;
+    }
+
     public int getArrivePeriod() {
         return arrivePeriod;
     }
 
-    public String getOrderPickedUp() {
+    public long getOrderPickedUp() {
         return orderPickedUp;
     }
 
-    public void setOrderPickedUp(final String orderPickedUp) {
-        this.orderPickedUp = orderPickedUp;
-    }
-
     @Override
     public String toString() {
         return "MSG: " + this.msgID + ", CSCourier: " +
-                this.name + "," +
+                getName() + "," +
                 this.dispatchTime + "," +
                 this.arrivePeriod + "," +
-                this.arriveTime + "," +
-                this.pickupTime;
+                this.arriveTime;
     }
 
     /**
@@ -83,8 +148,7 @@ public class CSCourier extends CSMessage {
     public static int uniformDistribution(final int start, final int end) {
         int range = end - start + 1;
         range = Math.abs(range);
-        Random rand = new Random();
-        int r = rand.nextInt(range);
+        int r = ThreadLocalRandom.current().nextInt(range);
         return end > start ? r + start : r + end;
     }
 }
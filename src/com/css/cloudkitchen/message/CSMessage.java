@@ -1,35 +1,78 @@
 package com.css.cloudkitchen.message;
 
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 /**
  * Basic message type
+ * A message taken from a MessagePool is reference counted: putting it to a queue, a timer or a ring
+ * hands over a reference, whoever takes it out releases that reference when done with it,
+ * and a holder that keeps using a message after handing it over retains an extra reference first.
+ * The message goes back to its pool when the last reference is released.
+ * Counting is skipped for the messages not from a pool, they are left to the garbage collector.
  */
 public abstract class CSMessage {
     //message id generator
     private static final AtomicInteger msgIDs = new AtomicInteger(0);
+    private static final AtomicIntegerFieldUpdater<CSMessage> REFS =
+            AtomicIntegerFieldUpdater.newUpdater(CSMessage.class, "refs");
 
-    protected final int msgID = msgIDs.incrementAndGet();
-    protected String command = null; // command for notifying all components
+    protected int msgID = msgIDs.incrementAndGet();
+    private volatile int refs = 1;
+    MessagePool pool = null; // the pool to return to, null if not pooled
 
     public int getMsgID() {
         return this.msgID;
     }
 
-    public String getCommand() {
-        return command;
+    /**
+     * Take an extra reference, e.g. before handing the message over while still using it.
+     * @return This message
+     */
+    public CSMessage retain() {
+        if (pool != null) {
+            REFS.incrementAndGet(this);
+        }
+        return this;
     }
 
-    public String getCommandOption() {
-        return command.split(":")[1];
+    /**
+     * Drop a reference, the message is recycled when it is the last one.
+     */
+    public void release() {
+        if (pool == null) {
+            return;
+        }
+        final int left = REFS.decrementAndGet(this);
+        if (left == 0) {
+            pool.recycle(this);
+        } else if (left < 0) {
+            throw new IllegalStateException("Released more than retained: " + this);
+        }
     }
 
-    public void setCommand(final String command, final String option) {
-        this.command = command + ":" + option;
+    public int getReferences() {
+        return refs;
     }
 
-    public boolean hasCommand() {
-        return this.command != null;
+    /**
+     * Start a new life of a recycled message, with a new message id and a single reference.
+     */
+    void renew() {
+        msgID = msgIDs.incrementAndGet();
+        REFS.set(this, 1);
     }
 
+    /**
+     * The routing key of the message, decided by the message kind and its lifecycle state.
+     * @return The route for looking up the subscribers
+     */
+    public abstract MessageRoute getRoute();
+
+    /**
+     * A stable key for partitioning, all messages about the same order have the same key.
+     * @return The partition key
+     */
+    public abstract int getPartitionKey();
+
 }
@@ -1,53 +1,129 @@
 package com.css.cloudkitchen.message;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import com.css.cloudkitchen.timer.Timers;
 
-import java.util.Random;
 import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Define the Order type.
+ * An order is never changed while it is referenced, a lifecycle transition makes a new copy of it,
+ * so it can be shared by any number of consumers.
+ * With a MessagePool installed, the orders are taken from the pool, and recycled after their last reference.
  * Provide an API to randomly choose a food type from the list.
+ * The order id is a 64-bit number, the shard of the kitchen in the high bits and a sequence in the low bits,
+ * it is the key of the order everywhere inside the kitchen; the UUID form is only made for the output.
  */
 public class CSOrder extends CSMessage {
-    private static final Logger logger = LoggerFactory.getLogger(CSOrder.class);
-
-    private final String orderId;
-    private final String name;
-    private final long createTime;
-    private final int prepTime;
-    private long readyTime = 0L;
-    private long pickupTime = 0L;
+    public static final int SHARD_BITS = 16;
+    public static final int SEQUENCE_BITS = Long.SIZE - SHARD_BITS;
+    public static final long NO_ORDER = 0L; // no order id is 0, the sequence starts from 1
+    private static final AtomicLong sequence = new AtomicLong(0L);
+    private static volatile long shard = 0L;
+
+    private long orderId;
+    private FoodOffering food;
+    private long createTime;
+    private long readyTime;
+
+    CSOrder() {
+    }
 
     /**
      * Construct an order with random food or static food (CheesePizza)
      * @param randomFood Randomly select food type or not
      */
     public CSOrder(final boolean randomFood) {
-        this.createTime = System.currentTimeMillis();
-        UUID uuid = new UUID(createTime, System.nanoTime());
-        FoodOffering fo;
-        if (randomFood) {
-            fo = FoodOffering.getRandomFood();
-        } else {
-            fo = FoodOffering.CheesePizza;
-        }
-        this.orderId = uuid.toString();
-        this.name = fo.getFood();
-        this.prepTime = fo.getPrepTime();
+        init(randomFood);
+    }
+
+    /**
+     * Restore a recorded order, e.g. replayed from the journal.
+     * @param orderId The order id
+     * @param food The food of the order
+     * @param createTime The time when the order is received
+     * @param readyTime The time when the food is ready, 0 if not ready
+     */
+    public CSOrder(final long orderId, final FoodOffering food, final long createTime, final long readyTime) {
+        set(orderId, food, createTime, readyTime);
+    }
+
+    /**
+     * A new order, from the installed pool if any.
+     * @param randomFood Randomly select food type or not
+     * @return The order, with a single reference
+     */
+    public static CSOrder create(final boolean randomFood) {
+        final MessagePool pool = MessagePool.pool();
+        return pool == null ? new CSOrder(randomFood) : pool.order().init(randomFood);
+    }
+
+    private CSOrder init(final boolean randomFood) {
+        final FoodOffering fo = randomFood ? FoodOffering.getRandomFood() : FoodOffering.CheesePizza;
+        return set(shard | (sequence.incrementAndGet() & ((1L << SEQUENCE_BITS) - 1)), fo,
+                Timers.clock().currentTimeMillis(), 0L);
+    }
+
+    private CSOrder set(final long orderId, final FoodOffering food, final long createTime, final long readyTime) {
+        this.orderId = orderId;
+        this.food = food;
+        this.createTime = createTime;
+        this.readyTime = readyTime;
+        return this;
+    }
+
+    /**
+     * The food of the order is ready.
+     * @param timestamp The time when the food is ready
+     * @return A copy of the order in ready state, from the installed pool if any
+     */
+    public CSOrder ready(final long timestamp) {
+        final MessagePool pool = MessagePool.pool();
+        return (pool == null ? new CSOrder() : pool.order()).set(orderId, food, createTime, timestamp);
     }
 
     public int getPrepTime() {
-        return prepTime;
+        return food.getPrepTime();
+    }
+
+    /**
+     * Set the shard of the orders created from now on, e.g. to tell apart the orders of several kitchens.
+     * @param id The shard, in the range [0, 2^SHARD_BITS)
+     */
+    public static void setShard(final int id) {
+        if (id < 0 || id >= (1 << SHARD_BITS)) {
+            throw new IllegalArgumentException("Shard out of range: " + id);
+        }
+        shard = (long) id << SEQUENCE_BITS;
+    }
+
+    public static int getShard(final long orderId) {
+        return (int) (orderId >>> SEQUENCE_BITS);
+    }
+
+    public static long getSequence(final long orderId) {
+        return orderId & ((1L << SEQUENCE_BITS) - 1);
     }
 
-    public String getOrderId() {
+    public long getOrderId() {
         return orderId;
     }
 
+    /**
+     * The order id in the UUID form of the output, the create time in the high half and the order id in the low.
+     * @return The UUID string
+     */
+    public String getUuid() {
+        return new UUID(createTime, orderId).toString();
+    }
+
     public String getName() {
-        return name;
+        return food.getFood();
+    }
+
+    public FoodOffering getFood() {
+        return food;
     }
 
     public long getCreateTime() {
@@ -58,31 +134,28 @@ public class CSOrder extends CSMessage {
         return readyTime;
     }
 
-    public void setReadyTime(final long readyTime) {
-        this.readyTime = readyTime;
-    }
-
-    public long getPickupTime() {
-        return pickupTime;
+    public boolean isReady() {
+        return this.readyTime > 0L;
     }
 
-    public void setPickupTime(final long pickupTime) {
-        this.pickupTime = pickupTime;
+    @Override
+    public MessageRoute getRoute() {
+        return isReady() ? MessageRoute.ORDER_READY : MessageRoute.ORDER_NEW;
     }
 
-    public boolean isReady() {
-        return this.readyTime > 0L;
+    @Override
+    public int getPartitionKey() {
+        return Long.hashCode(orderId);
     }
 
     @Override
     public String toString() {
         return "MSG: " + this.msgID + ", CSOrder: " +
                 this.orderId + "," +
-                this.name + "," +
+                this.food.getFood() + "," +
                 this.createTime + "," +
-                this.prepTime + "," +
-                this.readyTime + "," +
-                this.pickupTime;
+                this.food.getPrepTime() + "," +
+                this.readyTime;
     }
 
     public enum FoodOffering {
@@ -99,6 +172,8 @@ public class CSOrder extends CSMessage {
         Bread("Bread", 11),
         Salad("Salad", 12);
 
+        private static final FoodOffering[] VALUES = values(); // values() copies the array on every call
+
         private final String food;
         private final int prepTime;
 
@@ -116,15 +191,7 @@ public class CSOrder extends CSMessage {
         }
 
         public static FoodOffering getRandomFood() {
-            Random rand = new Random();
-            int idx = rand.nextInt(FoodOffering.values().length);
-            for (FoodOffering item : FoodOffering.values()) {
-                if (item.ordinal() == idx) {
-                    return item;
-                }
-            }
-            logger.info("Unable to get a random food, Salad returned.");
-            return Salad;
+            return VALUES[ThreadLocalRandom.current().nextInt(VALUES.length)];
         }
     }
 }
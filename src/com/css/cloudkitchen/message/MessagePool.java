@@ -0,0 +1,158 @@
+package com.css.cloudkitchen.message;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Preallocated orders and couriers, recycled when their last reference is released,
+ * so a steady run creates no message garbage.
+ * The free messages of each kind are kept in a bounded lock-free ring, taken and returned by any thread.
+ * When a ring is empty a new message is made, it joins the pool when released if there is room for it.
+ * Pooling is off unless a pool is installed, then the messages are created by CSOrder.create and CSCourier.dispatch,
+ * and their lifecycle transitions take the copies from the pool.
+ */
+public class MessagePool {
+    private static volatile MessagePool installed = null;
+
+    private final FreeList<CSOrder> orders;
+    private final FreeList<CSCourier> couriers;
+    private final LongAdder misses = new LongAdder(); // messages made because the pool was empty
+
+    /**
+     * @param capacity Number of messages of each kind, all made in advance
+     */
+    public MessagePool(final int capacity) {
+        this.orders = new FreeList<>(capacity, CSOrder::new);
+        this.couriers = new FreeList<>(capacity, CSCourier::new);
+    }
+
+    /**
+     * The installed pool.
+     * @return The pool, null if pooling is off
+     */
+    public static MessagePool pool() {
+        return installed;
+    }
+
+    /**
+     * Turn the pooling on or off.
+     * @param pool The pool, null to turn it off
+     */
+    public static void install(final MessagePool pool) {
+        installed = pool;
+    }
+
+    CSOrder order() {
+        CSOrder order = orders.poll();
+        if (order == null) {
+            misses.increment();
+            order = new CSOrder();
+        }
+        order.pool = this;
+        order.renew();
+        return order;
+    }
+
+    CSCourier courier() {
+        CSCourier courier = couriers.poll();
+        if (courier == null) {
+            misses.increment();
+            courier = new CSCourier();
+        }
+        courier.pool = this;
+        courier.renew();
+        return courier;
+    }
+
+    void recycle(final CSMessage msg) {
+        if (msg instanceof CSOrder) {
+            orders.offer((CSOrder) msg);
+        } else {
+            couriers.offer((CSCourier) msg);
+        }
+    }
+
+    public int getFreeOrders() {
+        return orders.size();
+    }
+
+    public int getFreeCouriers() {
+        return couriers.size();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * A bounded multi-producer / multi-consumer ring of free messages.
+     * Both sides claim a slot by a CAS on their own sequence, and hand it over by setting the slot sequence:
+     * equals to the claiming sequence when empty, + 1 when filled.
+     * @param <T> The message kind
+     */
+    private static final class FreeList<T> {
+        private final int mask;
+        private final AtomicReferenceArray<T> slots;
+        private final AtomicLongArray sequences;
+        private final AtomicLong head = new AtomicLong(0L);
+        private final AtomicLong tail = new AtomicLong(0L);
+
+        FreeList(final int capacity, final Supplier<T> factory) {
+            int size = 1;
+            while (size < capacity) {
+                size <<= 1;
+            }
+            this.mask = size - 1;
+            this.slots = new AtomicReferenceArray<>(size);
+            this.sequences = new AtomicLongArray(size);
+            for (int i = 0; i < size; i++) {
+                sequences.set(i, i);
+            }
+            for (int i = 0; i < capacity; i++) {
+                offer(factory.get());
+            }
+        }
+
+        boolean offer(final T item) {
+            while (true) {
+                final long seq = tail.get();
+                final int idx = (int) (seq & mask);
+                final long dif = sequences.get(idx) - seq;
+                if (dif == 0L) {
+                    if (tail.compareAndSet(seq, seq + 1)) {
+                        slots.lazySet(idx, item);
+                        sequences.set(idx, seq + 1);
+                        return true;
+                    }
+                } else if (dif < 0L) {
+                    return false; // full
+                }
+            }
+        }
+
+        T poll() {
+            while (true) {
+                final long seq = head.get();
+                final int idx = (int) (seq & mask);
+                final long dif = sequences.get(idx) - (seq + 1);
+                if (dif == 0L) {
+                    if (head.compareAndSet(seq, seq + 1)) {
+                        final T item = slots.get(idx);
+                        slots.lazySet(idx, null);
+                        sequences.set(idx, seq + mask + 1);
+                        return item;
+                    }
+                } else if (dif < 0L) {
+                    return null; // empty
+                }
+            }
+        }
+
+        int size() {
+            return (int) Math.max(0L, tail.get() - head.get());
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package com.css.cloudkitchen.message;
+
+/**
+ * Define the routing key of a message, it combines the message kind and its lifecycle state.
+ * The Message Dispatcher uses it to look up the subscribers of a message.
+ */
+public enum MessageRoute {
+    ORDER_NEW,          // order received, food not ready yet
+    ORDER_READY,        // food is ready for pick up
+    COURIER_DISPATCHED, // courier dispatched, not arrived yet
+    COURIER_ARRIVED     // courier arrived at the kitchen
+}
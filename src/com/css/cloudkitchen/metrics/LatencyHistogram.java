@@ -0,0 +1,158 @@
+package com.css.cloudkitchen.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A concurrent histogram of latencies with log-linear buckets, in the style of HdrHistogram.
+ * Values below 2 * SUB_BUCKETS are counted exactly, above that every power of 2 is split into SUB_BUCKETS buckets,
+ * so a reported value is within 1 / SUB_BUCKETS of the recorded one.
+ * The buckets are allocated once, recording is a few bit operations and atomic increments, any thread can record.
+ * Interval snapshots report the values recorded since the previous interval snapshot.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS; // buckets per power of 2
+    private static final int LINEAR = SUB_BUCKETS << 1; // values counted exactly
+    private static final int BUCKETS = LINEAR + (Long.SIZE - 1 - SUB_BITS - 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong total = new AtomicLong(0L);
+    private final AtomicLong sum = new AtomicLong(0L);
+    private final AtomicLong max = new AtomicLong(0L);
+    private long[] lastInterval = null; // counts at the previous interval snapshot
+
+    /**
+     * Record a latency, a negative value is counted as 0.
+     * @param value The latency
+     */
+    public void record(final long value) {
+        final long v = Math.max(0L, value);
+        counts.incrementAndGet(indexOf(v));
+        total.incrementAndGet();
+        sum.addAndGet(v);
+        if (v > max.get()) {
+            max.accumulateAndGet(v, Math::max);
+        }
+    }
+
+    public long getCount() {
+        return total.get();
+    }
+
+    public long getSum() {
+        return sum.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public long getMean() {
+        final long count = total.get();
+        return count == 0 ? 0L : sum.get() / count;
+    }
+
+    /**
+     * The value at a percentile.
+     * @param percentile The percentile, in the range [0, 100]
+     * @return The highest value of the bucket holding the percentile, not above the max, 0 if nothing recorded
+     */
+    public long getValueAtPercentile(final double percentile) {
+        final long count = total.get();
+        if (count == 0) {
+            return 0L;
+        }
+        final long rank = Math.max(1L, (long) Math.ceil(Math.min(100.0, percentile) / 100.0 * count));
+        long seen = 0L;
+        for (int idx = 0; idx < BUCKETS; idx++) {
+            seen += counts.get(idx);
+            if (seen >= rank) {
+                return Math.min(highestOf(idx), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Add the values recorded by another histogram.
+     * @param other The other histogram
+     */
+    public void merge(final LatencyHistogram other) {
+        for (int idx = 0; idx < BUCKETS; idx++) {
+            final long count = other.counts.get(idx);
+            if (count != 0) {
+                counts.addAndGet(idx, count);
+            }
+        }
+        total.addAndGet(other.total.get());
+        sum.addAndGet(other.sum.get());
+        max.accumulateAndGet(other.max.get(), Math::max);
+    }
+
+    /**
+     * A copy of the histogram, the recording goes on while it is taken, so it may miss the latest values.
+     * @return The copy
+     */
+    public LatencyHistogram snapshot() {
+        final LatencyHistogram copy = new LatencyHistogram();
+        copy.merge(this);
+        return copy;
+    }
+
+    /**
+     * The values recorded since the previous interval snapshot, or since the histogram was created.
+     * The max of an interval is the highest value of its highest bucket.
+     * @return A histogram of the interval
+     */
+    public synchronized LatencyHistogram intervalSnapshot() {
+        final LatencyHistogram interval = new LatencyHistogram();
+        final long[] current = new long[BUCKETS];
+        for (int idx = 0; idx < BUCKETS; idx++) {
+            current[idx] = counts.get(idx);
+            final long count = current[idx] - (lastInterval == null ? 0L : lastInterval[idx]);
+            if (count != 0) {
+                interval.counts.set(idx, count);
+                interval.total.addAndGet(count);
+                interval.sum.addAndGet(count * ((lowestOf(idx) + highestOf(idx)) / 2));
+                interval.max.set(Math.min(highestOf(idx), max.get()));
+            }
+        }
+        lastInterval = current;
+        return interval;
+    }
+
+    /**
+     * The percentiles in one line, p50 / p90 / p99 / p99.9 / max.
+     * @return The summary
+     */
+    public String summary() {
+        return "p50 " + getValueAtPercentile(50.0) + ", p90 " + getValueAtPercentile(90.0)
+                + ", p99 " + getValueAtPercentile(99.0) + ", p99.9 " + getValueAtPercentile(99.9)
+                + ", max " + getMax();
+    }
+
+    static int indexOf(final long value) {
+        if (value < LINEAR) {
+            return (int) value;
+        }
+        final int shift = Long.SIZE - Long.numberOfLeadingZeros(value) - 1 - SUB_BITS;
+        return LINEAR + (shift - 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    static long lowestOf(final int idx) {
+        if (idx < LINEAR) {
+            return idx;
+        }
+        final int shift = (idx - LINEAR) / SUB_BUCKETS + 1;
+        return (long) ((idx - LINEAR) % SUB_BUCKETS + SUB_BUCKETS) << shift;
+    }
+
+    static long highestOf(final int idx) {
+        if (idx < LINEAR) {
+            return idx;
+        }
+        final int shift = (idx - LINEAR) / SUB_BUCKETS + 1;
+        return lowestOf(idx) + (1L << shift) - 1;
+    }
+}
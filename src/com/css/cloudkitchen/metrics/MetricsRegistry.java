@@ -0,0 +1,218 @@
+package com.css.cloudkitchen.metrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanNotificationInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * An in-process registry of live metrics, exposed as a dynamic MBean for JConsole / VisualVM while a run is going.
+ * A metric is either a counter or a gauge.
+ * Counters are LongAdders, striped across the updating threads, so counting on the hot path doesn't contend.
+ * Gauges read the state a component keeps anyway, e.g. a queue depth, only when the metric is read.
+ * Adopt Singleton design pattern, components register their metrics to the shared instance.
+ */
+public class MetricsRegistry implements DynamicMBean {
+    private static final Logger logger = LoggerFactory.getLogger(MetricsRegistry.class);
+    private static final String OBJECT_NAME = "com.css.cloudkitchen:type=Metrics";
+
+    private static final MetricsRegistry self = new MetricsRegistry();
+
+    private final Map<String, LongSupplier> metrics = new ConcurrentSkipListMap<>();
+    private ObjectName registered = null;
+
+    public static MetricsRegistry getInstance() {
+        return self;
+    }
+
+    /**
+     * The counter of the name, created at the first call.
+     * @param name The metric name
+     * @return The counter
+     */
+    public LongAdder counter(final String name) {
+        final LongSupplier metric = metrics.computeIfAbsent(name, key -> new Counter());
+        if (!(metric instanceof Counter)) {
+            throw new IllegalArgumentException("Metric " + name + " is not a counter.");
+        }
+        return ((Counter) metric).adder;
+    }
+
+    /**
+     * Register a gauge, replacing the metric of the same name, e.g. of a previous run.
+     * @param name The metric name
+     * @param gauge Read the value of the metric
+     */
+    public void gauge(final String name, final LongSupplier gauge) {
+        metrics.put(name, gauge);
+    }
+
+    /**
+     * Register a gauge of the per second rate of a counter, averaged since the previous read of the gauge.
+     * @param name The metric name
+     * @param counter The counter
+     */
+    public void rate(final String name, final LongAdder counter) {
+        metrics.put(name, new Rate(counter));
+    }
+
+    /**
+     * Read a metric.
+     * @param name The metric name
+     * @return The value, 0 if there is no such metric
+     */
+    public long get(final String name) {
+        final LongSupplier metric = metrics.get(name);
+        return metric == null ? 0L : metric.getAsLong();
+    }
+
+    /**
+     * Expose the metrics on the platform MBean server.
+     */
+    public synchronized void registerMBean() {
+        if (registered != null) {
+            return;
+        }
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(this, name);
+            }
+            registered = name;
+            logger.info("Metrics registered as MBean {}.", OBJECT_NAME);
+        } catch (JMException e) {
+            logger.error("Failed to register the metrics MBean: ", e);
+        }
+    }
+
+    /**
+     * Remove the MBean of the metrics.
+     */
+    public synchronized void unregisterMBean() {
+        if (registered == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(registered);
+        } catch (JMException e) {
+            logger.error("Failed to unregister the metrics MBean: ", e);
+        }
+        registered = null;
+    }
+
+    /**
+     * Print all metrics
+     */
+    public void printStatistics() {
+        final StringBuilder sb = new StringBuilder("Metrics :\n");
+        for (Map.Entry<String, LongSupplier> metric : metrics.entrySet()) {
+            sb.append(metric.getKey()).append(" = ").append(metric.getValue().getAsLong()).append("\n");
+        }
+        logger.info(sb.toString());
+    }
+
+    @Override
+    public Object getAttribute(final String attribute) throws AttributeNotFoundException {
+        final LongSupplier metric = metrics.get(attribute);
+        if (metric == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return metric.getAsLong();
+    }
+
+    @Override
+    public void setAttribute(final Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metric " + attribute.getName() + " is read-only.");
+    }
+
+    @Override
+    public AttributeList getAttributes(final String[] attributes) {
+        final AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            final LongSupplier metric = metrics.get(attribute);
+            if (metric != null) {
+                list.add(new Attribute(attribute, metric.getAsLong()));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public AttributeList setAttributes(final AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(final String actionName, final Object[] params, final String[] signature)
+            throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        final List<MBeanAttributeInfo> attributes = new ArrayList<>();
+        for (Map.Entry<String, LongSupplier> metric : metrics.entrySet()) {
+            attributes.add(new MBeanAttributeInfo(metric.getKey(), "long",
+                    metric.getValue() instanceof Counter ? "counter" : "gauge", true, false, false));
+        }
+        return new MBeanInfo(getClass().getName(), "CSKitchen live metrics",
+                attributes.toArray(new MBeanAttributeInfo[0]), null,
+                new MBeanOperationInfo[0], new MBeanNotificationInfo[0]);
+    }
+
+    /**
+     * A counter striped across the updating threads.
+     */
+    private static final class Counter implements LongSupplier {
+        private final LongAdder adder = new LongAdder();
+
+        @Override
+        public long getAsLong() {
+            return adder.sum();
+        }
+    }
+
+    /**
+     * The per second rate of a counter since the previous read.
+     */
+    private static final class Rate implements LongSupplier {
+        private final LongAdder counter;
+        private long lastCount;
+        private long lastTime = System.nanoTime();
+
+        Rate(final LongAdder counter) {
+            this.counter = counter;
+            this.lastCount = counter.sum();
+        }
+
+        @Override
+        public synchronized long getAsLong() {
+            final long count = counter.sum();
+            final long now = System.nanoTime();
+            final long elapsed = Math.max(1L, now - lastTime);
+            final long rate = (count - lastCount) * 1000000000L / elapsed;
+            lastCount = count;
+            lastTime = now;
+            return rate;
+        }
+    }
+}
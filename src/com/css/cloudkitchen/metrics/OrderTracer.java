@@ -0,0 +1,242 @@
+package com.css.cloudkitchen.metrics;
+
+import com.css.cloudkitchen.message.CSCourier;
+import com.css.cloudkitchen.message.CSMessage;
+import com.css.cloudkitchen.message.CSOrder;
+import com.css.cloudkitchen.message.CSOrder.FoodOffering;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Trace every order through the pipeline, timestamp each hop with System.nanoTime(),
+ * from the order generator to the pickup, including the time the messages wait in the queues.
+ * A trace is completed by the first pickup of its order, its stages are then added to the latency histograms
+ * of the pipeline segments and of its food, and the trace is dropped.
+ * Tracing is off unless a tracer is installed, then every hop is a lookup in a concurrent map.
+ */
+public class OrderTracer {
+    private static final Logger logger = LoggerFactory.getLogger(OrderTracer.class);
+
+    private static volatile OrderTracer installed = null;
+
+    /**
+     * The hops of an order, in pipeline order.
+     */
+    public enum Stage {
+        SCHEDULE, // the intended send time of the order, by the schedule of the order generator
+        EMIT, // the order generator publishes the order
+        ROUTE, // the message dispatcher routes the new order
+        COOK_START, // the food cooker gets the order
+        COOK_FINISH, // the food is ready
+        COURIER_DISPATCH, // the courier dispatcher sends the courier
+        ARRIVE, // the courier arrives
+        MATCH_DEQUEUE, // the matcher gets the later of the ready order and the arrived courier
+        PICKUP // the order is picked up
+    }
+
+    /**
+     * The segments of the pipeline, each from the latest of its start stages to its end stage.
+     */
+    private enum Segment {
+        SEND_LAG("send lag", Stage.EMIT, Stage.SCHEDULE),
+        BUS("message bus", Stage.ROUTE, Stage.EMIT),
+        COOKER_QUEUE("cooker queue", Stage.COOK_START, Stage.ROUTE),
+        COOKING("cooking", Stage.COOK_FINISH, Stage.COOK_START),
+        DISPATCH("courier dispatch", Stage.COURIER_DISPATCH, Stage.ROUTE),
+        TRAVEL("courier travel", Stage.ARRIVE, Stage.COURIER_DISPATCH),
+        MATCHER_QUEUE("matcher queue", Stage.MATCH_DEQUEUE, Stage.COOK_FINISH, Stage.ARRIVE),
+        MATCH("match", Stage.PICKUP, Stage.MATCH_DEQUEUE),
+        FOOD_WAIT("food wait", Stage.PICKUP, Stage.COOK_FINISH),
+        TOTAL("end to end", Stage.PICKUP, Stage.EMIT),
+        CORRECTED("corrected total", Stage.PICKUP, Stage.SCHEDULE);
+
+        private final String label;
+        private final Stage to;
+        private final Stage[] from;
+
+        Segment(final String label, final Stage to, final Stage... from) {
+            this.label = label;
+            this.to = to;
+            this.from = from;
+        }
+    }
+
+    private final long origin = System.nanoTime();
+    private final Map<Long, Trace> traces = new ConcurrentHashMap<>();
+    private final LatencyHistogram[] segments = new LatencyHistogram[Segment.values().length];
+    private final LatencyHistogram[][] foods = new LatencyHistogram[FoodOffering.values().length][2];
+
+    public OrderTracer() {
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new LatencyHistogram();
+        }
+        for (LatencyHistogram[] food : foods) {
+            food[0] = new LatencyHistogram(); // food wait
+            food[1] = new LatencyHistogram(); // end to end
+        }
+    }
+
+    /**
+     * The installed tracer.
+     * @return The tracer, null if tracing is off
+     */
+    public static OrderTracer tracer() {
+        return installed;
+    }
+
+    /**
+     * Turn the tracing on or off.
+     * @param tracer The tracer, null to turn it off
+     */
+    public static void install(final OrderTracer tracer) {
+        installed = tracer;
+    }
+
+    /**
+     * Start the trace of a new order at its intended send time, if tracing is on.
+     * The corrected total counts from the intended time, so a late send adds to the latency,
+     * instead of being left out when the generator falls behind ( coordinated omission ).
+     * @param order The new order
+     * @param intended The intended send time in System.nanoTime()
+     */
+    public static void schedule(final CSOrder order, final long intended) {
+        final OrderTracer tracer = installed;
+        if (tracer == null) {
+            return;
+        }
+        final Trace trace = new Trace(order.getFood());
+        trace.stamps.set(Stage.SCHEDULE.ordinal(), Math.max(1L, intended - tracer.origin + 1));
+        tracer.traces.put(order.getOrderId(), trace);
+    }
+
+    /**
+     * Timestamp a hop of the order of a message, if tracing is on.
+     * The messages of untraced orders are ignored.
+     * @param msg An order or a courier
+     * @param stage The hop
+     */
+    public static void trace(final CSMessage msg, final Stage stage) {
+        final OrderTracer tracer = installed;
+        if (tracer == null) {
+            return;
+        }
+        if (msg instanceof CSOrder) {
+            final CSOrder order = (CSOrder) msg;
+            if (stage == Stage.EMIT && !tracer.traces.containsKey(order.getOrderId())) {
+                tracer.traces.put(order.getOrderId(), new Trace(order.getFood()));
+            }
+            tracer.mark(order.getOrderId(), stage);
+        } else if (msg instanceof CSCourier && ((CSCourier) msg).getOrderPickedUp() != CSOrder.NO_ORDER) {
+            tracer.mark(((CSCourier) msg).getOrderPickedUp(), stage);
+        }
+    }
+
+    /**
+     * Timestamp a hop, the first timestamp of a stage is kept,
+     * except the matcher dequeue which keeps the latest, it waits for both the order and the courier.
+     * @param orderId The order id
+     * @param stage The hop
+     */
+    public void mark(final long orderId, final Stage stage) {
+        final Trace trace = traces.get(orderId);
+        if (trace == null) {
+            return;
+        }
+        final long now = System.nanoTime() - origin + 1; // 0 is not marked
+        if (stage == Stage.MATCH_DEQUEUE) {
+            trace.stamps.accumulateAndGet(stage.ordinal(), now, Math::max);
+        } else if (!trace.stamps.compareAndSet(stage.ordinal(), 0L, now)) {
+            return;
+        }
+        if (stage == Stage.PICKUP && traces.remove(orderId, trace)) {
+            complete(trace);
+        }
+    }
+
+    public int getPending() {
+        return traces.size();
+    }
+
+    public LatencyHistogram getHistogram(final String segment) {
+        for (Segment seg : Segment.values()) {
+            if (seg.label.equals(segment)) {
+                return segments[seg.ordinal()];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Add the segments of a completed trace to the histograms, in microseconds.
+     * A segment is skipped when one of its stages is not marked, e.g. the matcher dequeue at a rendezvous.
+     * @param trace The trace
+     */
+    private void complete(final Trace trace) {
+        for (Segment seg : Segment.values()) {
+            final long end = trace.stamps.get(seg.to.ordinal());
+            long start = 0L;
+            for (Stage from : seg.from) {
+                final long stamp = trace.stamps.get(from.ordinal());
+                if (stamp == 0L) {
+                    start = 0L;
+                    break;
+                }
+                start = Math.max(start, stamp);
+            }
+            if (end == 0L || start == 0L) {
+                continue;
+            }
+            final long micros = TimeUnit.NANOSECONDS.toMicros(end - start);
+            segments[seg.ordinal()].record(micros);
+            if (seg == Segment.FOOD_WAIT) {
+                foods[trace.food.ordinal()][0].record(micros);
+            } else if (seg == Segment.TOTAL) {
+                foods[trace.food.ordinal()][1].record(micros);
+            }
+        }
+    }
+
+    /**
+     * Print the latency breakdown by pipeline segment and by food, in microseconds.
+     */
+    public void printReport() {
+        final StringBuilder sb = new StringBuilder("Order trace latency breakdown (us) :\n");
+        for (Segment seg : Segment.values()) {
+            final LatencyHistogram histogram = segments[seg.ordinal()];
+            sb.append(String.format("%-17s", seg.label)).append(": ").append(histogram.getCount())
+                    .append(" orders, mean ").append(histogram.getMean()).append(", ")
+                    .append(histogram.summary()).append("\n");
+        }
+        for (FoodOffering food : FoodOffering.values()) {
+            final LatencyHistogram total = foods[food.ordinal()][1];
+            if (total.getCount() == 0) {
+                continue;
+            }
+            sb.append(String.format("%-17s", food.getFood())).append(": ").append(total.getCount())
+                    .append(" orders, food wait p50 ").append(foods[food.ordinal()][0].getValueAtPercentile(50.0))
+                    .append(", end to end p50 ").append(total.getValueAtPercentile(50.0))
+                    .append(", p99 ").append(total.getValueAtPercentile(99.0))
+                    .append(", max ").append(total.getMax()).append("\n");
+        }
+        sb.append("Incomplete traces: ").append(traces.size()).append("\n");
+        logger.info(sb.toString());
+        System.out.println(sb);
+    }
+
+    /**
+     * The timestamps of an order, indexed by the ordinal of the stage.
+     */
+    private static final class Trace {
+        private final FoodOffering food;
+        private final AtomicLongArray stamps = new AtomicLongArray(Stage.values().length);
+
+        Trace(final FoodOffering food) {
+            this.food = food;
+        }
+    }
+}
@@ -0,0 +1,382 @@
+package com.css.cloudkitchen.output;
+
+import com.css.cloudkitchen.message.CSCourier;
+import com.css.cloudkitchen.message.CSMessage;
+import com.css.cloudkitchen.message.CSOrder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The output of the order lifecycle events ( order received, food ready, courier dispatched / arrived, pickup ).
+ * When started, the threads on the hot path only fill a preallocated event record in a ring,
+ * holding a reference of each message, no text is built and no I/O is done on their side.
+ * A single writer thread formats the records lazily in a reused buffer and writes them in batches to the sinks.
+ * Until it is started, an event is formatted and written by the calling thread.
+ * The ring works like the RingMessageQueue: producers claim a record by a CAS on the tail sequence,
+ * and a producer waits when the writer falls a whole ring behind.
+ * A producer publishing while the output is stopped, e.g. still holding it after stop(),
+ * writes the event synchronously instead, the writer only quits when no producer is claiming a record.
+ * The numeric order ids are formatted as UUIDs here, at the output, straight into the buffer.
+ */
+public class EventOutput {
+    private static final Logger logger = LoggerFactory.getLogger(EventOutput.class);
+    private static final int CAPACITY = 8192; // event records in the ring, a power of 2
+    private static final int BATCH = 256; // max events written per flush
+    private static final long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final String COURIER_NAME = "Courier-#"; // the courier names, without building them
+
+    private static final EventOutput DIRECT = new EventOutput(Sink.BOTH, false);
+    private static volatile EventOutput installed = DIRECT;
+
+    /**
+     * Where the events are written.
+     */
+    public enum Sink {
+        CONSOLE, // standard output
+        FILE, // the log file
+        BOTH,
+        NONE;
+
+        boolean toConsole() {
+            return this == CONSOLE || this == BOTH;
+        }
+
+        boolean toFile() {
+            return this == FILE || this == BOTH;
+        }
+    }
+
+    private enum EventType {
+        ORDER_RECEIVED, FOOD_READY, COURIER_DISPATCHED, COURIER_ARRIVED, PICKED_UP
+    }
+
+    private final Sink sink;
+    private final EventRecord[] records;
+    private final AtomicLongArray sequences; // equals to the claiming sequence when free, + 1 when published
+    private final AtomicLong tail = new AtomicLong(0L); // next sequence to be claimed by producers
+    private volatile long head = 0L; // next sequence to be written, only moved by the writer
+    private final LongAdder waits = new LongAdder(); // producers waiting for a free record
+    private final StringBuilder text = new StringBuilder(256);
+    private final byte[] consoleBuffer = new byte[64 * 1024];
+    private int consoleLength = 0;
+    private final AtomicInteger publishing = new AtomicInteger(0); // producers claiming or filling a record
+    private final EventOutput direct; // the synchronous output once stopped, null if not asynchronous
+    private volatile boolean running = false; // new events go to the ring
+    private volatile boolean closed = false; // no producer claims a record anymore, the writer quits when drained
+    private Thread writer = null;
+
+    private EventOutput(final Sink sink, final boolean async) {
+        this.sink = sink;
+        this.direct = async ? new EventOutput(sink, false) : null;
+        this.records = new EventRecord[async ? CAPACITY : 0];
+        this.sequences = new AtomicLongArray(records.length);
+        for (int i = 0; i < records.length; i++) {
+            records[i] = new EventRecord();
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * The shared event output.
+     * @return The output started by start(), or the synchronous output
+     */
+    public static EventOutput output() {
+        return installed;
+    }
+
+    /**
+     * Start a writer thread and make it the shared event output.
+     * @param sink Where the events are written
+     * @return The started output
+     */
+    public static synchronized EventOutput start(final Sink sink) {
+        stop();
+        final EventOutput output = new EventOutput(sink, true);
+        output.running = true;
+        output.writer = new Thread(output::write);
+        output.writer.setName("Event-Output");
+        output.writer.setDaemon(true);
+        output.writer.start();
+        installed = output;
+        return output;
+    }
+
+    /**
+     * Write all published events, stop the writer thread and restore the synchronous output.
+     */
+    public static synchronized void stop() {
+        final EventOutput output = installed;
+        installed = DIRECT;
+        if (output.writer == null) {
+            return;
+        }
+        output.running = false;
+        while (output.publishing.get() > 0) {
+            LockSupport.parkNanos(PARK_NANOS); // producers which saw it running finish their records
+        }
+        output.closed = true;
+        try {
+            output.writer.join();
+        } catch (InterruptedException e) {
+            logger.info("Interrupted, {} events not written.", output.getPending());
+            Thread.currentThread().interrupt();
+        }
+        logger.info("Event output to {}: {} events written, producers waited {} times for a free record.",
+                output.sink, output.head, output.waits.sum());
+    }
+
+    public int getPending() {
+        return (int) (tail.get() - head);
+    }
+
+    /**
+     * Wait until the writer has written the events published so far, e.g. before printing the statistics.
+     */
+    public void awaitWritten() {
+        final long published = tail.get();
+        while (writer != null && head < published && writer.isAlive()) {
+            LockSupport.parkNanos(PARK_NANOS);
+        }
+    }
+
+    public void orderReceived(final CSOrder order) {
+        publish(EventType.ORDER_RECEIVED, order, null, null, 0L, 0L);
+    }
+
+    public void foodReady(final CSOrder order) {
+        publish(EventType.FOOD_READY, order, null, null, 0L, 0L);
+    }
+
+    public void courierDispatched(final CSCourier courier) {
+        publish(EventType.COURIER_DISPATCHED, courier, null, null, 0L, 0L);
+    }
+
+    public void courierArrived(final CSCourier courier) {
+        publish(EventType.COURIER_ARRIVED, courier, null, null, 0L, 0L);
+    }
+
+    public void pickedUp(final String strategy, final CSOrder order, final CSCourier courier,
+                         final long foodWait, final long courierWait) {
+        publish(EventType.PICKED_UP, order, courier, strategy, foodWait, courierWait);
+    }
+
+    private void publish(final EventType type, final CSMessage first, final CSMessage second, final String name,
+                         final long value1, final long value2) {
+        if (sink == Sink.NONE) {
+            return;
+        }
+        if (records.length == 0) {
+            final EventRecord record = new EventRecord();
+            record.set(type, first, second, name, value1, value2);
+            synchronized (this) {
+                writeRecord(record);
+                flushConsole();
+            }
+            return;
+        }
+        if (!running) {
+            direct.publish(type, first, second, name, value1, value2);
+            return;
+        }
+        publishing.incrementAndGet();
+        if (!running) { // stopped meanwhile, checked again so stop() only waits for the producers counted in before
+            publishing.decrementAndGet();
+            direct.publish(type, first, second, name, value1, value2);
+            return;
+        }
+        try {
+            first.retain(); // held by the record until written
+            if (second != null) {
+                second.retain();
+            }
+            final long seq = claim();
+            final int idx = (int) (seq & (records.length - 1));
+            records[idx].set(type, first, second, name, value1, value2);
+            sequences.set(idx, seq + 1);
+        } finally {
+            publishing.decrementAndGet();
+        }
+    }
+
+    private long claim() {
+        boolean waited = false;
+        while (true) {
+            final long seq = tail.get();
+            final long dif = sequences.get((int) (seq & (records.length - 1))) - seq;
+            if (dif == 0L) {
+                if (tail.compareAndSet(seq, seq + 1)) {
+                    return seq;
+                }
+            } else if (dif < 0L) {
+                if (!waited) {
+                    waits.increment();
+                    waited = true;
+                }
+                LockSupport.parkNanos(PARK_NANOS); // the writer is a whole ring behind
+            }
+        }
+    }
+
+    /**
+     * The writer thread, writes the published records in order, a batch at a time, until stopped and drained.
+     */
+    private void write() {
+        long next = head;
+        while (true) {
+            int count = 0;
+            int idx = (int) (next & (records.length - 1));
+            while (count < BATCH && sequences.get(idx) == next + 1) {
+                try {
+                    writeRecord(records[idx]);
+                } catch (Throwable e) {
+                    logger.error("Event output caught: ", e);
+                }
+                records[idx].clear();
+                sequences.set(idx, next + records.length);
+                next++;
+                count++;
+                idx = (int) (next & (records.length - 1));
+            }
+            if (count > 0) {
+                flushConsole();
+                head = next;
+            } else if (closed && tail.get() == next) {
+                return;
+            } else {
+                LockSupport.parkNanos(PARK_NANOS);
+            }
+        }
+    }
+
+    private void writeRecord(final EventRecord record) {
+        text.setLength(0);
+        switch (record.type) {
+            case ORDER_RECEIVED: {
+                final CSOrder order = (CSOrder) record.first;
+                appendOrder(text.append("Order "), order).append(" received at ").append(order.getCreateTime())
+                        .append(", will be ready in ").append(order.getPrepTime()).append("s.");
+                break;
+            }
+            case FOOD_READY: {
+                final CSOrder order = (CSOrder) record.first;
+                appendOrder(text.append("Order "), order).append(" prepared at ").append(order.getReadyTime());
+                break;
+            }
+            case COURIER_DISPATCHED: {
+                final CSCourier courier = (CSCourier) record.first;
+                text.append(COURIER_NAME).append(courier.getCourierId())
+                        .append(" dispatched at ").append(courier.getDispatchTime())
+                        .append(", will arrive in ").append(courier.getArrivePeriod()).append("s.");
+                break;
+            }
+            case COURIER_ARRIVED: {
+                final CSCourier courier = (CSCourier) record.first;
+                text.append(COURIER_NAME).append(courier.getCourierId())
+                        .append(" arrived at ").append(courier.getArriveTime());
+                break;
+            }
+            default: {
+                appendOrder(text.append(record.name).append(": Order "), (CSOrder) record.first)
+                        .append(" picked up by ").append(COURIER_NAME)
+                        .append(((CSCourier) record.second).getCourierId())
+                        .append(", food wait ").append(record.value1)
+                        .append(", courier wait ").append(record.value2);
+                break;
+            }
+        }
+        if (sink.toConsole()) {
+            appendConsole(text);
+        }
+        if (sink.toFile()) {
+            if (record.type == EventType.ORDER_RECEIVED || record.type == EventType.COURIER_DISPATCHED) {
+                text.append("\n").append(record.first);
+            }
+            logger.info(text.toString());
+        }
+    }
+
+    /**
+     * Append the order id in the UUID form of CSOrder.getUuid(), without building the UUID and its string.
+     * @param sb The buffer
+     * @param order The order
+     * @return The buffer
+     */
+    private static StringBuilder appendOrder(final StringBuilder sb, final CSOrder order) {
+        appendHex(sb, order.getCreateTime() >>> 32, 8).append('-');
+        appendHex(sb, order.getCreateTime() >>> 16, 4).append('-');
+        appendHex(sb, order.getCreateTime(), 4).append('-');
+        appendHex(sb, order.getOrderId() >>> 48, 4).append('-');
+        return appendHex(sb, order.getOrderId(), 12);
+    }
+
+    private static StringBuilder appendHex(final StringBuilder sb, final long value, final int digits) {
+        for (int shift = (digits - 1) * 4; shift >= 0; shift -= 4) {
+            sb.append(HEX[(int) (value >>> shift) & 0xF]);
+        }
+        return sb;
+    }
+
+    /**
+     * Copy a line to the console buffer, the events are plain ASCII.
+     * @param line The line
+     */
+    private void appendConsole(final CharSequence line) {
+        if (consoleLength + line.length() + 1 > consoleBuffer.length) {
+            flushConsole();
+        }
+        final int length = Math.min(line.length(), consoleBuffer.length - 1);
+        for (int i = 0; i < length; i++) {
+            final char c = line.charAt(i);
+            consoleBuffer[consoleLength++] = c < 128 ? (byte) c : (byte) '?';
+        }
+        consoleBuffer[consoleLength++] = '\n';
+    }
+
+    private void flushConsole() {
+        if (consoleLength > 0) {
+            System.out.write(consoleBuffer, 0, consoleLength);
+            System.out.flush();
+            consoleLength = 0;
+        }
+    }
+
+    /**
+     * A preallocated event, reused once written.
+     */
+    private static final class EventRecord {
+        private EventType type;
+        private CSMessage first;
+        private CSMessage second;
+        private String name;
+        private long value1;
+        private long value2;
+
+        void set(final EventType type, final CSMessage first, final CSMessage second, final String name,
+                 final long value1, final long value2) {
+            this.type = type;
+            this.first = first;
+            this.second = second;
+            this.name = name;
+            this.value1 = value1;
+            this.value2 = value2;
+        }
+
+        void clear() {
+            first.release();
+            if (second != null) {
+                second.release();
+            }
+            this.first = null;
+            this.second = null;
+            this.name = null;
+        }
+    }
+}
@@ -1,13 +1,20 @@
 package com.css.cloudkitchen.strategy;
 
+import com.css.cloudkitchen.bus.MessageJournal;
 import com.css.cloudkitchen.message.CSCourier;
 import com.css.cloudkitchen.message.CSMessage;
 import com.css.cloudkitchen.message.CSOrder;
+import com.css.cloudkitchen.metrics.LatencyHistogram;
+import com.css.cloudkitchen.metrics.MetricsRegistry;
+import com.css.cloudkitchen.metrics.OrderTracer;
+import com.css.cloudkitchen.metrics.OrderTracer.Stage;
+import com.css.cloudkitchen.output.EventOutput;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 
 public abstract class AbstractStrategy {
     protected static final Logger logger = LoggerFactory.getLogger(AbstractStrategy.class);
@@ -15,8 +22,8 @@ public abstract class AbstractStrategy {
     protected final String name;
 
     protected final AtomicInteger orderCount = new AtomicInteger(0);
-    protected final AtomicLong foodLatency = new AtomicLong(0L);
-    protected final AtomicLong courierLatency = new AtomicLong(0L);
+    protected final LatencyHistogram foodLatency = new LatencyHistogram();
+    protected final LatencyHistogram courierLatency = new LatencyHistogram();
 
     public AbstractStrategy(String name) {
         this.name = name;
@@ -30,42 +37,144 @@ public abstract class AbstractStrategy {
         return name;
     }
 
+    public int getOrderCount() {
+        return orderCount.get();
+    }
+
+    public long getFoodLatency() {
+        return foodLatency.getSum();
+    }
+
+    public long getCourierLatency() {
+        return courierLatency.getSum();
+    }
+
+    public LatencyHistogram getFoodHistogram() {
+        return foodLatency;
+    }
+
+    public LatencyHistogram getCourierHistogram() {
+        return courierLatency;
+    }
+
     /**
      * The function to implement the different strategies.
+     * The strategy owns the reference of the message, the pickup releases the order and the courier,
+     * so a matched order returned is only a flag, it may be recycled already.
      * @param msg Input message, can be Order or Courier
      * @return Matched Order or null if not match
      */
     public abstract CSMessage apply(CSMessage msg);
 
     protected void doMatch(final CSOrder order, final CSCourier courier, final long timestamp) {
-        courier.setPickupTime(timestamp);
-        order.setPickupTime(timestamp);
-
-        //collect statistics
+        //collect statistics, the messages are shared by all strategies and not changed while referenced
         orderCount.incrementAndGet();
-        long foodWait = order.getPickupTime() - order.getReadyTime();
-        foodLatency.addAndGet(foodWait);
-        long courierWait = courier.getPickupTime() - courier.getArriveTime();
-        courierLatency.addAndGet(courierWait);
-
-        String msg = name + ": Order " + order.getOrderId() + " picked up by " + courier.getName()
-                + ", food wait " + foodWait + ", courier wait " + courierWait;
-        System.out.println(msg);
-        logger.info(msg);
+        OrderTracer.trace(order, Stage.PICKUP);
+        long foodWait = timestamp - order.getReadyTime();
+        foodLatency.record(foodWait);
+        long courierWait = timestamp - courier.getArriveTime();
+        courierLatency.record(courierWait);
+        MessageJournal.recordPickup(order, courier, timestamp, foodWait, courierWait);
+        EventOutput.output().pickedUp(name, order, courier, foodWait, courierWait);
+        order.release();
+        courier.release();
+    }
+
+    /**
+     * The time window of a strategy which matches in batches.
+     * @return The window in milliseconds, 0 if the strategy matches on every message
+     */
+    public long getWindowMillis() {
+        return 0L;
+    }
+
+    /**
+     * Match the messages buffered in the current window, called when the window ends.
+     * @return Number of orders matched
+     */
+    public int flush() {
+        return 0;
+    }
+
+    /**
+     * Add the counters and histograms of another instance of the strategy, e.g. a shard of it.
+     * @param other The other instance
+     */
+    public void merge(final AbstractStrategy other) {
+        orderCount.addAndGet(other.orderCount.get());
+        foodLatency.merge(other.foodLatency);
+        courierLatency.merge(other.courierLatency);
+    }
+
+    /**
+     * Expose the running match count and wait times of a strategy as metrics.
+     * The gauges are usually read together, e.g. by a JMX client, so they share one view of the strategy
+     * taken at most once per read cycle, a merged view of the shards is not built again for every gauge.
+     * @param prefix The prefix of the metric names
+     * @param statistics Get the strategy, or the merged view of its shards, when the metrics are read
+     */
+    public static void registerMetrics(final String prefix, final Supplier<AbstractStrategy> statistics) {
+        final MetricsRegistry metrics = MetricsRegistry.getInstance();
+        final Supplier<AbstractStrategy> view = new ReadCycle(statistics);
+        metrics.gauge(prefix + ".matched", () -> view.get().getOrderCount());
+        metrics.gauge(prefix + ".foodWaitMean", () -> view.get().foodLatency.getMean());
+        metrics.gauge(prefix + ".foodWaitP99", () -> view.get().foodLatency.getValueAtPercentile(99.0));
+        metrics.gauge(prefix + ".courierWaitMean", () -> view.get().courierLatency.getMean());
+        metrics.gauge(prefix + ".courierWaitP99", () -> view.get().courierLatency.getValueAtPercentile(99.0));
+    }
+
+    /**
+     * Keep the view of a strategy for the gauges read in the same cycle.
+     */
+    private static final class ReadCycle implements Supplier<AbstractStrategy> {
+        private static final long CYCLE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+        private final Supplier<AbstractStrategy> statistics;
+        private AbstractStrategy view = null;
+        private long taken = 0L;
+
+        ReadCycle(final Supplier<AbstractStrategy> statistics) {
+            this.statistics = statistics;
+        }
+
+        @Override
+        public synchronized AbstractStrategy get() {
+            final long now = System.nanoTime();
+            if (view == null || now - taken >= CYCLE_NANOS) {
+                view = statistics.get();
+                taken = now;
+            }
+            return view;
+        }
+    }
+
+    /**
+     * Print the wait time percentiles of the orders matched since the previous interval.
+     * @param label Where the interval is from, e.g. the shard
+     */
+    public void printInterval(final String label) {
+        final LatencyHistogram food = foodLatency.intervalSnapshot();
+        final LatencyHistogram courier = courierLatency.intervalSnapshot();
+        if (food.getCount() == 0) {
+            return;
+        }
+        logger.info("{} {} interval: {} orders, food wait (ms) {}, courier wait (ms) {}",
+                name, label, food.getCount(), food.summary(), courier.summary());
     }
 
     /**
      * Print statistics
      */
     public void printStatistics() {
+        EventOutput.output().awaitWritten();
         StringBuilder sb = new StringBuilder("Statistics for ").append(name).append(" :\n")
                 .append("Total orders: ").append(orderCount.get()).append("\n")
-                .append("Total food wait time (ms): ").append(foodLatency.get()).append("\n")
-                .append("Total courier wait time (ms): ").append(courierLatency.get()).append("\n")
-                .append("Average food wait time (ms): ")
-                .append(orderCount.get() == 0 ? 0 : foodLatency.get() / orderCount.get()).append("\n")
-                .append("Average courier wait time (ms): ")
-                .append(orderCount.get() == 0 ? 0 : courierLatency.get() / orderCount.get()).append("\n");
+                .append("Total food wait time (ms): ").append(foodLatency.getSum()).append("\n")
+                .append("Total courier wait time (ms): ").append(courierLatency.getSum()).append("\n")
+                .append("Average food wait time (ms): ").append(foodLatency.getMean()).append("\n")
+                .append("Average courier wait time (ms): ").append(courierLatency.getMean()).append("\n")
+                .append("Food wait time (ms): ").append(foodLatency.summary()).append("\n")
+                .append("Courier wait time (ms): ").append(courierLatency.summary()).append("\n");
         logger.info(sb.toString());
         System.out.println(sb);
     }
@@ -0,0 +1,117 @@
+package com.css.cloudkitchen.strategy;
+
+/**
+ * A hash index from a long key to a value, e.g. the waiting orders or couriers by order id.
+ * Open addressing with linear probing in flat arrays, so a key is neither boxed nor wrapped in an entry object.
+ * A removal shifts the following entries of the probe chain back, no tombstone is left.
+ * Not thread safe, the key 0 is reserved as the empty slot.
+ * @param <V> The value type
+ */
+class LongIndex<V> {
+    private static final int MIN_CAPACITY = 16; // a power of 2
+
+    private long[] keys = new long[MIN_CAPACITY];
+    private Object[] values = new Object[MIN_CAPACITY];
+    private int size = 0;
+
+    /**
+     * Add or replace the value of a key.
+     * @param key The key, not 0
+     * @param value The value, not null
+     */
+    void put(final long key, final V value) {
+        if (key == 0L) {
+            throw new IllegalArgumentException("Key 0 is reserved.");
+        }
+        if ((size + 1) * 4 > keys.length * 3) {
+            resize(keys.length * 2);
+        }
+        int idx = slot(key, keys.length);
+        while (keys[idx] != 0L) {
+            if (keys[idx] == key) {
+                values[idx] = value;
+                return;
+            }
+            idx = (idx + 1) & (keys.length - 1);
+        }
+        keys[idx] = key;
+        values[idx] = value;
+        size++;
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(final long key) {
+        final int idx = find(key);
+        return idx < 0 ? null : (V) values[idx];
+    }
+
+    /**
+     * Remove a key.
+     * @param key The key
+     * @return The value of the key, null if absent
+     */
+    @SuppressWarnings("unchecked")
+    V remove(final long key) {
+        int idx = find(key);
+        if (idx < 0) {
+            return null;
+        }
+        final V value = (V) values[idx];
+        final int mask = keys.length - 1;
+        // shift back the entries which probed over the freed slot
+        int next = (idx + 1) & mask;
+        while (keys[next] != 0L) {
+            final int home = slot(keys[next], keys.length);
+            if (((next - home) & mask) >= ((next - idx) & mask)) {
+                keys[idx] = keys[next];
+                values[idx] = values[next];
+                idx = next;
+            }
+            next = (next + 1) & mask;
+        }
+        keys[idx] = 0L;
+        values[idx] = null;
+        size--;
+        return value;
+    }
+
+    int size() {
+        return size;
+    }
+
+    private int find(final long key) {
+        if (key == 0L) {
+            return -1;
+        }
+        int idx = slot(key, keys.length);
+        while (keys[idx] != 0L) {
+            if (keys[idx] == key) {
+                return idx;
+            }
+            idx = (idx + 1) & (keys.length - 1);
+        }
+        return -1;
+    }
+
+    private void resize(final int capacity) {
+        final long[] oldKeys = keys;
+        final Object[] oldValues = values;
+        keys = new long[capacity];
+        values = new Object[capacity];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0L) {
+                int idx = slot(oldKeys[i], capacity);
+                while (keys[idx] != 0L) {
+                    idx = (idx + 1) & (capacity - 1);
+                }
+                keys[idx] = oldKeys[i];
+                values[idx] = oldValues[i];
+            }
+        }
+    }
+
+    private static int slot(final long key, final int capacity) {
+        final long h = key * 0x9E3779B97F4A7C15L; // spread the sequential ids
+        return (int) (h >>> 32) & (capacity - 1);
+    }
+}
@@ -0,0 +1,241 @@
+package com.css.cloudkitchen.strategy;
+
+import com.css.cloudkitchen.message.CSCourier;
+import com.css.cloudkitchen.message.CSMessage;
+import com.css.cloudkitchen.message.CSOrder;
+import com.css.cloudkitchen.timer.Timers;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Match any order with any courier, like FIFO, but in batches.
+ * The ready orders and arrived couriers are buffered over a time window,
+ * at the end of the window they are paired by a minimum cost assignment,
+ * the cost of a pair is the time between the food ready and the courier arrival.
+ * The pairs are picked up when the window is flushed, like the other strategies pick up at the time of matching,
+ * so the total wait only depends on when the matches happen, not on who is paired with whom;
+ * the assignment changes the pairing and the spread of the waits, not the average.
+ * On a time line an optimal assignment never crosses, so both sides are sorted by time
+ * and the assignment is solved exactly by dynamic programming over the sorted sides.
+ * The side with more participants leaves some of them to the next window,
+ * but the ones already left over from the last window are always matched first, so nobody starves.
+ */
+public class StrategyBatch extends AbstractStrategy {
+    private static final Comparator<CSOrder> BY_READY = Comparator.comparingLong(CSOrder::getReadyTime);
+    private static final Comparator<CSCourier> BY_ARRIVAL = Comparator.comparingLong(CSCourier::getArriveTime);
+
+    private final long windowMillis;
+    private final Assignment assignment = new Assignment();
+    // the buffers are kept across windows, the participants left over from the last window come first
+    private final List<CSOrder> foodList = new ArrayList<>();
+    private final List<CSCourier> courierList = new ArrayList<>();
+    private final List<CSOrder> foodScratch = new ArrayList<>();
+    private final List<CSCourier> courierScratch = new ArrayList<>();
+    private int carriedFood = 0; // orders left over from the last window
+    private int carriedCouriers = 0; // couriers left over from the last window
+    private long[] foodTimes = new long[16];
+    private long[] courierTimes = new long[16];
+    private boolean[] forced = new boolean[16];
+    private boolean[] taken = new boolean[16];
+
+    /**
+     * @param windowMillis The time window of a batch in milliseconds
+     */
+    public StrategyBatch(final long windowMillis) {
+        super("BATCH");
+        this.windowMillis = windowMillis;
+    }
+
+    @Override
+    public long getWindowMillis() {
+        return windowMillis;
+    }
+
+    @Override
+    public CSMessage apply(CSMessage msg) {
+        if (msg instanceof CSOrder) {
+            foodList.add((CSOrder) msg);
+        } else {
+            courierList.add((CSCourier) msg);
+        }
+        return null;
+    }
+
+    @Override
+    public int flush() {
+        final int foods = foodList.size();
+        final int couriers = courierList.size();
+        final int pairs = Math.min(foods, couriers);
+        if (pairs == 0) {
+            return 0;
+        }
+        final long now = Timers.clock().currentTimeMillis();
+        final int capacity = Math.max(foods, couriers);
+        if (forced.length < capacity) {
+            forced = new boolean[Math.max(capacity, forced.length * 2)];
+            taken = new boolean[forced.length];
+        }
+        foodTimes = grow(foodTimes, foods);
+        courierTimes = grow(courierTimes, couriers);
+
+        // only the left over participants of the larger side are forced, the smaller side is matched entirely
+        sortByTime(foodList, carriedFood, BY_READY, foodScratch, forced, foods > couriers ? pairs : 0);
+        sortByTime(courierList, carriedCouriers, BY_ARRIVAL, courierScratch, forced, foods > couriers ? 0 : pairs);
+        for (int i = 0; i < foods; i++) {
+            foodTimes[i] = foodList.get(i).getReadyTime();
+        }
+        for (int j = 0; j < couriers; j++) {
+            courierTimes[j] = courierList.get(j).getArriveTime();
+        }
+
+        if (foods <= couriers) {
+            final int[] assigned = assignment.solve(foodTimes, foods, courierTimes, couriers, forced);
+            for (int i = 0; i < foods; i++) {
+                taken[assigned[i]] = true;
+                doMatch(foodList.get(i), courierList.get(assigned[i]), now);
+            }
+            foodList.clear();
+            carriedCouriers = retain(courierList, couriers);
+            carriedFood = 0;
+        } else {
+            final int[] assigned = assignment.solve(courierTimes, couriers, foodTimes, foods, forced);
+            for (int j = 0; j < couriers; j++) {
+                taken[assigned[j]] = true;
+                doMatch(foodList.get(assigned[j]), courierList.get(j), now);
+            }
+            courierList.clear();
+            carriedFood = retain(foodList, foods);
+            carriedCouriers = 0;
+        }
+        return pairs;
+    }
+
+    /**
+     * Keep the participants not taken, in their order by time, and clear the flags for the next window.
+     * @return Number of the participants left over
+     */
+    private <T> int retain(final List<T> list, final int size) {
+        int left = 0;
+        for (int k = 0; k < size; k++) {
+            if (!taken[k]) {
+                list.set(left++, list.get(k));
+            }
+            taken[k] = false;
+            forced[k] = false;
+        }
+        list.subList(left, size).clear();
+        return left;
+    }
+
+    /**
+     * Sort a side by time, the participants left over are sorted already, so only the new ones are sorted
+     * and both runs are merged, which keeps track of the left over ones wherever their times put them.
+     * The oldest left over ones, as many as can be matched, are flagged as forced.
+     * @param list The side, the participants left over first
+     * @param carried Number of the participants left over
+     * @param byTime Order by time
+     * @param scratch An empty list to merge into
+     * @param forced The flags set for the forced participants
+     * @param limit The most participants to force, the size of the smaller side
+     */
+    private static <T> void sortByTime(final List<T> list, final int carried, final Comparator<T> byTime,
+                                       final List<T> scratch, final boolean[] forced, final int limit) {
+        final int size = list.size();
+        list.subList(carried, size).sort(byTime);
+        if (carried == 0) {
+            return;
+        }
+        int left = 0;
+        int right = carried;
+        int flagged = 0;
+        while (left < carried || right < size) {
+            final boolean fromCarried = right == size
+                    || (left < carried && byTime.compare(list.get(left), list.get(right)) <= 0);
+            if (fromCarried && flagged < limit) {
+                forced[scratch.size()] = true;
+                flagged++;
+            }
+            scratch.add(list.get(fromCarried ? left++ : right++));
+        }
+        for (int k = 0; k < size; k++) {
+            list.set(k, scratch.get(k));
+        }
+        scratch.clear();
+    }
+
+    private static long[] grow(final long[] array, final int size) {
+        return array.length >= size ? array : new long[Math.max(size, array.length * 2)];
+    }
+
+    /**
+     * Minimum cost assignment of every participant of the smaller side to one of the larger side,
+     * both sides sorted by time, the cost of a pair is the distance of their times.
+     * The i-th of the smaller side can only be paired with one of the larger side in [i, i + n - m],
+     * so only that band of the table is solved, in O(m * (n - m + 1)), with one row of costs at a time.
+     * The buffers are kept and grown on demand, so solving the windows of a run allocates nothing in the end.
+     */
+    public static final class Assignment {
+        private static final long INFINITE = Long.MAX_VALUE / 4;
+
+        private long[] previous = new long[16];
+        private long[] current = new long[16];
+        private boolean[] took = new boolean[64]; // the choice at each cell of the band, to trace the assignment back
+        private int[] assigned = new int[16];
+
+        /**
+         * @param small Times of the smaller side, sorted
+         * @param m Number of the participants of the smaller side
+         * @param large Times of the larger side, sorted
+         * @param n Number of the participants of the larger side, at least m
+         * @param forced The participants of the larger side which can not be skipped, at most m of them
+         * @return The index in the larger side assigned to each of the first m participants of the smaller side,
+         *         valid until the next call
+         */
+        public int[] solve(final long[] small, final int m, final long[] large, final int n, final boolean[] forced) {
+            final int band = n - m + 1;
+            if (previous.length < band) {
+                previous = new long[Math.max(band, previous.length * 2)];
+                current = new long[previous.length];
+            }
+            if (took.length < m * band) {
+                took = new boolean[Math.max(m * band, took.length * 2)];
+            }
+            if (assigned.length < m) {
+                assigned = new int[Math.max(m, assigned.length * 2)];
+            }
+
+            // cell (i, d): min cost of matching the first i of the smaller side within the first i + d of the larger
+            long[] prev = previous;
+            long[] cur = current;
+            prev[0] = 0L;
+            for (int d = 1; d < band; d++) {
+                prev[d] = forced[d - 1] ? INFINITE : prev[d - 1];
+            }
+            for (int i = 1; i <= m; i++) {
+                final int row = (i - 1) * band;
+                for (int d = 0; d < band; d++) {
+                    final int j = i + d - 1; // the participant of the larger side taken or skipped
+                    final long skip = d == 0 || forced[j] ? INFINITE : cur[d - 1];
+                    final long take = prev[d] + Math.abs(small[i - 1] - large[j]);
+                    took[row + d] = take <= skip;
+                    cur[d] = Math.min(Math.min(skip, take), INFINITE);
+                }
+                final long[] swap = prev;
+                prev = cur;
+                cur = swap;
+            }
+
+            for (int i = m, d = band - 1; i > 0; ) {
+                if (took[(i - 1) * band + d]) {
+                    assigned[i - 1] = i + d - 1;
+                    i--;
+                } else {
+                    d--;
+                }
+            }
+            return assigned;
+        }
+    }
+}
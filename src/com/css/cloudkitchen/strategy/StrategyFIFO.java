@@ -3,18 +3,24 @@ package com.css.cloudkitchen.strategy;
 import com.css.cloudkitchen.message.CSCourier;
 import com.css.cloudkitchen.message.CSMessage;
 import com.css.cloudkitchen.message.CSOrder;
+import com.css.cloudkitchen.timer.Timers;
 
-import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Comparator;
 import java.util.PriorityQueue;
 
+/**
+ * Match the first ready order with the first arrived courier.
+ * The ready orders wait in an array-backed ring deque in the order they come in,
+ * the couriers wait in a heap ordered by arrival time, ties broken by message id,
+ * since couriers from different dispatch lanes may come in out of their arrival order.
+ */
 public class StrategyFIFO extends AbstractStrategy {
-    private final ArrayList<CSOrder> foodList = new ArrayList<>();
-    private final PriorityQueue<CSCourier> courierPQ = new PriorityQueue<>((o1, o2) -> {
-        if (o1.getArriveTime() <= 0L || o2.getArriveTime() <= 0L) {
-            return 0;
-        }
-        return Long.compare(o1.getArriveTime(), o2.getArriveTime());
-    });
+    private static final Comparator<CSCourier> ARRIVAL_ORDER =
+            Comparator.comparingLong(CSCourier::getArriveTime).thenComparingInt(CSCourier::getMsgID);
+
+    private final ArrayDeque<CSOrder> foodQueue = new ArrayDeque<>();
+    private final PriorityQueue<CSCourier> courierPQ = new PriorityQueue<>(ARRIVAL_ORDER);
 
     public StrategyFIFO() {
         super("FIFO");
@@ -24,21 +30,20 @@ public class StrategyFIFO extends AbstractStrategy {
     public CSMessage apply(CSMessage msg) {
         // Food ready
         if (msg instanceof CSOrder) {
-            if (courierPQ.size() > 0) {
-                CSCourier courier = courierPQ.poll();
-                doMatch((CSOrder) msg, courier, System.currentTimeMillis());
+            final CSCourier courier = courierPQ.poll();
+            if (courier != null) {
+                doMatch((CSOrder) msg, courier, Timers.clock().currentTimeMillis());
                 return msg;
             }
             //not match, push to waiting list
-            foodList.add((CSOrder) msg);
+            foodQueue.addLast((CSOrder) msg);
             return null;
         }
 
         // Courier arrival
-        if (foodList.size() > 0) {
-            CSOrder order = foodList.get(0);
-            doMatch(order, (CSCourier) msg, System.currentTimeMillis());
-            foodList.remove(0);
+        final CSOrder order = foodQueue.pollFirst();
+        if (order != null) {
+            doMatch(order, (CSCourier) msg, Timers.clock().currentTimeMillis());
             return order;
         }
         //not match, push to waiting list
@@ -3,12 +3,16 @@ package com.css.cloudkitchen.strategy;
 import com.css.cloudkitchen.message.CSCourier;
 import com.css.cloudkitchen.message.CSMessage;
 import com.css.cloudkitchen.message.CSOrder;
+import com.css.cloudkitchen.timer.Timers;
 
-import java.util.ArrayList;
-
+/**
+ * Match an order with the courier dispatched for it.
+ * The waiting orders and couriers are indexed by order id, so each match is a single hash lookup,
+ * on the primitive id, no key is boxed.
+ */
 public class StrategyMatch extends AbstractStrategy {
-    private final ArrayList<CSOrder> foodList = new ArrayList<>();
-    private final ArrayList<CSCourier> courierList = new ArrayList<>();
+    private final LongIndex<CSOrder> foodMap = new LongIndex<>();
+    private final LongIndex<CSCourier> courierMap = new LongIndex<>();
 
     public StrategyMatch() {
         super("MATCH");
@@ -18,28 +22,31 @@ public class StrategyMatch extends AbstractStrategy {
     public CSMessage apply(CSMessage msg) {
         // Food ready
         if (msg instanceof CSOrder) {
-            for (CSCourier courier : courierList) {
-                if (((CSOrder) msg).getOrderId().equals(courier.getOrderPickedUp())) {
-                    doMatch((CSOrder) msg, courier, System.currentTimeMillis());
-                    courierList.remove(courier);
-                    return msg;
-                }
+            final CSOrder order = (CSOrder) msg;
+            final CSCourier courier = courierMap.remove(order.getOrderId());
+            if (courier != null) {
+                doMatch(order, courier, Timers.clock().currentTimeMillis());
+                return order;
             }
             //not match, push to waiting list
-            foodList.add((CSOrder) msg);
+            foodMap.put(order.getOrderId(), order);
             return null;
         }
 
         // Courier arrival
-        for (CSOrder order : foodList) {
-            if (order.getOrderId().equals(((CSCourier) msg).getOrderPickedUp())) {
-                doMatch(order, (CSCourier) msg, System.currentTimeMillis());
-                foodList.remove(order);
-                return order;
-            }
+        final CSCourier courier = (CSCourier) msg;
+        if (courier.getOrderPickedUp() == CSOrder.NO_ORDER) {
+            logger.error("{}: {} has no order to pick up.", name, courier.getName());
+            courier.release();
+            return null;
+        }
+        final CSOrder order = foodMap.remove(courier.getOrderPickedUp());
+        if (order != null) {
+            doMatch(order, courier, Timers.clock().currentTimeMillis());
+            return order;
         }
         //not match, push to waiting list
-        courierList.add((CSCourier) msg);
+        courierMap.put(courier.getOrderPickedUp(), courier);
         return null;
     }
 }
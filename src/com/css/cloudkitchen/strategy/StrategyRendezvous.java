@@ -0,0 +1,60 @@
+package com.css.cloudkitchen.strategy;
+
+import com.css.cloudkitchen.message.CSCourier;
+import com.css.cloudkitchen.message.CSMessage;
+import com.css.cloudkitchen.message.CSOrder;
+import com.css.cloudkitchen.timer.Timers;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Match an order with its courier at a rendezvous, without a matcher thread.
+ * The food ready and courier arrival paths call it directly, from any thread.
+ * Each order id has a slot in a concurrent map: the first side to come claims the empty slot,
+ * the second side takes the waiting one out and completes the pickup inline.
+ * Both the claim and the take are atomic on the slot, so no lock is needed.
+ */
+public class StrategyRendezvous extends AbstractStrategy {
+    private final ConcurrentHashMap<Long, CSMessage> slots = new ConcurrentHashMap<>();
+
+    public StrategyRendezvous() {
+        super("RENDEZVOUS");
+    }
+
+    /**
+     * Number of orders or couriers waiting for the other side.
+     * @return Number of claimed slots
+     */
+    public int getWaiting() {
+        return slots.size();
+    }
+
+    @Override
+    public CSMessage apply(CSMessage msg) {
+        final long orderId = msg instanceof CSOrder
+                ? ((CSOrder) msg).getOrderId() : ((CSCourier) msg).getOrderPickedUp();
+        if (orderId == CSOrder.NO_ORDER) {
+            logger.error("{}: {} has no order id.", name, msg);
+            msg.release();
+            return null;
+        }
+        final Long key = orderId; // boxed once for the map calls
+        while (true) {
+            final CSMessage waiting = slots.putIfAbsent(key, msg);
+            if (waiting == null) {
+                return null; // claimed the slot, wait for the other side
+            }
+            if (waiting.getClass() == msg.getClass()) {
+                logger.error("{}: {} is duplicated, discarded.", name, msg);
+                msg.release();
+                return null;
+            }
+            if (slots.remove(key, waiting)) {
+                final CSOrder order = msg instanceof CSOrder ? (CSOrder) msg : (CSOrder) waiting;
+                final CSCourier courier = msg instanceof CSCourier ? (CSCourier) msg : (CSCourier) waiting;
+                doMatch(order, courier, Timers.clock().currentTimeMillis());
+                return order;
+            }
+        }
+    }
+}
@@ -1,17 +1,64 @@
 package com.css.cloudkitchen.test;
 
 import com.css.cloudkitchen.*;
+import com.css.cloudkitchen.bus.BackoffPolicy;
+import com.css.cloudkitchen.bus.BlockingWaitStrategy;
+import com.css.cloudkitchen.bus.MessageJournal;
+import com.css.cloudkitchen.bus.PartitionedMessageQueue;
+import com.css.cloudkitchen.bus.RetryScheduler;
+import com.css.cloudkitchen.bus.RingMessageQueue;
 import com.css.cloudkitchen.handler.*;
+import com.css.cloudkitchen.message.CSControl;
 import com.css.cloudkitchen.message.CSCourier;
 import com.css.cloudkitchen.message.CSMessage;
 import com.css.cloudkitchen.message.CSOrder;
+import com.css.cloudkitchen.message.MessagePool;
+import com.css.cloudkitchen.message.MessageRoute;
+import com.css.cloudkitchen.metrics.LatencyHistogram;
+import com.css.cloudkitchen.metrics.MetricsRegistry;
+import com.css.cloudkitchen.metrics.OrderTracer;
+import com.css.cloudkitchen.output.EventOutput;
+import com.css.cloudkitchen.metrics.OrderTracer.Stage;
+import com.css.cloudkitchen.strategy.AbstractStrategy;
+import com.css.cloudkitchen.strategy.StrategyBatch;
 import com.css.cloudkitchen.strategy.StrategyFIFO;
 import com.css.cloudkitchen.strategy.StrategyMatch;
+import com.css.cloudkitchen.strategy.StrategyRendezvous;
+import com.css.cloudkitchen.timer.EventSimulator;
+import com.css.cloudkitchen.timer.SystemClock;
+import com.css.cloudkitchen.timer.TimerWheel;
+import com.css.cloudkitchen.timer.Timers;
 import org.junit.Test;
 
+import javax.management.Attribute;
+import javax.management.AttributeNotFoundException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.PriorityQueue;
 import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 import static org.junit.Assert.*;
 
@@ -64,7 +111,7 @@ public class UnitTests {
 
         int total = 100;
         CSCourier cbase = new CSCourier(9, 15); // the smallest readyTime as the base
-        cbase.setArriveTime(cbase.getDispatchTime() + cbase.getArrivePeriod() * 1000L);
+        cbase = cbase.arrived(cbase.getDispatchTime() + cbase.getArrivePeriod() * 1000L);
         System.out.println("B:" + cbase.getArriveTime());
         courierPQ.add(cbase);
 
@@ -72,7 +119,7 @@ public class UnitTests {
             Thread.sleep(1);
             // add new couriers
             CSCourier courier = new CSCourier(3, 15);
-            courier.setArriveTime(courier.getDispatchTime() + courier.getArrivePeriod() * 1000L);
+            courier = courier.arrived(courier.getDispatchTime() + courier.getArrivePeriod() * 1000L);
             if (cbase.getArriveTime() > courier.getArriveTime()) {
                 cbase = courier;
                 System.out.println("B:" + cbase.getArriveTime());
@@ -92,7 +139,7 @@ public class UnitTests {
      * 3. exit as expected.
      */
     @Test
-    public void orderGeneratorTest() {
+    public void orderGeneratorTest() throws InterruptedException {
         ArrayBlockingQueue<CSMessage> mainQueue = new ArrayBlockingQueue<>(CSKitchen.maxQueue);
         OrderGenerator og = new OrderGenerator(9, 20, true);
         Queue<CSMessage> inQueue = og.getInQueue();
@@ -101,9 +148,97 @@ public class UnitTests {
         Integer total = og.call();
         long runtime = (System.currentTimeMillis() - starttime) / 1000;
         assertEquals(20, (int) total);
-        assertEquals(3 + 13, runtime);
+        assertEquals(2, runtime); // the last burst starts at 2 seconds
         assertNull(inQueue);
-        assertEquals(21, mainQueue.size()); // include exit command
+        assertEquals(20, mainQueue.size()); // the exit control is not on the bus
+
+        // a queue of length 1 still gives a credit, a generator waiting for the next one can be drained
+        ArrayBlockingQueue<CSMessage> tinyQueue = new ArrayBlockingQueue<>(1);
+        OrderGenerator stuck = new OrderGenerator(5, 10, true);
+        stuck.setOutQueue(tinyQueue);
+        AtomicInteger sent = new AtomicInteger(-1);
+        Thread generator = new Thread(() -> sent.set(stuck.call()));
+        generator.start();
+        Thread.sleep(500);
+        stuck.control(CSControl.drain());
+        generator.join(5000);
+        assertFalse(generator.isAlive());
+        assertEquals(1, sent.get());
+        assertEquals(1, tinyQueue.size());
+    }
+
+    /**
+     * Test the open-loop schedule of the OrderGenerator, against the recorded send lag instead of the elapsed time.
+     * An order is created after its intended send time and before its lag is recorded, so the spread of the
+     * create times is the spread of the schedule, give or take the largest send lag.
+     * 1. evenly spaced and Poisson orders are spread over the 0.5 second of their schedule, not sent in a burst;
+     * 2. when the bus is full for 300 ms, every order due meanwhile records the stall in its send lag,
+     *    and the orders behind schedule are sent at once.
+     */
+    @Test
+    public void openLoopGeneratorTest() throws InterruptedException {
+        EventOutput.start(EventOutput.Sink.NONE); // printing every order is slower than the schedule
+        try {
+            openLoopSchedule();
+        } finally {
+            EventOutput.stop();
+        }
+    }
+
+    private void openLoopSchedule() throws InterruptedException {
+        for (OrderGenerator.Arrival arrival : new OrderGenerator.Arrival[] {OrderGenerator.Arrival.EVEN,
+                OrderGenerator.Arrival.POISSON}) {
+            ArrayBlockingQueue<CSMessage> mainQueue = new ArrayBlockingQueue<>(4000);
+            OrderGenerator og = new OrderGenerator(4000, 2000, true, arrival);
+            og.setOutQueue(mainQueue);
+            assertEquals(2000, (int) og.call());
+            assertEquals(2000, mainQueue.size());
+            assertEquals(2000L, og.getSendLag().getCount());
+
+            long first = Long.MAX_VALUE;
+            long last = Long.MIN_VALUE;
+            for (CSMessage msg : mainQueue) {
+                first = Math.min(first, ((CSOrder) msg).getCreateTime());
+                last = Math.max(last, ((CSOrder) msg).getCreateTime());
+            }
+            // 1999 gaps of 250 us, the Poisson gaps add up to it within 10 standard deviations
+            final long scheduled = arrival == OrderGenerator.Arrival.EVEN ? 500L : 390L;
+            final long maxLag = og.getSendLag().getMax() / CSKitchen.THOUSAND + 2; // and the clock ticks
+            assertTrue(arrival + " spread " + (last - first) + " ms, max lag " + maxLag + " ms",
+                    last - first >= scheduled - maxLag);
+            assertTrue(arrival + " spread " + (last - first) + " ms, max lag " + maxLag + " ms",
+                    last - first <= (arrival == OrderGenerator.Arrival.EVEN ? 500L : 610L) + maxLag);
+        }
+
+        // no room in the bus for 300 ms
+        ArrayBlockingQueue<CSMessage> smallQueue = new ArrayBlockingQueue<>(20);
+        OrderGenerator og = new OrderGenerator(1000, 200, true, OrderGenerator.Arrival.EVEN);
+        og.setOutQueue(smallQueue);
+        List<CSMessage> received = Collections.synchronizedList(new ArrayList<>());
+        Thread consumer = new Thread(() -> {
+            try {
+                while (smallQueue.remainingCapacity() > 0) {
+                    Thread.sleep(1);
+                }
+                Thread.sleep(300);
+                while (received.size() < 200) {
+                    CSMessage msg = smallQueue.poll(1, TimeUnit.SECONDS);
+                    if (msg != null) {
+                        received.add(msg);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        consumer.start();
+        assertEquals(200, (int) og.call());
+        consumer.join(5000);
+        assertEquals(200, received.size());
+        // the 21st order is due within 1 ms of the bus getting full, and sent 300 ms after it
+        assertTrue(og.getSendLag().getMax() >= 290000L); // in us
+        // the last 180 orders are due within 180 ms of the bus getting full, none is sent before 300 ms after it
+        assertTrue(og.getSendLag().getValueAtPercentile(50.0) >= 110000L);
     }
 
     /**
@@ -143,7 +278,7 @@ public class UnitTests {
      * 1. send all kinds of messages to CourierDispatcher;
      * 2. it can deal with all these messages;
      * 3. it only handle those messages it wants.
-     * 4. exit when get the EXIT command.
+     * 4. exit when get the EXIT control.
      */
     @Test
     public void courierDispatcherTest() {
@@ -159,8 +294,7 @@ public class UnitTests {
                 inQueue.add(order1);
             }
             // cooked orders
-            CSOrder order2 = new CSOrder(true);
-            order2.setReadyTime(System.currentTimeMillis());
+            CSOrder order2 = new CSOrder(true).ready(System.currentTimeMillis());
             if (ca.filter(order2)) {
                 inQueue.add(order2);
             }
@@ -170,17 +304,14 @@ public class UnitTests {
                 inQueue.add(courier1);
             }
             // arrived couriers
-            CSCourier courier2 = new CSCourier(3, 15);
-            courier2.setArriveTime(System.currentTimeMillis());
+            CSCourier courier2 = new CSCourier(3, 15).arrived(System.currentTimeMillis());
             if (ca.filter(courier2)) {
                 inQueue.add(courier2);
             }
         }
 
-        // send exit command
-        CSOrder order = new CSOrder(false);
-        order.setCommand(CSKitchen.CMD_EXIT, "100");
-        inQueue.add(order);
+        // send exit control
+        ca.control(CSControl.exit(100));
 
         Integer total = ca.call();
         assertEquals(100, (int) total);
@@ -195,7 +326,7 @@ public class UnitTests {
      * 1. send all kinds of messages to CourierRunner;
      * 2. it can deal with all these messages;
      * 3. it only handle those messages it wants.
-     * 4. exit when get the EXIT command.
+     * 4. exit when get the EXIT control.
      */
     @Test
     public void courierRunnerTest() throws InterruptedException {
@@ -211,8 +342,7 @@ public class UnitTests {
                 inQueue.add(order1);
             }
             // cooked orders
-            CSOrder order2 = new CSOrder(true);
-            order2.setReadyTime(System.currentTimeMillis());
+            CSOrder order2 = new CSOrder(true).ready(System.currentTimeMillis());
             if (cr.filter(order2)) {
                 inQueue.add(order2);
             }
@@ -222,17 +352,14 @@ public class UnitTests {
                 inQueue.add(courier1);
             }
             // arrived couriers
-            CSCourier courier2 = new CSCourier(3, 15);
-            courier2.setArriveTime(System.currentTimeMillis());
+            CSCourier courier2 = new CSCourier(3, 15).arrived(System.currentTimeMillis());
             if (cr.filter(courier2)) {
                 inQueue.add(courier2);
             }
         }
 
-        // send exit command
-        CSOrder order = new CSOrder(false);
-        order.setCommand(CSKitchen.CMD_EXIT, "100");
-        inQueue.add(order);
+        // send exit control
+        cr.control(CSControl.exit(100));
 
         Integer total = cr.call();
         Thread.sleep(16 * CSKitchen.THOUSAND);
@@ -248,7 +375,7 @@ public class UnitTests {
      * 1. send all kinds of messages to FoodCooker;
      * 2. it can deal with all these messages;
      * 3. it only handle those messages it wants.
-     * 4. exit when get the EXIT command.
+     * 4. exit when get the EXIT control.
      */
     @Test
     public void foodCookerTest() {
@@ -264,8 +391,7 @@ public class UnitTests {
                 inQueue.add(order1);
             }
             // cooked orders
-            CSOrder order2 = new CSOrder(true);
-            order2.setReadyTime(System.currentTimeMillis());
+            CSOrder order2 = new CSOrder(true).ready(System.currentTimeMillis());
             if (fc.filter(order2)) {
                 inQueue.add(order2);
             }
@@ -275,17 +401,14 @@ public class UnitTests {
                 inQueue.add(courier1);
             }
             // arrived couriers
-            CSCourier courier2 = new CSCourier(3, 15);
-            courier2.setArriveTime(System.currentTimeMillis());
+            CSCourier courier2 = new CSCourier(3, 15).arrived(System.currentTimeMillis());
             if (fc.filter(courier2)) {
                 inQueue.add(courier2);
             }
         }
 
-        // send exit command
-        CSOrder order = new CSOrder(false);
-        order.setCommand(CSKitchen.CMD_EXIT, "100");
-        inQueue.add(order);
+        // send exit control
+        fc.control(CSControl.exit(100));
 
         Integer total = fc.call();
         assertEquals(100, (int) total);
@@ -297,7 +420,7 @@ public class UnitTests {
      * 1. create some orders;
      * 2. create the same amount of couriers, but only assign 1/2 of them to the orders;
      * 3. apply the MATCH strategy, only half orders will be matched.
-     * 4. exit when get the EXIT command.
+     * 4. exit when get the EXIT control.
      */
     @Test
     public void strategyMATCHTest() {
@@ -313,37 +436,138 @@ public class UnitTests {
                 inQueue.add(order1);
             }
             // cooked orders
-            CSOrder order2 = new CSOrder(true);
-            order2.setReadyTime(System.currentTimeMillis());
+            CSOrder order2 = new CSOrder(true).ready(System.currentTimeMillis());
             inQueue.add(order2);
             // new couriers, should be rejected
             CSCourier courier1 = new CSCourier(3, 15);
             inQueue.add(courier1);
             // arrived couriers
-            CSCourier courier2 = new CSCourier(3, 15);
-            courier2.setArriveTime(System.currentTimeMillis());
-            if (i % 2 == 1) {
-                courier2.setOrderPickedUp(order2.getOrderId());
-            }
+            CSCourier courier2 = new CSCourier(3, 15, i % 2 == 1 ? order2.getOrderId() : CSOrder.NO_ORDER)
+                    .arrived(System.currentTimeMillis());
             inQueue.add(courier2);
         }
 
-        // send exit command
-        CSOrder order = new CSOrder(false);
-        order.setCommand(CSKitchen.CMD_EXIT, "50");
-        inQueue.add(order);
+        // send exit control
+        ms1.control(CSControl.exit(50));
 
         Integer total = ms1.call();
         assertEquals(50, (int) total);
         assertEquals(0, mainQueue.size());
     }
 
+    /**
+     * Test the MATCH strategy with a large backlog.
+     * 1. all food is ready before any courier arrives;
+     * 2. the couriers arrive in the reverse order, every one should find its order.
+     */
+    @Test
+    public void strategyMATCHBacklogTest() {
+        final int total = 50000;
+        StrategyMatch strategy = new StrategyMatch();
+        List<CSOrder> orders = new ArrayList<>();
+        for (int i = 0; i < total; i++) {
+            CSOrder order = new CSOrder(true).ready(System.currentTimeMillis());
+            assertNull(strategy.apply(order));
+            orders.add(order);
+        }
+        for (int i = total - 1; i >= 0; i--) {
+            CSCourier courier = new CSCourier(3, 15, orders.get(i).getOrderId()).arrived(System.currentTimeMillis());
+            assertSame(orders.get(i), strategy.apply(courier));
+        }
+        assertEquals(total, strategy.getOrderCount());
+    }
+
+    /**
+     * Test the sharded MATCH strategy.
+     * 1. orders and couriers are spread over 4 shards by order id;
+     * 2. every order should meet its courier in the same shard;
+     * 3. the EXIT control reaches all shards, all of them quit when all orders are matched;
+     * 4. the strategy of the matcher holds the counters of all shards;
+     * 5. the metrics read together merge the shards once.
+     */
+    @Test
+    public void strategyMATCHShardTest() {
+        final int total = 200;
+        final AtomicInteger created = new AtomicInteger(0);
+        MatcherStrategy ms = new MatcherStrategy(() -> {
+            created.incrementAndGet();
+            return new StrategyMatch();
+        }, 4);
+        Queue<CSMessage> inQueue = ms.getInQueue();
+        for (int i = 0; i < total; i++) {
+            CSOrder order = new CSOrder(true).ready(System.currentTimeMillis());
+            CSCourier courier = new CSCourier(3, 15, order.getOrderId()).arrived(System.currentTimeMillis());
+            if (i % 2 == 0) {
+                inQueue.add(order);
+                inQueue.add(courier);
+            } else {
+                inQueue.add(courier);
+                inQueue.add(order);
+            }
+        }
+
+        ms.control(CSControl.exit(total));
+
+        Integer matched = ms.call();
+        assertEquals(total, (int) matched);
+        assertEquals(0, inQueue.size());
+        assertFalse(ms.isAlive());
+        assertEquals(total, ms.getStrategy().getOrderCount());
+
+        created.set(0);
+        final MetricsRegistry metrics = MetricsRegistry.getInstance();
+        assertEquals(total, metrics.get("MATCH.matched"));
+        for (String gauge : new String[] {"foodWaitMean", "foodWaitP99", "courierWaitMean", "courierWaitP99"}) {
+            assertTrue(metrics.get("MATCH." + gauge) >= 0L);
+        }
+        assertEquals(1, created.get());
+    }
+
+    /**
+     * Test the rendezvous of the MATCH strategy.
+     * 1. orders and their couriers come from two threads at the same time;
+     * 2. every pair should be matched exactly once, by whichever side comes second;
+     * 3. no slot is left behind.
+     */
+    @Test
+    public void strategyRendezvousTest() throws Exception {
+        final int total = 5000;
+        final StrategyRendezvous strategy = new StrategyRendezvous();
+        final List<CSOrder> orders = new ArrayList<>();
+        final List<CSCourier> couriers = new ArrayList<>();
+        for (int i = 0; i < total; i++) {
+            CSOrder order = new CSOrder(true).ready(System.currentTimeMillis());
+            CSCourier courier = new CSCourier(3, 15, order.getOrderId()).arrived(System.currentTimeMillis());
+            orders.add(order);
+            couriers.add(courier);
+        }
+        final AtomicInteger matched = new AtomicInteger(0);
+        Thread cooker = new Thread(() -> orders.forEach(o -> {
+            if (strategy.apply(o) != null) {
+                matched.incrementAndGet();
+            }
+        }));
+        Thread runner = new Thread(() -> couriers.forEach(c -> {
+            if (strategy.apply(c) != null) {
+                matched.incrementAndGet();
+            }
+        }));
+        cooker.start();
+        runner.start();
+        cooker.join();
+        runner.join();
+
+        assertEquals(total, matched.get());
+        assertEquals(total, strategy.getOrderCount());
+        assertEquals(0, strategy.getWaiting());
+    }
+
     /**
      * Test the FIFO strategy.
      * 1. create some couriers;
      * 2. create some orders without couriers assigned;
      * 3. apply FIFO strategy, those orders and couriers will be matched.
-     * 4. exit when get the EXIT command.
+     * 4. exit when get the EXIT control.
      */
     @Test
     public void strategyFIFOTest() throws InterruptedException {
@@ -353,7 +577,7 @@ public class UnitTests {
         ms2.setOutQueue(mainQueue);
         for (int i = 0; i < 110; i++) {
             CSCourier courier = new CSCourier(3, 15);
-            courier.setArriveTime(courier.getDispatchTime() + courier.getArrivePeriod() * 1000L);
+            courier = courier.arrived(courier.getDispatchTime() + courier.getArrivePeriod() * 1000L);
             inQueue.add(courier);
             Thread.sleep(1);
         }
@@ -362,22 +586,1067 @@ public class UnitTests {
             CSOrder order1 = new CSOrder(true);
             inQueue.add(order1);
             // cooked orders
-            CSOrder order2 = new CSOrder(true);
-            order2.setReadyTime(System.currentTimeMillis());
+            CSOrder order2 = new CSOrder(true).ready(System.currentTimeMillis());
             inQueue.add(order2);
             // new couriers, should be rejected
             CSCourier courier1 = new CSCourier(3, 15);
             inQueue.add(courier1);
         }
 
-        // send exit command
-        CSOrder order = new CSOrder(false);
-        order.setCommand(CSKitchen.CMD_EXIT, "100");
-        inQueue.add(order);
+        // send exit control
+        ms2.control(CSControl.exit(100));
 
         Integer total = ms2.call();
         assertEquals(100, (int) total);
         assertEquals(0, mainQueue.size());
 
     }
+
+    /**
+     * Test the matching order of the FIFO strategy.
+     * 1. couriers arrive out of order, with some of the same arrival time;
+     * 2. every ready order should take the earliest arrived courier,
+     *    on a fixed clock the courier wait then adds up to the wait of the earliest couriers;
+     * 3. when couriers run out, orders wait and go to the next couriers in their ready order.
+     */
+    @Test
+    public void strategyFIFOOrderTest() {
+        StrategyFIFO strategy = new StrategyFIFO();
+        List<CSCourier> couriers = new ArrayList<>();
+        final long base = System.currentTimeMillis();
+        for (int i = 0; i < 100; i++) {
+            CSCourier courier = new CSCourier(3, 15).arrived(base + CSCourier.uniformDistribution(1, 20));
+            assertNull(strategy.apply(courier));
+            couriers.add(courier);
+        }
+        couriers.sort((o1, o2) -> Long.compare(o1.getArriveTime(), o2.getArriveTime()));
+        final EventSimulator clock = new EventSimulator(base + 1000L);
+        Timers.install(null, clock);
+        try {
+            long courierWait = 0L;
+            for (int i = 0; i < 100; i++) {
+                CSOrder order = new CSOrder(true).ready(base);
+                assertSame(order, strategy.apply(order));
+                courierWait += clock.currentTimeMillis() - couriers.get(i).getArriveTime();
+                assertEquals(courierWait, strategy.getCourierLatency());
+            }
+        } finally {
+            Timers.install(null, null);
+        }
+
+        List<CSOrder> orders = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            CSOrder order = new CSOrder(true).ready(System.currentTimeMillis());
+            assertNull(strategy.apply(order));
+            orders.add(order);
+        }
+        for (CSOrder order : orders) {
+            CSCourier courier = new CSCourier(3, 15).arrived(System.currentTimeMillis());
+            assertSame(order, strategy.apply(courier));
+        }
+        assertEquals(110, strategy.getOrderCount());
+    }
+
+    /**
+     * Test the BATCH strategy.
+     * 1. the assignment should cost the same as the best of all assignments, found by brute force,
+     *    with the buffers of the solver reused over the rounds;
+     * 2. the forced participants must be assigned;
+     * 3. the pairs are picked up at the flush, the assignment picks the pairs of the least gap;
+     * 4. a participant left over is matched in the next window, even when a later message is older;
+     * 5. all orders and couriers are matched by the window ticks, the matcher quits on the EXIT control.
+     */
+    @Test
+    public void strategyBatchTest() {
+        final StrategyBatch.Assignment assignment = new StrategyBatch.Assignment();
+        for (int round = 0; round < 200; round++) {
+            final long[] small = new long[CSCourier.uniformDistribution(1, 4)];
+            final long[] large = new long[small.length + CSCourier.uniformDistribution(0, 3)];
+            for (int i = 0; i < small.length; i++) {
+                small[i] = CSCourier.uniformDistribution(0, 100);
+            }
+            for (int j = 0; j < large.length; j++) {
+                large[j] = CSCourier.uniformDistribution(0, 100);
+            }
+            Arrays.sort(small);
+            Arrays.sort(large);
+            final boolean[] forced = new boolean[large.length];
+            for (int j = 0, count = 0; j < large.length && count < small.length; j++) {
+                forced[j] = CSCourier.uniformDistribution(0, 1) == 1;
+                count += forced[j] ? 1 : 0;
+            }
+            final int[] assigned = assignment.solve(small, small.length, large, large.length, forced);
+
+            final boolean[] taken = new boolean[large.length];
+            long cost = 0L;
+            for (int i = 0; i < small.length; i++) {
+                assertFalse(taken[assigned[i]]);
+                taken[assigned[i]] = true;
+                cost += Math.abs(small[i] - large[assigned[i]]);
+            }
+            for (int j = 0; j < large.length; j++) {
+                assertTrue(!forced[j] || taken[j]);
+            }
+            assertEquals(bestAssignment(small, large, forced, 0, new boolean[large.length]), cost);
+        }
+
+        final StrategyBatch batch = new StrategyBatch(100);
+        Timers.install(null, new EventSimulator(1000L));
+        try {
+            batch.apply(new CSCourier(3, 15).arrived(500L));
+            batch.apply(new CSCourier(3, 15).arrived(600L));
+            batch.apply(new CSOrder(true).ready(560L));
+            assertEquals(1, batch.flush());
+            assertEquals(440L, batch.getFoodLatency());
+            assertEquals(400L, batch.getCourierLatency()); // the courier at 600 is the nearer one
+            // the courier at 500 is left over, the one at 50 is older but new to the window
+            batch.apply(new CSCourier(3, 15).arrived(50L));
+            batch.apply(new CSOrder(true).ready(40L));
+            assertEquals(1, batch.flush());
+            assertEquals(440L + 960L, batch.getFoodLatency());
+            assertEquals(400L + 500L, batch.getCourierLatency());
+            batch.apply(new CSOrder(true).ready(60L));
+            assertEquals(1, batch.flush());
+            assertEquals(440L + 960L + 940L, batch.getFoodLatency());
+            assertEquals(400L + 500L + 950L, batch.getCourierLatency());
+            assertEquals(3, batch.getOrderCount());
+        } finally {
+            Timers.install(null, null);
+        }
+
+        final int total = 50;
+        MatcherStrategy ms = new MatcherStrategy(new StrategyBatch(50));
+        Queue<CSMessage> inQueue = ms.getInQueue();
+        for (int i = 0; i < total; i++) {
+            CSOrder order = new CSOrder(true).ready(System.currentTimeMillis()
+                    + CSCourier.uniformDistribution(0, 1000));
+            inQueue.add(order);
+            CSCourier courier = new CSCourier(3, 15).arrived(System.currentTimeMillis()
+                    + CSCourier.uniformDistribution(0, 1000));
+            inQueue.add(courier);
+        }
+        ms.control(CSControl.exit(total));
+
+        assertEquals(total, (int) ms.call());
+    }
+
+    /**
+     * Test the pickup time of the BATCH strategy against FIFO, on the same arrivals in a simulation.
+     * 1. every pair of BATCH is picked up when its window is flushed, never before, and after both are there;
+     * 2. picking up at the flush, the total wait of BATCH is never below FIFO, which matches as early as possible.
+     */
+    @Test
+    public void strategyBatchPickupTest() {
+        final int total = 500;
+        final EventSimulator engine = new EventSimulator(1000L);
+        final StrategyFIFO fifo = new StrategyFIFO();
+        final List<long[]> pickups = new ArrayList<>(); // { pickup time, clock at the pickup, ready, arrive }
+        final StrategyBatch batch = new StrategyBatch(200) {
+            @Override
+            protected void doMatch(final CSOrder order, final CSCourier courier, final long timestamp) {
+                pickups.add(new long[] {timestamp, Timers.clock().currentTimeMillis(),
+                        order.getReadyTime(), courier.getArriveTime()});
+                super.doMatch(order, courier, timestamp);
+            }
+        };
+        Timers.install(engine, engine);
+        try {
+            final MatcherStrategy batchMatcher = new MatcherStrategy(batch);
+            final Random random = new Random(42L);
+            for (int i = 0; i < total; i++) {
+                final long ready = random.nextInt(60000);
+                final long arrive = random.nextInt(60000);
+                engine.schedule(() -> {
+                    final CSOrder order = new CSOrder(true).ready(engine.currentTimeMillis());
+                    fifo.apply(order);
+                    batchMatcher.onMessage(order);
+                }, ready, TimeUnit.MILLISECONDS);
+                engine.schedule(() -> {
+                    final CSCourier courier = new CSCourier(3, 15).arrived(engine.currentTimeMillis());
+                    fifo.apply(courier);
+                    batchMatcher.onMessage(courier);
+                }, arrive, TimeUnit.MILLISECONDS);
+            }
+            engine.run(() -> { });
+        } finally {
+            Timers.install(null, null);
+        }
+
+        assertEquals(total, fifo.getOrderCount());
+        assertEquals(total, batch.getOrderCount());
+        assertEquals(total, pickups.size());
+        for (long[] pickup : pickups) {
+            assertEquals(pickup[1], pickup[0]);
+            assertTrue(pickup[0] >= Math.max(pickup[2], pickup[3]));
+        }
+        assertTrue(batch.getFoodLatency() + batch.getCourierLatency()
+                >= fifo.getFoodLatency() + fifo.getCourierLatency());
+    }
+
+    private long bestAssignment(final long[] small, final long[] large, final boolean[] forced, final int i,
+                                final boolean[] taken) {
+        if (i == small.length) {
+            for (int j = 0; j < large.length; j++) {
+                if (forced[j] && !taken[j]) {
+                    return Long.MAX_VALUE;
+                }
+            }
+            return 0L;
+        }
+        long best = Long.MAX_VALUE;
+        for (int j = 0; j < large.length; j++) {
+            if (!taken[j]) {
+                taken[j] = true;
+                final long rest = bestAssignment(small, large, forced, i + 1, taken);
+                if (rest != Long.MAX_VALUE) {
+                    best = Math.min(best, rest + Math.abs(small[i] - large[j]));
+                }
+                taken[j] = false;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Test the control plane.
+     * 1. a paused OrderGenerator sends no orders until resumed;
+     * 2. a resized one sends at the new rate;
+     * 3. a drained one stops early, and broadcasts EXIT with the number of orders it sent;
+     * 4. a CourierDispatcher gets the EXIT out-of-band, and quits when it handled exactly those orders.
+     */
+    @Test
+    public void controlPlaneTest() throws InterruptedException {
+        ControlPlane controlPlane = ControlPlane.getInstance();
+        controlPlane.clear();
+        BlockingQueue<CSMessage> orders = new ArrayBlockingQueue<>(2000);
+        OrderGenerator og = new OrderGenerator(5, 1000, true);
+        og.setOutQueue(orders);
+        controlPlane.register(og);
+        CourierDispatcher cd = new CourierDispatcher();
+        BlockingQueue<CSMessage> couriers = new ArrayBlockingQueue<>(2000);
+        cd.setOutQueue(couriers);
+        controlPlane.register(cd);
+
+        AtomicInteger generated = new AtomicInteger(-1);
+        Thread generator = new Thread(() -> generated.set(og.call()));
+        generator.start();
+        Thread.sleep(1500);
+        controlPlane.pause();
+        Thread.sleep(600);
+        int paused = orders.size();
+        assertEquals(10, paused);
+        Thread.sleep(1000);
+        assertEquals(paused, orders.size());
+
+        controlPlane.resize(50);
+        controlPlane.resume();
+        Thread.sleep(1500);
+        assertTrue(orders.size() >= paused + 50);
+        controlPlane.drain();
+        generator.join(5000);
+        assertFalse(generator.isAlive());
+        assertTrue(generated.get() < 1000);
+        assertEquals(orders.size(), generated.get());
+
+        orders.drainTo(cd.getInQueue());
+        assertEquals(generated.get(), (int) cd.call());
+        assertEquals(generated.get(), couriers.size());
+        controlPlane.clear();
+    }
+
+    /**
+     * Test the routing table of the MessageDispatcher.
+     * 1. create messages of all kinds and lifecycle states;
+     * 2. each message should report the expected route;
+     * 3. every handler subscribes to exactly the routes its filter accepts.
+     */
+    @Test
+    public void messageRouteTest() {
+        CSOrder order1 = new CSOrder(true);
+        CSOrder order2 = new CSOrder(true).ready(System.currentTimeMillis());
+        CSCourier courier1 = new CSCourier(3, 15);
+        CSCourier courier2 = new CSCourier(3, 15).arrived(System.currentTimeMillis());
+
+        assertEquals(MessageRoute.ORDER_NEW, order1.getRoute());
+        assertEquals(MessageRoute.ORDER_READY, order2.getRoute());
+        assertEquals(MessageRoute.COURIER_DISPATCHED, courier1.getRoute());
+        assertEquals(MessageRoute.COURIER_ARRIVED, courier2.getRoute());
+
+        IMessageHandler[] handlers = {new OrderGenerator(1, 1, true), new FoodCooker(), new CourierDispatcher(),
+                new CourierRunner(), new MatcherStrategy(new StrategyMatch())};
+        CSMessage[] messages = {order1, order2, courier1, courier2};
+        for (IMessageHandler mh : handlers) {
+            for (CSMessage msg : messages) {
+                assertEquals(mh.filter(msg), mh.getRoutes().contains(msg.getRoute()));
+            }
+        }
+    }
+
+    /**
+     * Test the lock-free ring buffer message queue.
+     * 1. several producers put messages to a small ring, some of them in batches;
+     * 2. one consumer takes all of them, none is lost or duplicated;
+     * 3. the messages of each producer are taken in the order they were put.
+     */
+    @Test
+    public void ringMessageQueueTest() throws Exception {
+        final int producers = 4;
+        final int perProducer = 20000;
+        final RingMessageQueue ring = new RingMessageQueue(1000, new BlockingWaitStrategy());
+        assertEquals(1024, ring.remainingCapacity());
+
+        final Map<Integer, Integer> owner = new HashMap<>();
+        final List<List<CSMessage>> inputs = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            List<CSMessage> input = new ArrayList<>();
+            for (int i = 0; i < perProducer; i++) {
+                CSCourier courier = new CSCourier(3, 15);
+                owner.put(courier.getMsgID(), p);
+                input.add(courier);
+            }
+            inputs.add(input);
+        }
+
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            final List<CSMessage> input = inputs.get(p);
+            final boolean batched = p % 2 == 0;
+            Thread thread = new Thread(() -> {
+                int sent = 0;
+                while (sent < input.size()) {
+                    if (batched) {
+                        sent += ring.offerBatch(input.subList(0, Math.min(input.size(), sent + 16)), sent);
+                    } else if (ring.offer(input.get(sent))) {
+                        sent++;
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+
+        int[] last = new int[producers];
+        int received = 0;
+        while (received < producers * perProducer) {
+            CSMessage msg = ring.poll(1, TimeUnit.SECONDS);
+            assertNotNull(msg);
+            int p = owner.get(msg.getMsgID());
+            assertTrue(msg.getMsgID() > last[p]);
+            last[p] = msg.getMsgID();
+            received++;
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertNull(ring.poll());
+        assertEquals(0, ring.size());
+    }
+
+    /**
+     * Test the partitioned message queue of the dispatch lanes.
+     * 1. put the order, its courier and the ready order of many orders to a partitioned queue;
+     * 2. all messages about the same order should be in the same lane;
+     * 3. every lane should get a fair share of the orders;
+     * 4. taking from the queue takes from every lane, each lane in its order, and times out when all are empty.
+     */
+    @Test
+    public void partitionedQueueTest() throws InterruptedException {
+        final int laneCount = 4;
+        final int total = 1000;
+        List<BlockingQueue<CSMessage>> lanes = new ArrayList<>();
+        for (int i = 0; i < laneCount; i++) {
+            lanes.add(new ArrayBlockingQueue<>(total * 3));
+        }
+        PartitionedMessageQueue queue = new PartitionedMessageQueue(lanes);
+        for (int i = 0; i < total; i++) {
+            CSOrder order = new CSOrder(true);
+            CSCourier courier = new CSCourier(3, 15, order.getOrderId());
+            assertTrue(queue.offer(order));
+            assertTrue(queue.offer(courier));
+        }
+        assertEquals(total * 2, queue.size());
+
+        for (BlockingQueue<CSMessage> lane : lanes) {
+            assertEquals(0, lane.size() % 2);
+            assertTrue(lane.size() > total * 2 / laneCount / 2);
+            while (!lane.isEmpty()) {
+                CSOrder order = (CSOrder) lane.poll();
+                CSCourier courier = (CSCourier) lane.poll();
+                assertEquals(order.getOrderId(), courier.getOrderPickedUp());
+            }
+        }
+
+        for (int i = 0; i < total; i++) {
+            CSOrder order = new CSOrder(true);
+            assertTrue(queue.offer(order));
+            assertTrue(queue.offer(new CSCourier(3, 15, order.getOrderId())));
+        }
+        final List<CSMessage> seen = new ArrayList<>();
+        seen.add(queue.poll());
+        while (seen.size() < total) {
+            seen.add(queue.take());
+        }
+        assertEquals(total - 1, queue.drainTo(seen, total - 1));
+        assertEquals(1, queue.drainTo(seen));
+        assertTrue(queue.isEmpty());
+        final Set<Long> ordered = new HashSet<>();
+        for (CSMessage msg : seen) {
+            if (msg instanceof CSOrder) {
+                assertTrue(ordered.add(((CSOrder) msg).getOrderId()));
+            } else {
+                assertTrue(ordered.contains(((CSCourier) msg).getOrderPickedUp()));
+            }
+        }
+        assertEquals(total * 2, seen.size());
+        assertNull(queue.poll(10, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Test the admission of the executor.
+     * 1. submitting more tasks than admitted returns at once, the others wait for admission;
+     * 2. no more tasks than admitted run at a time, the waiting ones start when a running one ends;
+     * 3. after shutdown, the waiting tasks still run, and the executor terminates;
+     * 4. a task keeping the only carrier busy shows up in the sampled peak utilisation.
+     */
+    @Test
+    public void admissionExecutorTest() throws Exception {
+        final int total = 10;
+        final AdmissionExecutor executor = new AdmissionExecutor("Test-Admission ",
+                Executors.newCachedThreadPool(), 2, 2);
+        final CountDownLatch hold = new CountDownLatch(1);
+        final AtomicInteger done = new AtomicInteger(0);
+        final long start = System.nanoTime();
+        for (int i = 0; i < total; i++) {
+            executor.execute(() -> {
+                try {
+                    hold.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                done.incrementAndGet();
+            });
+        }
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(500));
+        Thread.sleep(50);
+        assertEquals(2, executor.getActiveCount());
+        assertEquals(0, done.get());
+
+        executor.shutdown();
+        hold.countDown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(total, done.get());
+        assertEquals(2, executor.getPeakCount());
+        assertTrue(executor.isTerminated());
+        executor.printStatistics();
+
+        // a task spinning on the only carrier should show up in the sampled peak utilisation
+        final AdmissionExecutor busy = new AdmissionExecutor("Test-Busy ", Executors.newSingleThreadExecutor(), 1, 1);
+        busy.execute(() -> {
+            final long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(400);
+            long spins = 0L;
+            while (System.nanoTime() < end) {
+                spins++;
+            }
+            assertTrue(spins > 0L);
+        });
+        busy.shutdown();
+        assertTrue(busy.awaitTermination(5, TimeUnit.SECONDS));
+        busy.printStatistics();
+        if (ManagementFactory.getThreadMXBean().isThreadCpuTimeSupported()) {
+            assertTrue(busy.getPeakUtilisation() >= 20);
+        }
+    }
+
+    /**
+     * Test the hashed timing wheel.
+     * 1. schedule tasks with random delays, some of them longer than a round of the wheel;
+     * 2. every task should run once, not before its delay and not much later than it.
+     */
+    @Test
+    public void timerWheelTest() throws Exception {
+        final int total = 1000;
+        final TimerWheel timer = new TimerWheel("Test-Timer", 10, 16);
+        final CountDownLatch latch = new CountDownLatch(total);
+        final AtomicInteger early = new AtomicInteger(0);
+        final AtomicInteger late = new AtomicInteger(0);
+        for (int i = 0; i < total; i++) {
+            final long delay = CSCourier.uniformDistribution(0, 600);
+            final long start = System.nanoTime();
+            timer.schedule(() -> {
+                long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                if (elapsed < delay) {
+                    early.incrementAndGet();
+                }
+                if (elapsed > delay + 100) {
+                    late.incrementAndGet();
+                }
+                latch.countDown();
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals(0, early.get());
+        assertEquals(0, late.get());
+        assertEquals(0, timer.getPending());
+    }
+
+    /**
+     * Test the retry scheduler of the Message Dispatcher.
+     * 1. retry a message to a full queue, it is re-sent once the queue has room;
+     * 2. retry a message to an inactive receiver, it is discarded;
+     * 3. retries beyond the bound of pending retries are discarded at once.
+     */
+    @Test
+    public void retrySchedulerTest() throws Exception {
+        ArrayBlockingQueue<CSMessage> queue = new ArrayBlockingQueue<>(1);
+        CSOrder blocker = new CSOrder(true);
+        queue.add(blocker);
+        RetryScheduler retry = new RetryScheduler("Test-Retry", new TimerWheel("Test-Timer", 10, 64),
+                BackoffPolicy.FIXED, 3, 2);
+
+        CSOrder order = new CSOrder(true);
+        assertTrue(retry.retry(queue, order, () -> true));
+        assertTrue(retry.retry(queue, new CSOrder(true), () -> false));
+        assertFalse(retry.retry(queue, new CSOrder(true), null));
+        assertEquals(2, retry.getPending());
+        assertEquals(1, retry.getDiscarded());
+
+        queue.poll();
+        retry.awaitCompletion();
+        assertEquals(order, queue.poll());
+        assertEquals(2, retry.getDiscarded());
+        assertEquals(2, retry.getPeakPending());
+    }
+
+    /**
+     * Test the discrete-event engine.
+     * 1. events run in the order of their virtual time, events of the same time in the order scheduled;
+     * 2. the clock jumps to the time of every event, events scheduled by an event are run too.
+     */
+    @Test
+    public void eventSimulatorTest() {
+        final EventSimulator engine = new EventSimulator(1000L);
+        final List<Long> times = new ArrayList<>();
+        final List<Integer> order = new ArrayList<>();
+        engine.schedule(() -> order.add(3), 5, TimeUnit.SECONDS);
+        engine.schedule(() -> order.add(1), 2, TimeUnit.SECONDS);
+        engine.schedule(() -> {
+            order.add(2);
+            engine.schedule(() -> order.add(4), 10, TimeUnit.SECONDS);
+        }, 2, TimeUnit.SECONDS);
+        assertEquals(3, engine.getPending());
+
+        assertEquals(4, engine.run(() -> times.add(engine.currentTimeMillis())));
+        assertEquals(Arrays.asList(1, 2, 3, 4), order);
+        assertEquals(Arrays.asList(3000L, 3000L, 6000L, 13000L), times);
+        assertEquals(12000L, engine.getElapsed());
+        assertEquals(0, engine.getPending());
+    }
+
+    /**
+     * Test the simulation mode.
+     * 1. all orders are matched by both strategies, far faster than the virtual time passed;
+     * 2. all events are on whole seconds of the virtual clock, so are the wait times;
+     * 3. the system clock is restored after the run.
+     */
+    @Test
+    public void simulationTest() {
+        final int total = 200;
+        final long start = System.nanoTime();
+        List<AbstractStrategy> strategies = new CSSimulation(total, 20, 3, true).run();
+        final long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertEquals(2, strategies.size());
+        for (AbstractStrategy strategy : strategies) {
+            assertEquals(total, strategy.getOrderCount());
+            assertEquals(0L, strategy.getFoodLatency() % CSKitchen.THOUSAND);
+            assertEquals(0L, strategy.getCourierLatency() % CSKitchen.THOUSAND);
+        }
+        // 10 seconds of orders plus preparing and delivering
+        assertTrue(elapsed < 10 * CSKitchen.THOUSAND);
+        assertSame(SystemClock.INSTANCE, Timers.clock());
+    }
+
+    /**
+     * Test the estimator of the courier arrival delay.
+     * 1. the prior is the estimate before enough arrivals are counted;
+     * 2. while couriers are on the way, the early arrivals with short delays do not bias the median low;
+     * 3. the median of uniformly distributed delays should be in the middle of the range.
+     */
+    @Test
+    public void arrivalEstimatorTest() {
+        ArrivalEstimator estimator = new ArrivalEstimator(5000L, 15000L);
+        estimator.observe(0L, 1000L);
+        assertEquals(5000L, estimator.getMedian());
+        assertEquals(0L, estimator.getSamples()); // not resolved yet
+
+        // a courier dispatched every 10 ms, with the delays spread evenly over 3 to 15 seconds
+        List<long[]> couriers = new ArrayList<>();
+        for (int i = 0; i < 100000; i++) {
+            final long dispatch = 20000L + i * 10L;
+            couriers.add(new long[] {dispatch, dispatch + 3000L + (i * 7919L) % 12001L});
+        }
+        couriers.sort((x, y) -> Long.compare(x[1], y[1])); // observed in the order of arrival
+        for (int i = 0; i < couriers.size(); i++) {
+            estimator.observe(couriers.get(i)[0], couriers.get(i)[1]);
+            if (estimator.getSamples() >= 1000 && i % 1000 == 0) {
+                assertEquals(9000L, estimator.getMedian(), 200L);
+            }
+        }
+        assertEquals(9000L, estimator.getMedian(), 200L);
+        assertEquals(1050L, estimator.estimate(0.0));
+        assertEquals(15000L, estimator.estimate(1.0), 100L);
+    }
+
+    /**
+     * Test the predictive courier dispatch in the simulation mode.
+     * The couriers of the orders taking longer than the median arrival delay should arrive closer to
+     * the food ready time, so the total wait of MATCH should drop, by about 9% in theory.
+     * The runs vary by about 1%, a drop of 3% is required so that a random run does not fail.
+     */
+    @Test
+    public void predictiveDispatchTest() {
+        final int total = 5000;
+        long waits = 0L;
+        for (AbstractStrategy strategy : new CSSimulation(total, 100, 1, true).run()) {
+            waits += strategy.getFoodLatency() + strategy.getCourierLatency();
+        }
+        CSKitchen.predictiveDispatch = true;
+        try {
+            long predictedWaits = 0L;
+            for (AbstractStrategy strategy : new CSSimulation(total, 100, 1, true).run()) {
+                assertEquals(total, strategy.getOrderCount());
+                predictedWaits += strategy.getFoodLatency() + strategy.getCourierLatency();
+            }
+            assertTrue(predictedWaits + " vs " + waits, predictedWaits < waits * 0.97);
+        } finally {
+            CSKitchen.predictiveDispatch = false;
+        }
+    }
+
+    /**
+     * Test the latency histogram.
+     * 1. the percentiles are within the precision of the buckets, the max is exact;
+     * 2. the values recorded by concurrent threads are all counted;
+     * 3. merging adds up the histograms, an interval snapshot only has the values since the previous one.
+     */
+    @Test
+    public void latencyHistogramTest() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0L, histogram.getValueAtPercentile(99.0));
+        for (long v = 1; v <= 100000; v++) {
+            histogram.record(v);
+        }
+        assertEquals(100000L, histogram.getCount());
+        assertEquals(100000L * 100001 / 2, histogram.getSum());
+        assertEquals(100000L, histogram.getMax());
+        assertEquals(1L, histogram.getValueAtPercentile(0.0));
+        for (double p : new double[]{50.0, 90.0, 99.0, 99.9}) {
+            final double expected = p * 1000;
+            assertEquals(expected, histogram.getValueAtPercentile(p), expected / 64);
+        }
+        assertEquals(100000L, histogram.getValueAtPercentile(100.0));
+
+        LatencyHistogram interval = histogram.intervalSnapshot();
+        assertEquals(100000L, interval.getCount());
+        histogram.record(5L);
+        histogram.record(-1L);
+        interval = histogram.intervalSnapshot();
+        assertEquals(2L, interval.getCount());
+        assertEquals(5L, interval.getMax());
+        assertEquals(0L, interval.getValueAtPercentile(50.0));
+
+        LatencyHistogram concurrent = new LatencyHistogram();
+        final Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final long base = t * 1000000L;
+            threads[t] = new Thread(() -> {
+                for (long v = 0; v < 100000; v++) {
+                    concurrent.record(base + v);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(400000L, concurrent.getCount());
+        assertEquals(3099999L, concurrent.getMax());
+
+        LatencyHistogram merged = histogram.snapshot();
+        merged.merge(concurrent);
+        assertEquals(500002L, merged.getCount());
+        assertEquals(3099999L, merged.getMax());
+        assertEquals(histogram.getSum() + concurrent.getSum(), merged.getSum());
+    }
+
+    /**
+     * Test the order tracing.
+     * 1. nothing is traced unless a tracer is installed;
+     * 2. the hops of the courier are traced to its order;
+     * 3. the pickup completes the trace, the segments are recorded, a later pickup is ignored.
+     */
+    @Test
+    public void orderTracerTest() throws Exception {
+        CSOrder untraced = new CSOrder(true);
+        OrderTracer.trace(untraced, Stage.EMIT);
+        assertNull(OrderTracer.tracer());
+
+        OrderTracer tracer = new OrderTracer();
+        OrderTracer.install(tracer);
+        try {
+            CSOrder order = new CSOrder(true);
+            OrderTracer.trace(order, Stage.EMIT);
+            OrderTracer.trace(order, Stage.ROUTE);
+            OrderTracer.trace(order, Stage.COOK_START);
+            CSCourier courier = new CSCourier(3, 15, order.getOrderId());
+            OrderTracer.trace(courier, Stage.COURIER_DISPATCH);
+            OrderTracer.trace(untraced, Stage.ROUTE);
+            Thread.sleep(20);
+            CSOrder ready = order.ready(System.currentTimeMillis());
+            OrderTracer.trace(ready, Stage.COOK_FINISH);
+            OrderTracer.trace(ready, Stage.MATCH_DEQUEUE);
+            CSCourier arrived = courier.arrived(System.currentTimeMillis());
+            OrderTracer.trace(arrived, Stage.ARRIVE);
+            OrderTracer.trace(arrived, Stage.MATCH_DEQUEUE);
+            assertEquals(1, tracer.getPending());
+
+            StrategyMatch strategy = new StrategyMatch();
+            strategy.apply(ready);
+            strategy.apply(arrived);
+            assertEquals(0, tracer.getPending());
+            assertEquals(1L, tracer.getHistogram("end to end").getCount());
+            assertTrue(tracer.getHistogram("cooking").getMax() >= 20000L);
+            assertTrue(tracer.getHistogram("end to end").getMax() >= tracer.getHistogram("cooking").getMax());
+            assertEquals(1L, tracer.getHistogram("matcher queue").getCount());
+
+            StrategyMatch again = new StrategyMatch();
+            again.apply(ready);
+            again.apply(arrived);
+            assertEquals(1L, tracer.getHistogram("end to end").getCount());
+        } finally {
+            OrderTracer.install(null);
+        }
+    }
+
+    /**
+     * Test the metrics registry.
+     * 1. a counter updated by concurrent threads counts all updates, a gauge reads the live value;
+     * 2. the components register their metrics, e.g. the retry scheduler;
+     * 3. the metrics are read-only attributes of the MBean while it is registered.
+     */
+    @Test
+    public void metricsRegistryTest() throws Exception {
+        MetricsRegistry metrics = MetricsRegistry.getInstance();
+        LongAdder counter = metrics.counter("Test.counter");
+        final Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 10000; i++) {
+                    metrics.counter("Test.counter").increment();
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(40000L, metrics.get("Test.counter"));
+        assertSame(counter, metrics.counter("Test.counter"));
+        BlockingQueue<CSMessage> queue = new ArrayBlockingQueue<>(2);
+        metrics.gauge("Test.queueDepth", queue::size);
+        queue.offer(new CSOrder(true));
+        assertEquals(1L, metrics.get("Test.queueDepth"));
+
+        RetryScheduler scheduler = Helpers.createRetryScheduler("Test-Retry");
+        scheduler.retry(queue, new CSOrder(true), null);
+        assertEquals(1L, metrics.get("Test-Retry.pending"));
+        scheduler.awaitCompletion();
+        assertEquals(0L, metrics.get("Test-Retry.pending"));
+        assertEquals(2L, metrics.get("Test.queueDepth"));
+
+        metrics.registerMBean();
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("com.css.cloudkitchen:type=Metrics");
+            assertEquals(40000L, server.getAttribute(name, "Test.counter"));
+            assertEquals(2L, server.getAttribute(name, "Test.queueDepth"));
+            try {
+                server.setAttribute(name, new Attribute("Test.counter", 0L));
+                fail("Metrics should be read-only.");
+            } catch (AttributeNotFoundException e) {
+                assertEquals(40000L, metrics.get("Test.counter"));
+            }
+        } finally {
+            metrics.unregisterMBean();
+        }
+        assertFalse(ManagementFactory.getPlatformMBeanServer()
+                .isRegistered(new ObjectName("com.css.cloudkitchen:type=Metrics")));
+    }
+
+    /**
+     * Test the asynchronous event output.
+     * 1. the events published by concurrent threads, more than the ring holds, are all written in order per thread;
+     * 2. the text is formatted by the writer from the messages;
+     * 3. the synchronous output is restored after stopping;
+     * 4. the events of producers still holding the output while it stops are all written, once.
+     */
+    @Test
+    public void eventOutputTest() throws Exception {
+        final PrintStream console = System.out;
+        final ByteArrayOutputStream captured = new ByteArrayOutputStream();
+        final CSOrder order = new CSOrder(true).ready(1000L);
+        final CSCourier courier = new CSCourier(3, 15, order.getOrderId()).arrived(1500L);
+        final int perThread = 5000;
+        System.setOut(new PrintStream(captured, true));
+        try {
+            final EventOutput output = EventOutput.start(EventOutput.Sink.CONSOLE);
+            assertSame(output, EventOutput.output());
+            final Thread[] threads = new Thread[4];
+            for (int t = 0; t < threads.length; t++) {
+                final String name = "T" + t;
+                threads[t] = new Thread(() -> {
+                    for (int i = 0; i < perThread; i++) {
+                        EventOutput.output().pickedUp(name, order, courier, i, 0L);
+                    }
+                });
+                threads[t].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            EventOutput.output().foodReady(order);
+            EventOutput.stop();
+            assertNotSame(output, EventOutput.output());
+            assertEquals(0, output.getPending());
+        } finally {
+            System.setOut(console);
+        }
+
+        final String[] lines = captured.toString().split("\n");
+        assertEquals(4 * perThread + 1, lines.length);
+        final Map<String, Integer> last = new HashMap<>();
+        for (int i = 0; i < lines.length - 1; i++) {
+            final String name = lines[i].substring(0, 2);
+            final int wait = Integer.parseInt(lines[i].replaceAll(".*food wait (\\d+),.*", "$1"));
+            assertEquals(last.getOrDefault(name, -1) + 1, wait);
+            last.put(name, wait);
+        }
+        assertTrue(Arrays.asList(lines).contains("T0: Order " + order.getUuid() + " picked up by "
+                + courier.getName() + ", food wait 0, courier wait 0"));
+        assertEquals("Order " + order.getUuid() + " prepared at 1000", lines[lines.length - 1]);
+
+        captured.reset();
+        System.setOut(new PrintStream(captured, true));
+        try {
+            final EventOutput output = EventOutput.start(EventOutput.Sink.CONSOLE);
+            final CountDownLatch started = new CountDownLatch(4);
+            final AtomicBoolean stopped = new AtomicBoolean(false);
+            final AtomicInteger published = new AtomicInteger(0);
+            final Thread[] threads = new Thread[4];
+            for (int t = 0; t < threads.length; t++) {
+                final String name = "T" + t;
+                threads[t] = new Thread(() -> {
+                    started.countDown();
+                    for (int i = 0; !stopped.get() || i < perThread; i++) {
+                        output.pickedUp(name, order, courier, i, 0L);
+                        published.incrementAndGet();
+                    }
+                });
+                threads[t].start();
+            }
+            started.await();
+            EventOutput.stop();
+            stopped.set(true);
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            assertEquals(0, output.getPending());
+            assertEquals(published.get(), captured.toString().split("\n").length);
+        } finally {
+            System.setOut(console);
+        }
+    }
+
+    /**
+     * Test the message journal.
+     * 1. the messages are restored with their fields, over several segments, the pickups are skipped;
+     * 2. a closed journal rejects appending, no segment is added;
+     * 3. a simulation replayed from its journal gives the same statistics.
+     */
+    @Test
+    public void messageJournalTest() throws Exception {
+        final File dir = Files.createTempDirectory("journal").toFile();
+        MessageJournal journal = new MessageJournal(dir, 4);
+        final CSOrder order = new CSOrder(true);
+        final CSCourier courier = new CSCourier(3, 15, order.getOrderId());
+        journal.append(order);
+        journal.append(courier);
+        journal.append(order.ready(order.getCreateTime() + 2000));
+        journal.appendPickup(order, courier, order.getCreateTime() + 3000, 1000L, 0L);
+        journal.append(courier.arrived(order.getCreateTime() + 3000));
+        journal.close();
+        assertEquals(5L, journal.getRecords());
+        assertEquals(2, dir.listFiles().length);
+        assertTrue(journal.isClosed());
+        for (int i = 0; i < 4; i++) {
+            try {
+                journal.append(order);
+                fail("Appended to a closed journal");
+            } catch (IllegalStateException e) {
+                assertEquals(5L, journal.getRecords());
+            }
+        }
+        assertEquals(2, dir.listFiles().length);
+
+        final List<CSMessage> messages = MessageJournal.read(dir);
+        assertEquals(4, messages.size());
+        final CSOrder restored = (CSOrder) messages.get(0);
+        assertEquals(order.getOrderId(), restored.getOrderId());
+        assertEquals(order.getFood(), restored.getFood());
+        assertEquals(order.getCreateTime(), restored.getCreateTime());
+        assertFalse(restored.isReady());
+        assertEquals(order.getCreateTime() + 2000, ((CSOrder) messages.get(2)).getReadyTime());
+        final CSCourier arrived = (CSCourier) messages.get(3);
+        assertEquals(courier.getName(), arrived.getName());
+        assertEquals(order.getOrderId(), arrived.getOrderPickedUp());
+        assertEquals(courier.getArrivePeriod(), arrived.getArrivePeriod());
+        assertEquals(order.getCreateTime() + 3000, arrived.getArriveTime());
+
+        MessageJournal.install(new MessageJournal(dir, 1024));
+        final List<AbstractStrategy> simulated;
+        try {
+            simulated = new CSSimulation(300, 30, 3, true).run();
+        } finally {
+            MessageJournal.journal().close();
+            MessageJournal.install(null);
+        }
+        final List<AbstractStrategy> replayed = new CSReplay(dir, 3).run();
+        assertEquals(simulated.size(), replayed.size());
+        for (int i = 0; i < simulated.size(); i++) {
+            assertEquals(300, replayed.get(i).getOrderCount());
+            assertEquals(simulated.get(i).getFoodLatency(), replayed.get(i).getFoodLatency());
+            assertEquals(simulated.get(i).getCourierLatency(), replayed.get(i).getCourierLatency());
+        }
+        for (File file : dir.listFiles()) {
+            assertTrue(file.delete());
+        }
+        assertTrue(dir.delete());
+    }
+
+    /**
+     * Test the numeric order id.
+     * 1. the ids are unique, the shard is in the high bits and the sequence in the low bits;
+     * 2. the UUID form keeps the create time and the order id;
+     * 3. orders matched in a shuffled order find their couriers by the primitive id.
+     */
+    @Test
+    public void orderIdTest() {
+        final CSOrder first = new CSOrder(true);
+        CSOrder.setShard(5);
+        final CSOrder second;
+        try {
+            second = new CSOrder(true);
+        } finally {
+            CSOrder.setShard(0);
+        }
+        assertEquals(0, CSOrder.getShard(first.getOrderId()));
+        assertEquals(5, CSOrder.getShard(second.getOrderId()));
+        assertTrue(CSOrder.getSequence(second.getOrderId()) > CSOrder.getSequence(first.getOrderId()));
+        assertNotEquals(CSOrder.NO_ORDER, first.getOrderId());
+        assertEquals(CSOrder.NO_ORDER, new CSCourier(3, 15).getOrderPickedUp());
+        final UUID uuid = UUID.fromString(second.getUuid());
+        assertEquals(second.getCreateTime(), uuid.getMostSignificantBits());
+        assertEquals(second.getOrderId(), uuid.getLeastSignificantBits());
+
+        final int total = 20000;
+        final List<CSOrder> orders = new ArrayList<>();
+        for (int i = 0; i < total; i++) {
+            orders.add(new CSOrder(true).ready(System.currentTimeMillis()));
+        }
+        final List<CSMessage> messages = new ArrayList<>(orders);
+        for (CSOrder order : orders) {
+            messages.add(new CSCourier(3, 15, order.getOrderId()).arrived(System.currentTimeMillis()));
+        }
+        Collections.shuffle(messages, new Random(7));
+        final StrategyMatch strategy = new StrategyMatch();
+        final Set<Long> matched = new HashSet<>();
+        for (CSMessage msg : messages) {
+            final CSMessage order = strategy.apply(msg);
+            if (order != null) {
+                assertTrue(matched.add(((CSOrder) order).getOrderId()));
+            }
+        }
+        assertEquals(total, matched.size());
+    }
+
+    /**
+     * Test the message pool.
+     * 1. the orders and couriers come from the pool, and go back when the last reference is released;
+     * 2. a message made when the pool is empty joins the pool if there is room, a release too many fails;
+     * 3. a pooled simulation, with the events written by the output thread, gets every message back,
+     *    and has the same statistics as the replay of its journal, so no message was recycled while in use.
+     */
+    @Test
+    public void messagePoolTest() throws Exception {
+        final MessagePool pool = new MessagePool(4);
+        MessagePool.install(pool);
+        try {
+            final CSOrder order = CSOrder.create(true);
+            final CSOrder ready = order.ready(1000L);
+            assertEquals(2, pool.getFreeOrders());
+            assertEquals(order.getOrderId(), ready.getOrderId());
+            order.retain();
+            order.release();
+            assertEquals(2, pool.getFreeOrders());
+            order.release();
+            ready.release();
+            assertEquals(4, pool.getFreeOrders());
+            try {
+                order.release();
+                fail("released twice");
+            } catch (IllegalStateException e) {
+                assertEquals(-1, order.getReferences());
+            }
+
+            final List<CSCourier> couriers = new ArrayList<>();
+            for (int i = 0; i < 6; i++) {
+                couriers.add(CSCourier.dispatch(3, 15, order.getOrderId()));
+            }
+            assertEquals(0, pool.getFreeCouriers());
+            assertEquals(2L, pool.getMisses());
+            couriers.forEach(CSMessage::release);
+            assertEquals(4, pool.getFreeCouriers());
+        } finally {
+            MessagePool.install(null);
+        }
+
+        final File dir = Files.createTempDirectory("pooled").toFile();
+        final MessagePool simulationPool = new MessagePool(4096);
+        final int outputType = CSKitchen.outputType;
+        CSKitchen.outputType = 2;
+        MessagePool.install(simulationPool);
+        MessageJournal.install(new MessageJournal(dir, 1024));
+        final List<AbstractStrategy> simulated;
+        try {
+            simulated = new CSSimulation(300, 30, 3, true).run();
+        } finally {
+            MessageJournal.journal().close();
+            MessageJournal.install(null);
+            MessagePool.install(null);
+            CSKitchen.outputType = outputType;
+        }
+        assertEquals(0L, simulationPool.getMisses());
+        assertEquals(4096, simulationPool.getFreeOrders());
+        assertEquals(4096, simulationPool.getFreeCouriers());
+        final List<AbstractStrategy> replayed = new CSReplay(dir, 3).run();
+        for (int i = 0; i < simulated.size(); i++) {
+            assertEquals(300, simulated.get(i).getOrderCount());
+            assertEquals(replayed.get(i).getFoodLatency(), simulated.get(i).getFoodLatency());
+            assertEquals(replayed.get(i).getCourierLatency(), simulated.get(i).getCourierLatency());
+        }
+        for (File file : dir.listFiles()) {
+            assertTrue(file.delete());
+        }
+        assertTrue(dir.delete());
+    }
 }
@@ -0,0 +1,101 @@
+package com.css.cloudkitchen.timer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A discrete-event engine, both the timer and the clock of a simulation.
+ * Scheduled tasks are events in a priority queue ordered by their virtual time,
+ * events of the same time keep the order they were scheduled.
+ * Running the engine takes the events one by one and advances the virtual time to each of them,
+ * nothing waits on the wall clock, so the run is as fast as the events can be handled.
+ * Not thread safe, the events must be scheduled from the thread running the engine.
+ */
+public class EventSimulator implements ITimer, IClock {
+    private static final Logger logger = LoggerFactory.getLogger(EventSimulator.class);
+
+    private final PriorityQueue<Event> events = new PriorityQueue<>();
+    private final long startTime;
+    private long now;
+    private long sequence = 0L;
+    private long processed = 0L;
+
+    /**
+     * @param startTime The virtual time in milliseconds when the simulation starts
+     */
+    public EventSimulator(final long startTime) {
+        this.startTime = startTime;
+        this.now = startTime;
+    }
+
+    @Override
+    public void schedule(final Runnable task, final long delay, final TimeUnit unit) {
+        events.add(new Event(now + unit.toMillis(Math.max(0L, delay)), sequence++, task));
+    }
+
+    @Override
+    public int getPending() {
+        return events.size();
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return now;
+    }
+
+    public long getProcessed() {
+        return processed;
+    }
+
+    /**
+     * Get the virtual time passed since the simulation started.
+     * @return Elapsed virtual time in milliseconds
+     */
+    public long getElapsed() {
+        return now - startTime;
+    }
+
+    /**
+     * Run the events in time order until there is none left.
+     * @param afterEvent Runs after every event at the same virtual time, e.g. to deliver the messages it produced
+     * @return Number of events processed
+     */
+    public long run(final Runnable afterEvent) {
+        Event event;
+        while ((event = events.poll()) != null) {
+            now = event.time;
+            try {
+                event.task.run();
+            } catch (Throwable e) {
+                logger.error("Simulated event caught: ", e);
+            }
+            processed++;
+            afterEvent.run();
+        }
+        return processed;
+    }
+
+    /**
+     * A task scheduled at a virtual time.
+     */
+    private static final class Event implements Comparable<Event> {
+        private final long time;
+        private final long sequence;
+        private final Runnable task;
+
+        Event(final long time, final long sequence, final Runnable task) {
+            this.time = time;
+            this.sequence = sequence;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(final Event other) {
+            final int cmp = Long.compare(time, other.time);
+            return cmp != 0 ? cmp : Long.compare(sequence, other.sequence);
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package com.css.cloudkitchen.timer;
+
+/**
+ * Define the clock service.
+ * All timestamps of the messages come from the shared clock,
+ * so the same pipeline can run on the system time or on the virtual time of a simulation.
+ */
+public interface IClock {
+
+    /**
+     * Get the current time.
+     * @return The current time in milliseconds
+     */
+    long currentTimeMillis();
+}
@@ -0,0 +1,39 @@
+package com.css.cloudkitchen.timer;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Define the timer service.
+ * A task scheduled to the timer runs once after the delay, on the timer thread,
+ * so it should be short, e.g. putting a message to a queue.
+ */
+public interface ITimer {
+
+    /**
+     * Schedule a task to run once after the delay.
+     * @param task The task
+     * @param delay The delay
+     * @param unit The time unit of the delay
+     */
+    void schedule(Runnable task, long delay, TimeUnit unit);
+
+    /**
+     * Schedule a task on an argument to run once after the delay,
+     * the task can be a shared instance, so nothing is captured per call.
+     * @param task The task
+     * @param arg The argument of the task
+     * @param delay The delay
+     * @param unit The time unit of the delay
+     * @param <T> The argument type
+     */
+    default <T> void schedule(final Consumer<? super T> task, final T arg, final long delay, final TimeUnit unit) {
+        schedule(() -> task.accept(arg), delay, unit);
+    }
+
+    /**
+     * Get the number of tasks waiting for their time.
+     * @return Number of pending tasks
+     */
+    int getPending();
+}
@@ -0,0 +1,16 @@
+package com.css.cloudkitchen.timer;
+
+/**
+ * The wall clock of the system.
+ */
+public final class SystemClock implements IClock {
+    public static final SystemClock INSTANCE = new SystemClock();
+
+    private SystemClock() {
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,147 @@
+package com.css.cloudkitchen.timer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * A hashed timing wheel driven by a single ticker thread.
+ * Scheduling only queues the task, O(1) and lock-free for the caller.
+ * On every tick, the ticker moves the queued tasks into the buckets of the wheel,
+ * and runs the expired tasks in the current bucket.
+ * A task further than one round of the wheel stays in its bucket and counts down its rounds.
+ */
+public class TimerWheel implements ITimer {
+    private static final Logger logger = LoggerFactory.getLogger(TimerWheel.class);
+
+    private final long tickNanos;
+    private final int mask;
+    private final TimerNode[] buckets;
+    private final Queue<TimerNode> incoming = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger(0);
+    private final long startTime = System.nanoTime();
+    private final Thread ticker;
+
+    /**
+     * Create the timing wheel and start its ticker thread.
+     * @param name The ticker thread name
+     * @param tickMillis The time span of a bucket, also the precision of the timer
+     * @param wheelSize Number of buckets, rounded up to a power of 2
+     */
+    public TimerWheel(final String name, final int tickMillis, final int wheelSize) {
+        int size = 1;
+        while (size < wheelSize) {
+            size <<= 1;
+        }
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        this.mask = size - 1;
+        this.buckets = new TimerNode[size];
+        this.ticker = new Thread(this::tick);
+        this.ticker.setName(name);
+        this.ticker.setDaemon(true);
+        this.ticker.start();
+    }
+
+    @Override
+    public void schedule(final Runnable task, final long delay, final TimeUnit unit) {
+        pending.incrementAndGet();
+        incoming.add(new TimerNode(task, null, null, deadline(delay, unit)));
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> void schedule(final Consumer<? super T> task, final T arg, final long delay, final TimeUnit unit) {
+        pending.incrementAndGet();
+        incoming.add(new TimerNode(null, (Consumer<Object>) task, arg, deadline(delay, unit)));
+    }
+
+    private long deadline(final long delay, final TimeUnit unit) {
+        return System.nanoTime() - startTime + unit.toNanos(Math.max(0L, delay));
+    }
+
+    @Override
+    public int getPending() {
+        return pending.get();
+    }
+
+    private void tick() {
+        long tick = 0L;
+        while (true) {
+            final long deadline = (tick + 1) * tickNanos;
+            long now = System.nanoTime() - startTime;
+            while (now < deadline) {
+                LockSupport.parkNanos(deadline - now);
+                now = System.nanoTime() - startTime;
+            }
+            transferIncoming(tick);
+            expireBucket((int) (tick & mask), now);
+            tick++;
+        }
+    }
+
+    private void transferIncoming(final long tick) {
+        TimerNode node;
+        while ((node = incoming.poll()) != null) {
+            final long calculated = node.deadline / tickNanos;
+            node.rounds = (calculated - tick) / buckets.length;
+            final int idx = (int) (Math.max(calculated, tick) & mask);
+            node.next = buckets[idx];
+            buckets[idx] = node;
+        }
+    }
+
+    private void expireBucket(final int idx, final long now) {
+        TimerNode node = buckets[idx];
+        TimerNode kept = null;
+        while (node != null) {
+            final TimerNode next = node.next;
+            if (node.rounds <= 0L && node.deadline <= now) {
+                pending.decrementAndGet();
+                try {
+                    node.run();
+                } catch (Throwable e) {
+                    logger.error("Timer task caught: ", e);
+                }
+            } else {
+                node.rounds--;
+                node.next = kept;
+                kept = node;
+            }
+            node = next;
+        }
+        buckets[idx] = kept;
+    }
+
+    /**
+     * A scheduled task in the wheel, linked in its bucket.
+     */
+    private static final class TimerNode {
+        private final Runnable task;
+        private final Consumer<Object> consumer; // or a task on an argument
+        private final Object arg;
+        private final long deadline; // nanoseconds since the wheel started
+        private long rounds = 0L;
+        private TimerNode next = null;
+
+        TimerNode(final Runnable task, final Consumer<Object> consumer, final Object arg, final long deadline) {
+            this.task = task;
+            this.consumer = consumer;
+            this.arg = arg;
+            this.deadline = deadline;
+        }
+
+        void run() {
+            if (task != null) {
+                task.run();
+            } else {
+                consumer.accept(arg);
+            }
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.css.cloudkitchen.timer;
+
+/**
+ * Provide the timer and the clock shared by all components.
+ */
+public class Timers {
+    private static final int TICK_MILLIS = 10;
+    private static final int WHEEL_SIZE = 512;
+
+    private static volatile ITimer wheel = null;
+    private static volatile ITimer installedTimer = null;
+    private static volatile IClock clock = SystemClock.INSTANCE;
+
+    private Timers() {
+    }
+
+    /**
+     * The shared timer, a hashed timing wheel driven by a single thread, unless another timer is installed.
+     * @return The shared timer
+     */
+    public static ITimer timer() {
+        final ITimer installed = installedTimer;
+        if (installed != null) {
+            return installed;
+        }
+        ITimer current = wheel;
+        if (current == null) {
+            synchronized (Timers.class) {
+                if (wheel == null) {
+                    wheel = new TimerWheel("Timer-Wheel", TICK_MILLIS, WHEEL_SIZE);
+                }
+                current = wheel;
+            }
+        }
+        return current;
+    }
+
+    /**
+     * The shared clock, the system clock unless another clock is installed.
+     * @return The shared clock
+     */
+    public static IClock clock() {
+        return clock;
+    }
+
+    /**
+     * Replace the shared timer and clock, e.g. by a simulator running on the virtual time.
+     * Components take the timer when they are created, so install it before creating them.
+     * @param timer The timer, null to restore the timing wheel
+     * @param newClock The clock, null to restore the system clock
+     */
+    public static synchronized void install(final ITimer timer, final IClock newClock) {
+        installedTimer = timer;
+        clock = newClock != null ? newClock : SystemClock.INSTANCE;
+    }
+}